@@ -1,14 +1,14 @@
 package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment0;
 
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.StringTokenizer;
+import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
@@ -18,6 +18,8 @@ import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -27,6 +29,12 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.ParserProperties;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.ByteCountTable;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.EmbeddedMode;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.IncrementalCounts;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SkewAwarePartitioner;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.TextTokenizer;
+
 /**
  * Simple word count demo.
  */
@@ -38,54 +46,142 @@ public class PrefixCount extends Configured implements Tool {
     // Reuse objects to save overhead of object creation.
     private final static IntWritable ONE = new IntWritable(1);
     private final static Text WORD = new Text();
+    private final static TextTokenizer TOKENIZER = new TextTokenizer();
 
     @Override
     public void map(LongWritable key, Text value, Context context)
         throws IOException, InterruptedException {
-      String line = ((Text) value).toString();
-      StringTokenizer itr = new StringTokenizer(line);
-      while (itr.hasMoreTokens()) {
-        String w = itr.nextToken().toLowerCase().replaceAll("(^[^a-z]+|[^a-z]+$)", "");
-        if (w.length() > 1) {
-	  w = w.substring(0,2);
-        }
-        if (w.length() == 0) continue;
-        WORD.set(w);
+      TOKENIZER.reset(value);
+      while (TOKENIZER.next()) {
+        TOKENIZER.prefix(WORD, 2);
         context.write(WORD, ONE);
       }
     }
   }
 
+  // Mapper with in-mapper combining: partial counts are kept in a memory-bounded table and flushed
+  // whenever it reaches its budget.
   private static class MyMapperIMC extends Mapper<LongWritable, Text, Text, IntWritable> {
-    private final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+    private final static TextTokenizer TOKENIZER = new TextTokenizer();
+    private ByteCountTable counts;
+
+    @Override
+    public void setup(Context context) {
+      counts = new ByteCountTable(context);
+    }
+
+    @Override
+    public void map(LongWritable key, Text value, Context context)
+        throws IOException, InterruptedException {
+      TOKENIZER.reset(value);
+      while (TOKENIZER.next()) {
+        counts.increment(TOKENIZER.bytes(), 0, TOKENIZER.prefixLength(2));
+        counts.flushIfFull(context);
+      }
+    }
+
+    @Override
+    public void cleanup(Context context) throws IOException, InterruptedException {
+      counts.flush(context);
+    }
+  }
+
+  // Mapper for -prefixLengths: counts the prefixes of every requested length in one pass. Prefixes
+  // made up of a-z only (lengths up to MAX_DENSE) are counted in a dense array indexed by their
+  // base-26 value; anything else goes through a memory-bounded table. Keys are "length\tprefix".
+  private static class MyMapperMulti extends Mapper<LongWritable, Text, Text, IntWritable> {
+    private final static TextTokenizer TOKENIZER = new TextTokenizer();
+    private final static Text KEY = new Text();
+    private final static IntWritable COUNT = new IntWritable();
+
+    private int[] lengths;
+    private byte[][] lengthDigits;
+    // Per requested length, one cell per a-z prefix of 1..length letters (words shorter than the
+    // requested length are their own prefix), or null if the length is too long to be dense.
+    private int[][] dense;
+    private ByteCountTable fallback;
+    private byte[] scratch = new byte[64];
+
+    @Override
+    public void setup(Context context) {
+      lengths = parseLengths(context.getConfiguration().get(PREFIX_LENGTHS));
+      lengthDigits = new byte[lengths.length][];
+      dense = new int[lengths.length][];
+      for (int i = 0; i < lengths.length; i++) {
+        lengthDigits[i] = Integer.toString(lengths[i]).getBytes();
+        if (lengths[i] <= MAX_DENSE) {
+          dense[i] = new int[denseOffset(lengths[i] + 1)];
+        }
+      }
+      fallback = new ByteCountTable(context);
+    }
 
     @Override
     public void map(LongWritable key, Text value, Context context)
         throws IOException, InterruptedException {
-      String line = ((Text) value).toString();
-      StringTokenizer itr = new StringTokenizer(line);
-      while (itr.hasMoreTokens()) {
-        String w = itr.nextToken().toLowerCase().replaceAll("(^[^a-z]+|[^a-z]+$)", "");
-        if (w.length() == 0) continue;
-
-        if (counts.containsKey(w)) {
-          counts.put(w, counts.get(w)+1);
-        } else {
-          counts.put(w, 1);
+      TOKENIZER.reset(value);
+      while (TOKENIZER.next()) {
+        byte[] token = TOKENIZER.bytes();
+        // Number of leading a-z letters.
+        int letters = 0;
+        while (letters < TOKENIZER.length() && token[letters] >= 'a' && token[letters] <= 'z') {
+          letters++;
         }
+
+        for (int i = 0; i < lengths.length; i++) {
+          int len = TOKENIZER.prefixLength(lengths[i]);
+          if (dense[i] != null && len <= letters) {
+            int code = 0;
+            for (int j = 0; j < len; j++) {
+              code = code * 26 + (token[j] - 'a');
+            }
+            dense[i][denseOffset(len) + code]++;
+          } else {
+            int n = writeKey(i, token, len);
+            fallback.increment(scratch, 0, n);
+          }
+        }
+        fallback.flushIfFull(context);
       }
     }
 
     @Override
     public void cleanup(Context context) throws IOException, InterruptedException {
-      IntWritable cnt = new IntWritable();
-      Text token = new Text();
+      byte[] prefix = new byte[MAX_DENSE];
+      for (int i = 0; i < lengths.length; i++) {
+        if (dense[i] == null) {
+          continue;
+        }
+        for (int len = 1; len <= lengths[i]; len++) {
+          int offset = denseOffset(len);
+          for (int code = 0; code < denseOffset(len + 1) - offset; code++) {
+            if (dense[i][offset + code] == 0) {
+              continue;
+            }
+            for (int j = len - 1, c = code; j >= 0; j--, c /= 26) {
+              prefix[j] = (byte) ('a' + c % 26);
+            }
+            KEY.set(scratch, 0, writeKey(i, prefix, len));
+            COUNT.set(dense[i][offset + code]);
+            context.write(KEY, COUNT);
+          }
+        }
+      }
+      fallback.flush(context);
+    }
 
-      for (Map.Entry<String, Integer> entry : counts.entrySet()) {
-        token.set(entry.getKey());
-        cnt.set(entry.getValue());
-        context.write(token, cnt);
+    // Writes "length\tprefix" for the i-th requested length into the scratch buffer and returns its
+    // size.
+    private int writeKey(int i, byte[] prefix, int len) {
+      byte[] digits = lengthDigits[i];
+      int n = digits.length + 1 + len;
+      if (scratch.length < n) {
+        scratch = new byte[n * 2];
       }
+      System.arraycopy(digits, 0, scratch, 0, digits.length);
+      scratch[digits.length] = '\t';
+      System.arraycopy(prefix, 0, scratch, digits.length + 1, len);
+      return n;
     }
   }
 
@@ -108,6 +204,109 @@ public class PrefixCount extends Configured implements Tool {
     }
   }
 
+  // Reducer for -prefixLengths: sums up the counts and writes each prefix length to its own
+  // sub-directory of the output path (length1/, length2/, ...).
+  private static class MyReducerMulti extends Reducer<Text, IntWritable, Text, IntWritable> {
+    private final static Text PREFIX = new Text();
+    private final static IntWritable SUM = new IntWritable();
+    private MultipleOutputs<Text, IntWritable> mos;
+
+    @Override
+    public void setup(Context context) {
+      mos = new MultipleOutputs<Text, IntWritable>(context);
+    }
+
+    @Override
+    public void reduce(Text key, Iterable<IntWritable> values, Context context)
+        throws IOException, InterruptedException {
+      int sum = 0;
+      for (IntWritable value : values) {
+        sum += value.get();
+      }
+
+      byte[] bytes = key.getBytes();
+      int tab = 0;
+      while (bytes[tab] != '\t') {
+        tab++;
+      }
+      PREFIX.set(bytes, tab + 1, key.getLength() - tab - 1);
+      SUM.set(sum);
+      mos.write(PREFIX, SUM, "length" + new String(bytes, 0, tab) + "/part");
+    }
+
+    @Override
+    public void cleanup(Context context) throws IOException, InterruptedException {
+      mos.close();
+    }
+  }
+
+  private static final String PREFIX_LENGTHS = "prefix.lengths";
+  // Longest prefix counted in a dense array: 26^4 cells is still under 2MB per length.
+  private static final int MAX_DENSE = 4;
+
+  // Index of the first cell holding prefixes of the given length: 26 + 26^2 + ... + 26^(len - 1).
+  private static int denseOffset(int len) {
+    int offset = 0;
+    int cells = 1;
+    for (int i = 1; i < len; i++) {
+      cells *= 26;
+      offset += cells;
+    }
+    return offset;
+  }
+
+  private static int[] parseLengths(String s) {
+    String[] parts = s.split(",");
+    int[] lengths = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      lengths[i] = Integer.parseInt(parts[i].trim());
+      if (lengths[i] < 1) {
+        throw new IllegalArgumentException("prefix lengths must be positive: " + s);
+      }
+    }
+    return lengths;
+  }
+
+  // Replays the keys the mappers emit, for -skewAware: the 2-letter prefix of every word, or
+  // "length\tprefix" for every requested length in -prefixLengths mode.
+  private static class PrefixSampler extends SkewAwarePartitioner.KeySampler {
+    private final TextTokenizer tokenizer = new TextTokenizer();
+    private final int[] lengths;
+    private final byte[][] lengthDigits;
+    private byte[] scratch = new byte[64];
+
+    public PrefixSampler(String prefixLengths) {
+      lengths = prefixLengths == null ? null : parseLengths(prefixLengths);
+      lengthDigits = new byte[lengths == null ? 0 : lengths.length][];
+      for (int i = 0; i < lengthDigits.length; i++) {
+        lengthDigits[i] = Integer.toString(lengths[i]).getBytes();
+      }
+    }
+
+    @Override
+    public void sample(Text line) {
+      tokenizer.reset(line);
+      while (tokenizer.next()) {
+        if (lengths == null) {
+          emit(tokenizer.bytes(), 0, tokenizer.prefixLength(2), 1);
+          continue;
+        }
+        for (int i = 0; i < lengths.length; i++) {
+          byte[] digits = lengthDigits[i];
+          int len = tokenizer.prefixLength(lengths[i]);
+          int n = digits.length + 1 + len;
+          if (scratch.length < n) {
+            scratch = new byte[n * 2];
+          }
+          System.arraycopy(digits, 0, scratch, 0, digits.length);
+          scratch[digits.length] = '\t';
+          System.arraycopy(tokenizer.bytes(), 0, scratch, digits.length + 1, len);
+          emit(scratch, 0, n, 1);
+        }
+      }
+    }
+  }
+
   /**
    * Creates an instance of this tool.
    */
@@ -125,6 +324,25 @@ public class PrefixCount extends Configured implements Tool {
 
     @Option(name = "-imc", usage = "use in-mapper combining")
     boolean imc = false;
+
+    @Option(name = "-imcBudget", metaVar = "[MB]", required = false,
+        usage = "memory budget of the in-mapper combining table")
+    public int imcBudget = 64;
+
+    @Option(name = "-prefixLengths", metaVar = "[list]", required = false,
+        usage = "comma-separated prefix lengths (e.g. 1,2,3) computed in a single pass")
+    public String prefixLengths;
+
+    @Option(name = "-incremental",
+        usage = "only count input files not counted yet and merge them into the existing output")
+    boolean incremental = false;
+
+    @Option(name = "-allowChanged",
+        usage = "in -incremental mode, keep the old counts of input files changed since counted")
+    boolean allowChanged = false;
+
+    @Option(name = "-skewAware", usage = "sample the input to spread the heaviest keys over the reducers")
+    boolean skewAware = false;
   }
 
   /**
@@ -147,8 +365,43 @@ public class PrefixCount extends Configured implements Tool {
     LOG.info(" - output path: " + args.output);
     LOG.info(" - number of reducers: " + args.numReducers);
     LOG.info(" - use in-mapper combining: " + args.imc);
+    LOG.info(" - in-mapper combining budget (MB): " + args.imcBudget);
+    LOG.info(" - prefix lengths: " + (args.prefixLengths == null ? "2" : args.prefixLengths));
+    LOG.info(" - incremental: " + args.incremental);
+    LOG.info(" - skew-aware partitioning: " + args.skewAware);
+
+    if (args.incremental && args.prefixLengths != null) {
+      System.err.println("-incremental and -prefixLengths cannot be combined");
+      return -1;
+    }
+
+    if (args.incremental && args.skewAware) {
+      // The merge with the previous counts relies on both runs hashing keys the same way.
+      System.err.println("-incremental and -skewAware cannot be combined");
+      return -1;
+    }
 
     Configuration conf = getConf();
+    conf.setLong(ByteCountTable.BUDGET, args.imcBudget * 1024L * 1024L);
+    if (args.prefixLengths != null) {
+      parseLengths(args.prefixLengths);
+      conf.set(PREFIX_LENGTHS, args.prefixLengths);
+    }
+
+    // In incremental mode only the input files missing from the output's manifest are counted.
+    IncrementalCounts incremental = null;
+    List<FileStatus> inputs = null;
+    if (args.incremental) {
+      incremental = new IncrementalCounts(FileSystem.get(conf), new Path(args.output));
+      inputs = incremental.newInputs(new Path(args.input), args.allowChanged);
+      LOG.info(" - new input files: " + inputs.size());
+      if (inputs.isEmpty()) {
+        LOG.info("No new input files: counts in " + args.output + " are up to date.");
+        return 0;
+      }
+      args.numReducers = incremental.reducers(args.numReducers);
+    }
+
     Job job = Job.getInstance(conf);
     job.setJobName(PrefixCount.class.getSimpleName());
     job.setJarByClass(PrefixCount.class);
@@ -162,21 +415,47 @@ public class PrefixCount extends Configured implements Tool {
     job.setMapOutputValueClass(IntWritable.class);
     job.setOutputKeyClass(Text.class);
     job.setOutputValueClass(IntWritable.class);
-    job.setOutputFormatClass(TextOutputFormat.class);
 
-    job.setMapperClass(args.imc ? MyMapperIMC.class : MyMapper.class);
     job.setCombinerClass(MyReducer.class);
-    job.setReducerClass(MyReducer.class);
+    if (args.prefixLengths != null) {
+      // Every length goes to its own sub-directory, so don't create empty default part files.
+      LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
+      job.setMapperClass(MyMapperMulti.class);
+      job.setReducerClass(MyReducerMulti.class);
+    } else {
+      job.setOutputFormatClass(TextOutputFormat.class);
+      job.setMapperClass(args.imc ? MyMapperIMC.class : MyMapper.class);
+      job.setReducerClass(MyReducer.class);
+    }
 
-    // Delete the output directory if it exists already.
-    Path outputDir = new Path(args.output);
-    FileSystem.get(conf).delete(outputDir, true);
+    if (incremental != null) {
+      FileInputFormat.setInputPaths(job,
+          FileUtil.stat2Paths(inputs.toArray(new FileStatus[inputs.size()])));
+      incremental.configure(job);
+    } else {
+      // Delete the output directory if it exists already.
+      Path outputDir = new Path(args.output);
+      FileSystem.get(conf).delete(outputDir, true);
+    }
+
+    if (args.skewAware) {
+      SkewAwarePartitioner.plan(job, new PrefixSampler(args.prefixLengths));
+      job.setPartitionerClass(SkewAwarePartitioner.class);
+    }
+
+    EmbeddedMode.configure(job);
 
     long startTime = System.currentTimeMillis();
-    job.waitForCompletion(true);
+    boolean success = job.waitForCompletion(true);
+    if (success && incremental != null) {
+      incremental.commit(inputs, args.numReducers);
+    }
+    if (job.getNumReduceTasks() > 1) {
+      SkewAwarePartitioner.logReducerLoad(job);
+    }
     LOG.info("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
 
-    return 0;
+    return success ? 0 : 1;
   }
 
   /**
@@ -1,18 +1,23 @@
 package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment0;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.StringTokenizer;
+import java.util.List;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
@@ -27,6 +32,16 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.ParserProperties;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.BinaryCounts;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.ByteCountTable;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.CountMinSketch;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.EmbeddedMode;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.HeavyHitters;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.IncrementalCounts;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SkewAwarePartitioner;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SpaceSaving;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.TextTokenizer;
+
 /**
  * Simple word count demo.
  */
@@ -38,51 +53,43 @@ public class WordCount extends Configured implements Tool {
     // Reuse objects to save overhead of object creation.
     private final static IntWritable ONE = new IntWritable(1);
     private final static Text WORD = new Text();
+    private final static TextTokenizer TOKENIZER = new TextTokenizer();
 
     @Override
     public void map(LongWritable key, Text value, Context context)
         throws IOException, InterruptedException {
-      String line = ((Text) value).toString();
-      StringTokenizer itr = new StringTokenizer(line);
-      while (itr.hasMoreTokens()) {
-        String w = itr.nextToken().toLowerCase().replaceAll("(^[^a-z]+|[^a-z]+$)", "");
-        if (w.length() == 0) continue;
-        WORD.set(w);
+      TOKENIZER.reset(value);
+      while (TOKENIZER.next()) {
+        TOKENIZER.get(WORD);
         context.write(WORD, ONE);
       }
     }
   }
 
+  // Mapper with in-mapper combining: partial counts are kept in a memory-bounded table and flushed
+  // whenever it reaches its budget.
   private static class MyMapperIMC extends Mapper<LongWritable, Text, Text, IntWritable> {
-    private final HashMap<String, Integer> counts = new HashMap<String, Integer>();
+    private final static TextTokenizer TOKENIZER = new TextTokenizer();
+    private ByteCountTable counts;
+
+    @Override
+    public void setup(Context context) {
+      counts = new ByteCountTable(context);
+    }
 
     @Override
     public void map(LongWritable key, Text value, Context context)
         throws IOException, InterruptedException {
-      String line = ((Text) value).toString();
-      StringTokenizer itr = new StringTokenizer(line);
-      while (itr.hasMoreTokens()) {
-        String w = itr.nextToken().toLowerCase().replaceAll("(^[^a-z]+|[^a-z]+$)", "");
-        if (w.length() == 0) continue;
-
-        if (counts.containsKey(w)) {
-          counts.put(w, counts.get(w)+1);
-        } else {
-          counts.put(w, 1);
-        }
+      TOKENIZER.reset(value);
+      while (TOKENIZER.next()) {
+        counts.increment(TOKENIZER.bytes(), 0, TOKENIZER.length());
+        counts.flushIfFull(context);
       }
     }
 
     @Override
     public void cleanup(Context context) throws IOException, InterruptedException {
-      IntWritable cnt = new IntWritable();
-      Text token = new Text();
-
-      for (Map.Entry<String, Integer> entry : counts.entrySet()) {
-        token.set(entry.getKey());
-        cnt.set(entry.getValue());
-        context.write(token, cnt);
-      }
+      counts.flush(context);
     }
   }
 
@@ -105,6 +112,129 @@ public class WordCount extends Configured implements Tool {
     }
   }
 
+  // Reducer for -binary: same sums, written as VInts.
+  private static class MyReducerBinary extends Reducer<Text, IntWritable, Text, VIntWritable> {
+    private final static VIntWritable SUM = new VIntWritable();
+
+    @Override
+    public void reduce(Text key, Iterable<IntWritable> values, Context context)
+        throws IOException, InterruptedException {
+      int sum = 0;
+      for (IntWritable value : values) {
+        sum += value.get();
+      }
+      SUM.set(sum);
+      context.write(key, SUM);
+    }
+  }
+
+  // Per-mapper sketches shipped to the reducer in -approx mode.
+  public static class Sketches implements Writable {
+    private final CountMinSketch cms;
+    private final SpaceSaving topK;
+
+    public Sketches() {
+      this(new CountMinSketch(), new SpaceSaving());
+    }
+
+    public Sketches(CountMinSketch cms, SpaceSaving topK) {
+      this.cms = cms;
+      this.topK = topK;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      cms.write(out);
+      topK.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      cms.readFields(in);
+      topK.readFields(in);
+    }
+  }
+
+  // Mapper for -approx: feeds every token into a Count-Min sketch and a SpaceSaving summary, both of
+  // fixed size, and emits only the two sketches at the end of the split.
+  private static class MyMapperApprox extends Mapper<LongWritable, Text, NullWritable, Sketches> {
+    private final static TextTokenizer TOKENIZER = new TextTokenizer();
+    private CountMinSketch cms;
+    private SpaceSaving topK;
+
+    @Override
+    public void setup(Context context) {
+      Configuration conf = context.getConfiguration();
+      cms = CountMinSketch.withErrorBounds(conf.getFloat(APPROX_EPSILON, 0.0001f),
+          conf.getFloat(APPROX_DELTA, 0.01f));
+      topK = new SpaceSaving(conf.getInt(APPROX_CAPACITY, 1000));
+    }
+
+    @Override
+    public void map(LongWritable key, Text value, Context context)
+        throws IOException, InterruptedException {
+      TOKENIZER.reset(value);
+      while (TOKENIZER.next()) {
+        cms.add(TOKENIZER.bytes(), 0, TOKENIZER.length(), 1);
+        topK.add(TOKENIZER.bytes(), 0, TOKENIZER.length(), 1);
+      }
+    }
+
+    @Override
+    public void cleanup(Context context) throws IOException, InterruptedException {
+      context.write(NullWritable.get(), new Sketches(cms, topK));
+    }
+  }
+
+  // Reducer for -approx (single reducer): merges the sketches of all mappers and writes the top k
+  // words as "word\testimate\tlowerBound", highest estimate first.
+  private static class MyReducerApprox extends Reducer<NullWritable, Sketches, Text, Text> {
+    private final static Text WORD = new Text();
+    private final static Text COUNTS = new Text();
+
+    @Override
+    public void reduce(NullWritable key, Iterable<Sketches> values, Context context)
+        throws IOException, InterruptedException {
+      HeavyHitters merged = new HeavyHitters();
+      for (Sketches s : values) {
+        merged.add(s.cms, s.topK);
+      }
+
+      CountMinSketch cms = merged.sketch();
+      LOG.info("Total tokens: " + cms.total() + ", Count-Min error bound: " + cms.errorBound());
+      context.getCounter(Approx.TOKENS).increment(cms.total());
+      context.getCounter(Approx.ERROR_BOUND).increment(cms.errorBound());
+
+      for (HeavyHitters.Entry e : merged.top(context.getConfiguration().getInt(APPROX_K, 100))) {
+        WORD.set(e.key);
+        COUNTS.set(e.estimate + "\t" + e.lower);
+        context.write(WORD, COUNTS);
+      }
+    }
+  }
+
+  private static enum Approx {
+    TOKENS, ERROR_BOUND
+  };
+
+  private static final String APPROX_K = "approx.k";
+  private static final String APPROX_CAPACITY = "approx.capacity";
+  private static final String APPROX_EPSILON = "approx.epsilon";
+  private static final String APPROX_DELTA = "approx.delta";
+
+  // Replays the (word, 1) pairs the mappers emit, for -skewAware.
+  private static class WordSampler extends SkewAwarePartitioner.KeySampler {
+    private final TextTokenizer tokenizer = new TextTokenizer();
+
+    @Override
+    public void sample(Text line) {
+      tokenizer.reset(line);
+      while (tokenizer.next()) {
+        emit(tokenizer.bytes(), 0, tokenizer.length(), 1);
+      }
+    }
+  }
+
   /**
    * Creates an instance of this tool.
    */
@@ -122,6 +252,38 @@ public class WordCount extends Configured implements Tool {
 
     @Option(name = "-imc", usage = "use in-mapper combining")
     boolean imc = false;
+
+    @Option(name = "-imcBudget", metaVar = "[MB]", required = false,
+        usage = "memory budget of the in-mapper combining table")
+    public int imcBudget = 64;
+
+    @Option(name = "-approx", usage = "approximate top-k words with Count-Min/SpaceSaving sketches")
+    boolean approx = false;
+
+    @Option(name = "-topK", metaVar = "[num]", required = false, usage = "number of words in -approx mode")
+    public int topK = 100;
+
+    @Option(name = "-epsilon", metaVar = "[num]", required = false,
+        usage = "Count-Min relative error in -approx mode")
+    public float epsilon = 0.0001f;
+
+    @Option(name = "-delta", metaVar = "[num]", required = false,
+        usage = "Count-Min failure probability in -approx mode")
+    public float delta = 0.01f;
+
+    @Option(name = "-incremental",
+        usage = "only count input files not counted yet and merge them into the existing output")
+    boolean incremental = false;
+
+    @Option(name = "-allowChanged",
+        usage = "in -incremental mode, keep the old counts of input files changed since counted")
+    boolean allowChanged = false;
+
+    @Option(name = "-skewAware", usage = "sample the input to spread the heaviest keys over the reducers")
+    boolean skewAware = false;
+
+    @Option(name = "-binary", usage = "write the counts as block-compressed MapFiles (see BinaryCounts)")
+    boolean binary = false;
   }
 
   /**
@@ -144,8 +306,50 @@ public class WordCount extends Configured implements Tool {
     LOG.info(" - output path: " + args.output);
     LOG.info(" - number of reducers: " + args.numReducers);
     LOG.info(" - use in-mapper combining: " + args.imc);
+    LOG.info(" - in-mapper combining budget (MB): " + args.imcBudget);
+    LOG.info(" - approximate top-k: " + (args.approx ? args.topK : "no"));
+    LOG.info(" - incremental: " + args.incremental);
+    LOG.info(" - skew-aware partitioning: " + args.skewAware);
+    LOG.info(" - binary output: " + args.binary);
+
+    if (args.incremental && args.approx) {
+      System.err.println("-incremental and -approx cannot be combined");
+      return -1;
+    }
+
+    if (args.incremental && args.skewAware) {
+      // The merge with the previous counts relies on both runs hashing keys the same way.
+      System.err.println("-incremental and -skewAware cannot be combined");
+      return -1;
+    }
+    if (args.binary && (args.approx || args.incremental)) {
+      System.err.println("-binary cannot be combined with -approx or -incremental");
+      return -1;
+    }
 
     Configuration conf = getConf();
+    conf.setLong(ByteCountTable.BUDGET, args.imcBudget * 1024L * 1024L);
+    conf.setInt(APPROX_K, args.topK);
+    // Each summary monitors 10x more words than requested, which keeps the boundary of the top k
+    // well inside the part of the summary whose counts are exact or nearly so.
+    conf.setInt(APPROX_CAPACITY, Math.max(10 * args.topK, 1000));
+    conf.setFloat(APPROX_EPSILON, args.epsilon);
+    conf.setFloat(APPROX_DELTA, args.delta);
+
+    // In incremental mode only the input files missing from the output's manifest are counted.
+    IncrementalCounts incremental = null;
+    List<FileStatus> inputs = null;
+    if (args.incremental) {
+      incremental = new IncrementalCounts(FileSystem.get(conf), new Path(args.output));
+      inputs = incremental.newInputs(new Path(args.input), args.allowChanged);
+      LOG.info(" - new input files: " + inputs.size());
+      if (inputs.isEmpty()) {
+        LOG.info("No new input files: counts in " + args.output + " are up to date.");
+        return 0;
+      }
+      args.numReducers = incremental.reducers(args.numReducers);
+    }
+
     Job job = Job.getInstance(conf);
     job.setJobName(WordCount.class.getSimpleName());
     job.setJarByClass(WordCount.class);
@@ -155,25 +359,65 @@ public class WordCount extends Configured implements Tool {
     FileInputFormat.setInputPaths(job, new Path(args.input));
     FileOutputFormat.setOutputPath(job, new Path(args.output));
 
-    job.setMapOutputKeyClass(Text.class);
-    job.setMapOutputValueClass(IntWritable.class);
-    job.setOutputKeyClass(Text.class);
-    job.setOutputValueClass(IntWritable.class);
     job.setOutputFormatClass(TextOutputFormat.class);
 
-    job.setMapperClass(args.imc ? MyMapperIMC.class : MyMapper.class);
-    job.setCombinerClass(MyReducer.class);
-    job.setReducerClass(MyReducer.class);
+    if (args.approx) {
+      // Mappers only ship their sketches, so a single reducer merges everything.
+      job.setNumReduceTasks(1);
+      job.setMapOutputKeyClass(NullWritable.class);
+      job.setMapOutputValueClass(Sketches.class);
+      job.setOutputKeyClass(Text.class);
+      job.setOutputValueClass(Text.class);
 
-    // Delete the output directory if it exists already.
-    Path outputDir = new Path(args.output);
-    FileSystem.get(conf).delete(outputDir, true);
+      job.setMapperClass(MyMapperApprox.class);
+      job.setReducerClass(MyReducerApprox.class);
+    } else {
+      job.setMapOutputKeyClass(Text.class);
+      job.setMapOutputValueClass(IntWritable.class);
+      job.setOutputKeyClass(Text.class);
+      job.setOutputValueClass(IntWritable.class);
+
+      job.setMapperClass(args.imc ? MyMapperIMC.class : MyMapper.class);
+      job.setCombinerClass(MyReducer.class);
+      job.setReducerClass(MyReducer.class);
+    }
+
+    if (args.binary) {
+      job.setReducerClass(MyReducerBinary.class);
+      BinaryCounts.configure(job);
+    }
+
+    if (incremental != null) {
+      FileInputFormat.setInputPaths(job,
+          FileUtil.stat2Paths(inputs.toArray(new FileStatus[inputs.size()])));
+      incremental.configure(job);
+    } else {
+      // Delete the output directory if it exists already.
+      Path outputDir = new Path(args.output);
+      FileSystem.get(conf).delete(outputDir, true);
+    }
+
+    if (args.skewAware) {
+      SkewAwarePartitioner.plan(job, new WordSampler());
+      job.setPartitionerClass(SkewAwarePartitioner.class);
+    }
+
+    EmbeddedMode.configure(job);
 
     long startTime = System.currentTimeMillis();
-    job.waitForCompletion(true);
+    boolean success = job.waitForCompletion(true);
+    if (success && incremental != null) {
+      incremental.commit(inputs, args.numReducers);
+    }
+    if (success && args.binary) {
+      BinaryCounts.savePlan(job);
+    }
+    if (job.getNumReduceTasks() > 1) {
+      SkewAwarePartitioner.logReducerLoad(job);
+    }
     LOG.info("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
 
-    return 0;
+    return success ? 0 : 1;
   }
 
   /**
@@ -1,10 +1,12 @@
 package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment1;
 
 import java.io.*;
-import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DoubleWritable;
@@ -14,7 +16,9 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.*;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.log4j.Logger;
 import org.kohsuke.args4j.CmdLineException;
@@ -22,8 +26,18 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.ParserProperties;
 
+import tl.lin.data.pair.PairOfInts;
 import tl.lin.data.pair.PairOfStrings;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.ByteCountTable;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.CountDictionary;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.EmbeddedMode;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.Pipeline;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.TextTokenizer;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.TopPartners;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.Vocabulary;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.WordBloomFilter;
+
 
 public class CooccurrencePairs extends Configured implements Tool {
     private static final Logger LOG = Logger.getLogger(CooccurrencePairs.class);
@@ -32,38 +46,60 @@ public class CooccurrencePairs extends Configured implements Tool {
         FILE_EXISTS, NUM_LINES
     }
 
+    // Words that don't reach the threshold are pruned before any pair is emitted, Apriori-style: they
+    // are missing from the Bloom filter built by PairsPMI, which has no false negatives.
     private static class MyMapper extends Mapper<LongWritable, Text, PairOfStrings, IntWritable> {
         private static final PairOfStrings PAIR = new PairOfStrings();
         private static final IntWritable ONE = new IntWritable(1);
+        private static final TextTokenizer TOKENIZER = new TextTokenizer();
+        private static final Text WORD = new Text();
+        private WordBloomFilter frequentWords;
+        private final long[] pruning = new long[PairsPMI.PRUNING.values().length];
 
+        @Override
+        public void setup(Context context) throws IOException {
+            frequentWords = WordBloomFilter.load(new File("./frequentWords"));
+        }
 
         @Override
         public void map(LongWritable key, Text value, Context context)
                 throws IOException, InterruptedException {
-            String line = ((Text) value).toString();
+            TOKENIZER.reset(value);
 
             List<String> tokens = new ArrayList<String>();
-            StringTokenizer itr = new StringTokenizer(line);
             int numWords = 0;
-            while (itr.hasMoreTokens() && numWords < 100) {
-                String w = itr.nextToken().toLowerCase().replaceAll("(^[^a-z]+|[^a-z]+$)", "");
-                if (w.length() == 0) continue;
+            while (numWords < 100 && TOKENIZER.next()) {
+                String w = TOKENIZER.token();
                 if (!tokens.contains(w)) {
                     tokens.add(w);
                 }
                 numWords++;
             }
 
+            List<String> frequent = new ArrayList<String>(tokens.size());
             for (int i = 0; i < tokens.size(); i++) {
-                for (int j = i; j < tokens.size(); j++) {
+                WORD.set(tokens.get(i));
+                if (frequentWords.mightContain(WORD.getBytes(), 0, WORD.getLength())) {
+                    frequent.add(tokens.get(i));
+                }
+            }
+            PairsPMI.tallyPruning(pruning, tokens.size(), frequent.size());
+
+            for (int i = 0; i < frequent.size(); i++) {
+                for (int j = i; j < frequent.size(); j++) {
                     if (i == j) continue;
-                    PAIR.set(tokens.get(i), tokens.get(j));
+                    PAIR.set(frequent.get(i), frequent.get(j));
                     context.write(PAIR, ONE);
-                    PAIR.set(tokens.get(j), tokens.get(i));
+                    PAIR.set(frequent.get(j), frequent.get(i));
                     context.write(PAIR, ONE);
                 }
             }
         }
+
+        @Override
+        public void cleanup(Context context) {
+            PairsPMI.countPruning(context, pruning);
+        }
     }
 
     private static class MyCombiner extends Reducer<PairOfStrings, IntWritable, PairOfStrings, IntWritable> {
@@ -88,26 +124,24 @@ public class CooccurrencePairs extends Configured implements Tool {
     private static class MyReducer extends
             Reducer<PairOfStrings, IntWritable, PairOfStrings, DoubleWritable> {
         private static final DoubleWritable SUM = new DoubleWritable();
-        private static HashMap<String,Integer> wordCounts = new HashMap<>();
+        private static CountDictionary wordCounts;
+        private static int numLines;
+        private int threshold;
 
 
         @Override
         protected void setup(Context context)
                 throws IOException, InterruptedException {
+            threshold = context.getConfiguration().getInt(PairsPMI.THRESHOLD,
+                    PairsPMI.DEFAULT_THRESHOLD);
             if (context.getCacheFiles() != null
                     && context.getCacheFiles().length > 0) {
 
-                InputStream in = new FileInputStream(new File("./mergedLineCounts"));
-                BufferedReader reader = new BufferedReader(new InputStreamReader(in,"UTF-8"));
-                String line;
+                // Memory-mapped: nothing is parsed or copied onto the heap.
+                wordCounts = CountDictionary.open(new File("./mergedLineCounts"));
+                numLines = wordCounts.get("numLines*");
                 context.getCounter(COUNTER.FILE_EXISTS).increment(1);
-                while ((line = reader.readLine()) != null) {
-                    String [] split = line.split("\t");
-                    wordCounts.put(split[0],Integer.parseInt(split[1]));
-                    context.getCounter(COUNTER.NUM_LINES).increment(1);
-                }
-
-
+                context.getCounter(COUNTER.NUM_LINES).increment(wordCounts.size());
             }
 
             super.setup(context);
@@ -123,16 +157,69 @@ public class CooccurrencePairs extends Configured implements Tool {
             }
 
             double pmi = 0.0;
-            if (sum >= 10) {
-                int px = wordCounts.get(key.getLeftElement().toString());
-                int py = wordCounts.get(key.getRightElement().toString());
-                pmi = Math.log10 (((double)(sum)/(px * py)) * wordCounts.get("numLines*"));
+            if (sum >= threshold) {
+                int px = wordCounts.get(key.getLeftElement());
+                int py = wordCounts.get(key.getRightElement());
+                pmi = Math.log10 (((double)(sum)/((double) px * py)) * numLines);
                 SUM.set(pmi);
                 context.write(key, SUM);
             }
         }
     }
 
+    // Top N (-topN): pairs reach a reducer sorted by their left word, so it keeps the best partners
+    // of the current left word in a bounded heap and writes them when the left word changes.
+    private static class MyTopNReducer extends Reducer<PairOfStrings, IntWritable, Text, TopPartners> {
+        private static final Text WORD = new Text();
+        private TopPartners top;
+        private CountDictionary wordCounts;
+        private int numLines;
+        private int threshold;
+        private String left = null;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            wordCounts = CountDictionary.open(new File("./mergedLineCounts"));
+            numLines = wordCounts.get("numLines*");
+            threshold = context.getConfiguration().getInt(PairsPMI.THRESHOLD,
+                    PairsPMI.DEFAULT_THRESHOLD);
+            top = new TopPartners(context.getConfiguration().getInt(PairsPMI.TOP_N, 1));
+        }
+
+        @Override
+        public void reduce(PairOfStrings key, Iterable<IntWritable> values, Context context)
+                throws IOException, InterruptedException {
+            int sum = 0;
+            for (IntWritable value : values) {
+                sum += value.get();
+            }
+
+            if (sum >= threshold) {
+                if (!key.getLeftElement().equals(left)) {
+                    flush(context);
+                    left = key.getLeftElement();
+                }
+                int px = wordCounts.get(key.getLeftElement());
+                int py = wordCounts.get(key.getRightElement());
+                top.offer(key.getRightElement(),
+                        (float) Math.log10(((double) sum / ((double) px * py)) * numLines));
+            }
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            flush(context);
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            if (top.size() > 0) {
+                WORD.set(left);
+                context.write(WORD, top);
+            }
+            top.clear();
+        }
+    }
+
     protected static class MyPartitioner extends Partitioner<PairOfStrings, IntWritable> {
         @Override
         public int getPartition(PairOfStrings key, IntWritable value, int numReduceTasks) {
@@ -140,6 +227,307 @@ public class CooccurrencePairs extends Configured implements Tool {
         }
     }
 
+    // Single pass (-singlePass): the corpus is scanned once, by a job that counts the pairs along
+    // with the marginals of their left words, using order inversion: besides the pairs (x, y),
+    // mappers emit (x, *) for every distinct word x of a line. "*" sorts ahead of every word, so a
+    // reducer sees the marginal of x before the pairs (x, y), and writes the pairs that reach the
+    // threshold with their count and the marginal of x. The marginals of the right words and the
+    // line count come from a side input instead: each mapper also writes its word counts and line
+    // count to a side file, sorted by word. Once the job is done, the driver merges the side files
+    // into a CountDictionary of the words that reach the threshold (a pair can't occur on more lines
+    // than either of its words), and a map-only job over the pairs memory-maps it from the
+    // distributed cache to compute their PMI.
+    private static final String MARGINAL = "*";
+    private static final String MARGINALS_PATH = "MarginalsPath";
+    private static final byte[] NUM_LINES = "numLines*".getBytes(StandardCharsets.UTF_8);
+
+    private static class MySinglePassMapper extends Mapper<LongWritable, Text, PairOfStrings, IntWritable> {
+        private static final PairOfStrings PAIR = new PairOfStrings();
+        private static final IntWritable ONE = new IntWritable(1);
+        private static final Text WORD = new Text();
+        private static final TextTokenizer TOKENIZER = new TextTokenizer();
+        private ByteCountTable marginals;
+        private int numLines = 0;
+
+        @Override
+        public void setup(Context context) {
+            // Holds the task's vocabulary: it is never flushed.
+            marginals = new ByteCountTable(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            TOKENIZER.reset(value);
+
+            List<String> tokens = new ArrayList<String>();
+            int numWords = 0;
+            while (numWords < 100 && TOKENIZER.next()) {
+                String w = TOKENIZER.token();
+                if (!tokens.contains(w)) {
+                    tokens.add(w);
+                }
+                numWords++;
+            }
+
+            for (int i = 0; i < tokens.size(); i++) {
+                for (int j = i; j < tokens.size(); j++) {
+                    if (i == j) continue;
+                    PAIR.set(tokens.get(i), tokens.get(j));
+                    context.write(PAIR, ONE);
+                    PAIR.set(tokens.get(j), tokens.get(i));
+                    context.write(PAIR, ONE);
+                }
+                PAIR.set(tokens.get(i), MARGINAL);
+                context.write(PAIR, ONE);
+                WORD.set(tokens.get(i));
+                marginals.increment(WORD.getBytes(), 0, WORD.getLength());
+            }
+
+            if (tokens.size() != 0) {
+                numLines++;
+            }
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            marginals.increment(NUM_LINES, 0, NUM_LINES.length, numLines);
+
+            // Written under the attempt's name, then renamed to the task's: only one attempt of a
+            // task makes it, and any of them has the same counts.
+            Configuration conf = context.getConfiguration();
+            Path dir = new Path(conf.get(MARGINALS_PATH));
+            FileSystem fs = dir.getFileSystem(conf);
+            Path tmp = new Path(dir, "_" + context.getTaskAttemptID());
+            int task = context.getTaskAttemptID().getTaskID().getId();
+            Path file = new Path(dir, String.format("part-m-%05d", task));
+            FSDataOutputStream out = fs.create(tmp, true);
+            marginals.writeTo(out);
+            out.close();
+            if (!fs.rename(tmp, file)) {
+                fs.delete(tmp, false);
+            }
+        }
+    }
+
+    private static class MySinglePassReducer extends
+            Reducer<PairOfStrings, IntWritable, PairOfStrings, PairOfInts> {
+        private static final PairOfInts COUNTS = new PairOfInts();
+        private int leftMarginal = 0;
+        private int threshold;
+
+        @Override
+        protected void setup(Context context) {
+            threshold = context.getConfiguration().getInt(PairsPMI.THRESHOLD,
+                    PairsPMI.DEFAULT_THRESHOLD);
+        }
+
+        @Override
+        public void reduce(PairOfStrings key, Iterable<IntWritable> values, Context context)
+                throws IOException, InterruptedException {
+            int sum = 0;
+            for (IntWritable value : values) {
+                sum += value.get();
+            }
+
+            if (key.getRightElement().equals(MARGINAL)) {
+                leftMarginal = sum;
+            } else if (sum >= threshold) {
+                COUNTS.set(sum, leftMarginal);
+                context.write(key, COUNTS);
+            }
+        }
+    }
+
+    // Second job of -singlePass: (x, y) with its count and the marginal of x, to its PMI.
+    private static class MySinglePassPmiMapper extends
+            Mapper<PairOfStrings, PairOfInts, PairOfStrings, DoubleWritable> {
+        private static final DoubleWritable PMI = new DoubleWritable();
+        private CountDictionary marginals;
+        private int numLines;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            // Memory-mapped: nothing is parsed or copied onto the heap.
+            marginals = CountDictionary.open(new File("./singlePassMarginals"));
+            numLines = marginals.get("numLines*");
+            context.getCounter(COUNTER.FILE_EXISTS).increment(1);
+            context.getCounter(COUNTER.NUM_LINES).increment(marginals.size());
+        }
+
+        @Override
+        public void map(PairOfStrings key, PairOfInts counts, Context context)
+                throws IOException, InterruptedException {
+            int sum = counts.getLeftElement();
+            int px = counts.getRightElement();
+            int py = marginals.get(key.getRightElement());
+            PMI.set(Math.log10(((double) sum / ((double) px * py)) * numLines));
+            context.write(key, PMI);
+        }
+    }
+
+    // Packed (-packed): words get the dense ids of the vocabulary built by PairsPMI, most frequent
+    // first, and a pair of ids travels as one LongWritable, which sorts on its raw bytes. Words
+    // without an id occur on fewer lines than the threshold, so none of their pairs can reach it.
+    // Ids are turned back into strings only for the pairs that are written out.
+    private static class MyPackedMapper extends Mapper<LongWritable, Text, LongWritable, IntWritable> {
+        private static final LongWritable PAIR = new LongWritable();
+        private static final IntWritable ONE = new IntWritable(1);
+        private static final TextTokenizer TOKENIZER = new TextTokenizer();
+        private static final int[] IDS = new int[100];
+        private Vocabulary vocabulary;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            vocabulary = Vocabulary.load(new File("./vocabulary"));
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            TOKENIZER.reset(value);
+
+            int numIds = 0;
+            int numWords = 0;
+            while (numWords < 100 && TOKENIZER.next()) {
+                int id = vocabulary.id(TOKENIZER.bytes(), 0, TOKENIZER.length());
+                numWords++;
+                if (id < 0) {
+                    continue;
+                }
+                boolean seen = false;
+                for (int i = 0; i < numIds && !seen; i++) {
+                    seen = IDS[i] == id;
+                }
+                if (!seen) {
+                    IDS[numIds++] = id;
+                }
+            }
+
+            for (int i = 0; i < numIds; i++) {
+                for (int j = i + 1; j < numIds; j++) {
+                    PAIR.set(Vocabulary.pair(IDS[i], IDS[j]));
+                    context.write(PAIR, ONE);
+                    PAIR.set(Vocabulary.pair(IDS[j], IDS[i]));
+                    context.write(PAIR, ONE);
+                }
+            }
+        }
+    }
+
+    private static class MyPackedCombiner extends Reducer<LongWritable, IntWritable, LongWritable, IntWritable> {
+        private static final IntWritable SUM = new IntWritable();
+
+        @Override
+        public void reduce(LongWritable key, Iterable<IntWritable> values, Context context)
+                throws IOException, InterruptedException {
+            int sum = 0;
+            for (IntWritable value : values) {
+                sum += value.get();
+            }
+            SUM.set(sum);
+            context.write(key, SUM);
+        }
+    }
+
+    private static class MyPackedReducer extends
+            Reducer<LongWritable, IntWritable, PairOfStrings, DoubleWritable> {
+        private static final PairOfStrings PAIR = new PairOfStrings();
+        private static final DoubleWritable PMI = new DoubleWritable();
+        private Vocabulary vocabulary;
+        private int threshold;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            vocabulary = Vocabulary.load(new File("./vocabulary"));
+            threshold = context.getConfiguration().getInt(PairsPMI.THRESHOLD,
+                    PairsPMI.DEFAULT_THRESHOLD);
+        }
+
+        @Override
+        public void reduce(LongWritable key, Iterable<IntWritable> values, Context context)
+                throws IOException, InterruptedException {
+            int sum = 0;
+            for (IntWritable value : values) {
+                sum += value.get();
+            }
+
+            if (sum >= threshold) {
+                int x = Vocabulary.left(key.get());
+                int y = Vocabulary.right(key.get());
+                double px = vocabulary.count(x);
+                double py = vocabulary.count(y);
+                PMI.set(Math.log10((sum / (px * py)) * vocabulary.numLines()));
+                PAIR.set(vocabulary.term(x), vocabulary.term(y));
+                context.write(PAIR, PMI);
+            }
+        }
+    }
+
+    // Top N of packed pairs, as in MyTopNReducer: pairs are sorted by their left id. Partners are only
+    // decoded if they make it into the heap.
+    private static class MyPackedTopNReducer extends
+            Reducer<LongWritable, IntWritable, Text, TopPartners> {
+        private static final Text WORD = new Text();
+        private TopPartners top;
+        private Vocabulary vocabulary;
+        private int threshold;
+        private int left = -1;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            vocabulary = Vocabulary.load(new File("./vocabulary"));
+            threshold = context.getConfiguration().getInt(PairsPMI.THRESHOLD,
+                    PairsPMI.DEFAULT_THRESHOLD);
+            top = new TopPartners(context.getConfiguration().getInt(PairsPMI.TOP_N, 1));
+        }
+
+        @Override
+        public void reduce(LongWritable key, Iterable<IntWritable> values, Context context)
+                throws IOException, InterruptedException {
+            int sum = 0;
+            for (IntWritable value : values) {
+                sum += value.get();
+            }
+
+            if (sum >= threshold) {
+                int x = Vocabulary.left(key.get());
+                int y = Vocabulary.right(key.get());
+                if (x != left) {
+                    flush(context);
+                    left = x;
+                }
+                double px = vocabulary.count(x);
+                double py = vocabulary.count(y);
+                float pmi = (float) Math.log10((sum / (px * py)) * vocabulary.numLines());
+                if (top.accepts(pmi)) {
+                    top.offer(vocabulary.term(y), pmi);
+                }
+            }
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            flush(context);
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            if (top.size() > 0) {
+                WORD.set(vocabulary.term(left));
+                context.write(WORD, top);
+            }
+            top.clear();
+        }
+    }
+
+    // Partitions by the left word, like MyPartitioner.
+    protected static class MyPackedPartitioner extends Partitioner<LongWritable, IntWritable> {
+        @Override
+        public int getPartition(LongWritable key, IntWritable value, int numReduceTasks) {
+            return (Vocabulary.left(key.get()) & Integer.MAX_VALUE) % numReduceTasks;
+        }
+    }
+
     /**
      * Creates an instance of this tool.
      */
@@ -155,6 +543,26 @@ public class CooccurrencePairs extends Configured implements Tool {
         @Option(name = "-reducers", metaVar = "[num]", required = false, usage = "number of reducers")
         public int numReducers = 1;
 
+        // Rejected: pairs are partitioned by their left word with MyPartitioner, which a plan of Text
+        // keys can't route. PairsPMI only applies it to its marginals job.
+        @Option(name = "-skewAware", usage = "not supported: pairs are partitioned by their left word")
+        boolean skewAware = false;
+
+        @Option(name = "-singlePass",
+                usage = "compute the marginals and the PMI of pairs in one job (see CooccurrencePairs)")
+        boolean singlePass = false;
+
+        @Option(name = "-packed",
+                usage = "shuffle pairs of frequent words as packed int ids instead of strings")
+        boolean packed = false;
+
+        @Option(name = "-threshold", metaVar = "[num]",
+                usage = "minimum co-occurrence count of the pairs to output (default 10)")
+        int threshold = PairsPMI.DEFAULT_THRESHOLD;
+
+        @Option(name = "-topN", metaVar = "[num]",
+                usage = "only write the num partners of highest PMI of every word, as a SequenceFile")
+        int topN = 0;
     }
 
     /**
@@ -176,11 +584,40 @@ public class CooccurrencePairs extends Configured implements Tool {
         LOG.info(" - input path: " + args.input);
         LOG.info(" - output path: " + args.output);
         LOG.info(" - number of reducers: " + args.numReducers);
+        LOG.info(" - single pass: " + args.singlePass);
+        LOG.info(" - packed: " + args.packed);
+        LOG.info(" - threshold: " + args.threshold);
+        LOG.info(" - top N: " + args.topN);
+
+        if (args.skewAware) {
+            System.err.println("-skewAware plans the partitions of Text keys, not of pairs: "
+                    + "it can't be used with this job");
+            parser.printUsage(System.err);
+            return -1;
+        }
+        if (args.singlePass && args.packed) {
+            System.err.println("-packed needs the vocabulary of the marginals pass: "
+                    + "it can't be combined with -singlePass");
+            return -1;
+        }
+        if (args.singlePass && args.topN > 0) {
+            System.err.println("-topN can't be combined with -singlePass");
+            return -1;
+        }
 
-        Job job = Job.getInstance(getConf());
+        if (args.singlePass) {
+            return runSinglePass(args);
+        }
 
+        Job job = Job.getInstance(getConf());
 
-        job.addCacheFile(new URI("/tmp/mergedLineCounts#mergedLineCounts"));
+        if (args.packed) {
+            job.addCacheFile(Pipeline.scratchCacheFile(getConf(), "vocabulary"));
+        } else {
+            job.addCacheFile(Pipeline.scratchCacheFile(getConf(), "mergedLineCounts"));
+            job.addCacheFile(Pipeline.scratchCacheFile(getConf(), "frequentWords"));
+        }
+        job.getConfiguration().setInt(PairsPMI.THRESHOLD, args.threshold);
 
         job.setJobName(CooccurrencePairs.class.getSimpleName());
         job.setJarByClass(CooccurrencePairs.class);
@@ -193,30 +630,113 @@ public class CooccurrencePairs extends Configured implements Tool {
         FileInputFormat.setInputPaths(job, new Path(args.input));
         FileOutputFormat.setOutputPath(job, new Path(args.output));
 
-        job.setMapOutputKeyClass(PairOfStrings.class);
+        job.setMapOutputKeyClass(args.packed ? LongWritable.class : PairOfStrings.class);
         job.setMapOutputValueClass(IntWritable.class);
         job.setOutputKeyClass(PairOfStrings.class);
         job.setOutputValueClass(DoubleWritable.class);
 
-        job.setMapperClass(MyMapper.class);
-        job.setCombinerClass(MyCombiner.class);
-        job.setReducerClass(MyReducer.class);
-        job.setPartitionerClass(MyPartitioner.class);
+        if (args.packed) {
+            job.setMapperClass(MyPackedMapper.class);
+            job.setCombinerClass(MyPackedCombiner.class);
+            job.setReducerClass(args.topN > 0 ? MyPackedTopNReducer.class : MyPackedReducer.class);
+            job.setPartitionerClass(MyPackedPartitioner.class);
+        } else {
+            job.setMapperClass(MyMapper.class);
+            job.setCombinerClass(MyCombiner.class);
+            job.setReducerClass(args.topN > 0 ? MyTopNReducer.class : MyReducer.class);
+            job.setPartitionerClass(MyPartitioner.class);
+        }
 
         job.setOutputFormatClass(TextOutputFormat.class);
+        if (args.topN > 0) {
+            PairsPMI.configureTopN(job, args.topN);
+        }
 
+        setMemory(job);
+
+        EmbeddedMode.configure(job);
+
+        long startTime = System.currentTimeMillis();
+        boolean succeeded = job.waitForCompletion(true);
+        System.out.println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+
+        return succeeded ? 0 : 1;
+    }
+
+    private static void setMemory(Job job) {
         job.getConfiguration().setInt("mapred.max.split.size", 1024 * 1024 * 64);
         job.getConfiguration().set("mapreduce.map.memory.mb", "3072");
         job.getConfiguration().set("mapreduce.map.java.opts", "-Xmx3072m");
         job.getConfiguration().set("mapreduce.reduce.memory.mb", "3072");
         job.getConfiguration().set("mapreduce.reduce.java.opts", "-Xmx3072m");
+    }
 
+    // -singlePass: the pairs job over the corpus, the merge of its side files, then the PMI job
+    // over the pairs that reach the threshold.
+    private int runSinglePass(Args args) throws Exception {
+        Configuration conf = getConf();
+        FileSystem fs = FileSystem.get(conf);
+        Path scratch = Pipeline.scratch(conf);
+        Path marginalsPath = new Path(scratch, "singlePassSideFiles");
+        Path pairsPath = new Path(scratch, "singlePassPairs");
+        Path dictionary = new Path(scratch, "singlePassMarginals");
+        fs.delete(marginalsPath, true);
+        fs.delete(pairsPath, true);
+        fs.delete(new Path(args.output), true);
 
         long startTime = System.currentTimeMillis();
-        job.waitForCompletion(true);
-        System.out.println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+        try {
+            Job job = Job.getInstance(conf);
+            job.setJobName(CooccurrencePairs.class.getSimpleName() + " (single pass)");
+            job.setJarByClass(CooccurrencePairs.class);
+            job.getConfiguration().set(MARGINALS_PATH, marginalsPath.toString());
+            job.getConfiguration().setInt(PairsPMI.THRESHOLD, args.threshold);
+            // Duplicate attempts of a map task would only race for its side file.
+            job.getConfiguration().setBoolean("mapreduce.map.speculative", false);
+            job.setNumReduceTasks(args.numReducers);
+
+            FileInputFormat.setInputPaths(job, new Path(args.input));
+            FileOutputFormat.setOutputPath(job, pairsPath);
+            job.setMapOutputKeyClass(PairOfStrings.class);
+            job.setMapOutputValueClass(IntWritable.class);
+            job.setOutputKeyClass(PairOfStrings.class);
+            job.setOutputValueClass(PairOfInts.class);
+            job.setOutputFormatClass(SequenceFileOutputFormat.class);
+            job.setMapperClass(MySinglePassMapper.class);
+            job.setCombinerClass(MyCombiner.class);
+            job.setReducerClass(MySinglePassReducer.class);
+            job.setPartitionerClass(MyPartitioner.class);
+            setMemory(job);
+            EmbeddedMode.configure(job);
+            if (!job.waitForCompletion(true)) {
+                return 1;
+            }
 
-        return 0;
+            // Merged once, here: the PMI mappers only map the result.
+            int words = CountDictionary.mergeTables(fs, marginalsPath, args.threshold, dictionary);
+            LOG.info("Merged the marginals of " + words + " words reaching the threshold");
+
+            Job pmi = Job.getInstance(conf);
+            pmi.setJobName(CooccurrencePairs.class.getSimpleName() + " (single pass PMI)");
+            pmi.setJarByClass(CooccurrencePairs.class);
+            pmi.addCacheFile(Pipeline.scratchCacheFile(conf, "singlePassMarginals"));
+            pmi.setNumReduceTasks(0);
+
+            FileInputFormat.setInputPaths(pmi, pairsPath);
+            FileOutputFormat.setOutputPath(pmi, new Path(args.output));
+            pmi.setInputFormatClass(SequenceFileInputFormat.class);
+            pmi.setOutputKeyClass(PairOfStrings.class);
+            pmi.setOutputValueClass(DoubleWritable.class);
+            pmi.setOutputFormatClass(TextOutputFormat.class);
+            pmi.setMapperClass(MySinglePassPmiMapper.class);
+            EmbeddedMode.configure(pmi);
+            return pmi.waitForCompletion(true) ? 0 : 1;
+        } finally {
+            System.out.println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+            fs.delete(marginalsPath, true);
+            fs.delete(pairsPath, true);
+            fs.delete(dictionary, false);
+        }
     }
 
 }
\ No newline at end of file
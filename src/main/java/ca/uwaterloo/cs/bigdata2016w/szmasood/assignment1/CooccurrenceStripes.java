@@ -1,7 +1,6 @@
 package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment1;
 
 import java.io.*;
-import java.net.URI;
 import java.util.*;
 
 import org.apache.hadoop.conf.Configured;
@@ -27,44 +26,75 @@ import tl.lin.data.map.HMapStFW;
 import tl.lin.data.map.HMapStIW;
 import tl.lin.data.map.MapKI;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.ByteCountTable;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.CountDictionary;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.EmbeddedMode;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.Pipeline;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.IntStripe;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SkewAwarePartitioner;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.TextTokenizer;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.TopPartners;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.Vocabulary;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.WordBloomFilter;
+
 
 public class CooccurrenceStripes extends Configured implements Tool {
     private static final Logger LOG = Logger.getLogger(CooccurrenceStripes.class);
 
+    // Words that don't reach the threshold are pruned, as in CooccurrencePairs: they get no stripe
+    // and appear in none.
     private static class MyMapper extends Mapper<LongWritable, Text, Text, HMapStIW> {
         private static final HMapStIW MAP = new HMapStIW();
         private static final Text KEY = new Text();
+        private static final TextTokenizer TOKENIZER = new TextTokenizer();
+        private WordBloomFilter frequentWords;
+        private final long[] pruning = new long[PairsPMI.PRUNING.values().length];
+
+        @Override
+        public void setup(Context context) throws IOException {
+            frequentWords = WordBloomFilter.load(new File("./frequentWords2"));
+        }
 
         @Override
         public void map(LongWritable key, Text value, Context context)
                 throws IOException, InterruptedException {
-            String line = ((Text) value).toString();
+            TOKENIZER.reset(value);
 
             List<String> tokens = new ArrayList<String>();
-            StringTokenizer itr = new StringTokenizer(line);
             int numWords = 0;
-            while (itr.hasMoreTokens() && numWords < 100) {
-                String w = itr.nextToken().toLowerCase().replaceAll("(^[^a-z]+|[^a-z]+$)", "");
-                if (w.length() == 0) continue;
+            while (numWords < 100 && TOKENIZER.next()) {
+                String w = TOKENIZER.token();
                 if (!tokens.contains(w)) {
                     tokens.add(w);
                 }
                 numWords ++;
             }
 
-
+            List<String> frequent = new ArrayList<String>(tokens.size());
             for (int i = 0; i < tokens.size(); i++) {
+                KEY.set(tokens.get(i));
+                if (frequentWords.mightContain(KEY.getBytes(), 0, KEY.getLength())) {
+                    frequent.add(tokens.get(i));
+                }
+            }
+            PairsPMI.tallyPruning(pruning, tokens.size(), frequent.size());
+
+            for (int i = 0; i < frequent.size(); i++) {
                 MAP.clear();
-                for (int j = 0; j < tokens.size(); j++) {
+                for (int j = 0; j < frequent.size(); j++) {
                     if (i == j) continue;
 
-                    MAP.increment(tokens.get(j));
+                    MAP.increment(frequent.get(j));
                 }
-                KEY.set(tokens.get(i));
+                KEY.set(frequent.get(i));
                 context.write(KEY,MAP);
             }
         }
 
+        @Override
+        public void cleanup(Context context) {
+            PairsPMI.countPruning(context, pruning);
+        }
     }
 
     private static class MyCombiner extends Reducer<Text, HMapStIW, Text, HMapStIW> {
@@ -89,24 +119,21 @@ public class CooccurrenceStripes extends Configured implements Tool {
 
     private static class MyReducer extends Reducer<Text, HMapStIW, Text, HMapStFW> {
 
-        private static HashMap<String,Integer> wordCounts = new HashMap<>();
+        private static CountDictionary wordCounts;
+        private static int numLines;
+        private int threshold;
 
         @Override
         protected void setup(Context context)
                 throws IOException, InterruptedException {
+            threshold = context.getConfiguration().getInt(PairsPMI.THRESHOLD,
+                    PairsPMI.DEFAULT_THRESHOLD);
             if (context.getCacheFiles() != null
                     && context.getCacheFiles().length > 0) {
 
-                InputStream in = new FileInputStream(new File("./mergedLineCounts2"));
-                BufferedReader reader = new BufferedReader(new InputStreamReader(in,"UTF-8"));
-                String line;
-
-                while ((line = reader.readLine()) != null) {
-                    String [] split = line.split("\t");
-                    wordCounts.put(split[0],Integer.parseInt(split[1]));
-                }
-
-
+                // Memory-mapped: nothing is parsed or copied onto the heap.
+                wordCounts = CountDictionary.open(new File("./mergedLineCounts2"));
+                numLines = wordCounts.get("numLines*");
             }
 
             super.setup(context);
@@ -125,14 +152,14 @@ public class CooccurrenceStripes extends Configured implements Tool {
             HMapStFW writeMap = new HMapStFW();
 
             double pmi = 0.0;
+            int px = wordCounts.get(key);
             for (MapKI.Entry<String> entry : map.entrySet()) {
                 String k = entry.getKey();
 
-                if (map.get(k) >= 10) {
-                    if (wordCounts.containsKey(key.toString()) && wordCounts.containsKey(k)) {
-                        int px = wordCounts.get(key.toString());
-                        int py = wordCounts.get(k);
-                        pmi = Math.log10 (((double)(map.get(k))/(px * py)) * wordCounts.get("numLines*"));
+                if (map.get(k) >= threshold) {
+                    int py = wordCounts.get(k);
+                    if (px != 0 && py != 0) {
+                        pmi = Math.log10 (((double)(map.get(k))/((double) px * py)) * numLines);
                         writeMap.put(k, (float) pmi);
                     }
                 }
@@ -143,6 +170,261 @@ public class CooccurrenceStripes extends Configured implements Tool {
         }
     }
 
+    // In-mapper combining (-imc): a mapper keeps one stripe per left word across its whole split and
+    // emits it when the split ends, or when the stripes outgrow the budget of ByteCountTable.BUDGET.
+    // Words are the dense ids of the vocabulary built by StripesPMI, so the stripes are primitive
+    // int maps, found by indexing an array with the left id. Words without an id don't reach the
+    // threshold and are pruned.
+    private static class MyImcMapper extends Mapper<LongWritable, Text, IntWritable, IntStripe> {
+        private static final IntWritable KEY = new IntWritable();
+        private static final TextTokenizer TOKENIZER = new TextTokenizer();
+        private static final int[] IDS = new int[100];
+        private Vocabulary vocabulary;
+        private IntStripe[] stripes;
+        // Ids of the non-null stripes, in order of creation.
+        private int[] live;
+        private int numLive = 0;
+        private long bytes = 0;
+        private long peakBytes = 0;
+        private long budget;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            vocabulary = Vocabulary.load(new File("./vocabulary2"));
+            stripes = new IntStripe[vocabulary.size()];
+            live = new int[vocabulary.size()];
+            budget = context.getConfiguration().getLong(ByteCountTable.BUDGET,
+                    ByteCountTable.DEFAULT_BUDGET);
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            TOKENIZER.reset(value);
+
+            int numIds = 0;
+            int numWords = 0;
+            while (numWords < 100 && TOKENIZER.next()) {
+                int id = vocabulary.id(TOKENIZER.bytes(), 0, TOKENIZER.length());
+                numWords++;
+                if (id < 0) {
+                    continue;
+                }
+                boolean seen = false;
+                for (int i = 0; i < numIds && !seen; i++) {
+                    seen = IDS[i] == id;
+                }
+                if (!seen) {
+                    IDS[numIds++] = id;
+                }
+            }
+            if (numIds < 2) {
+                return;
+            }
+
+            for (int i = 0; i < numIds; i++) {
+                IntStripe stripe = stripes[IDS[i]];
+                if (stripe == null) {
+                    stripe = new IntStripe();
+                    stripes[IDS[i]] = stripe;
+                    live[numLive++] = IDS[i];
+                } else {
+                    bytes -= stripe.memoryBytes();
+                }
+                for (int j = 0; j < numIds; j++) {
+                    if (i != j) {
+                        stripe.increment(IDS[j]);
+                    }
+                }
+                bytes += stripe.memoryBytes();
+            }
+
+            peakBytes = Math.max(peakBytes, bytes);
+            if (bytes >= budget) {
+                context.getCounter(ByteCountTable.Counters.FLUSHES).increment(1);
+                flush(context);
+            }
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            flush(context);
+            context.getCounter(ByteCountTable.Counters.PEAK_BYTES).increment(peakBytes);
+        }
+
+        // Emits every stripe and drops them all, so that the memory is reclaimed.
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (int i = 0; i < numLive; i++) {
+                KEY.set(live[i]);
+                context.write(KEY, stripes[live[i]]);
+                stripes[live[i]] = null;
+            }
+            numLive = 0;
+            bytes = 0;
+        }
+    }
+
+    private static class MyImcCombiner extends Reducer<IntWritable, IntStripe, IntWritable, IntStripe> {
+        private static final IntStripe SUM = new IntStripe();
+
+        @Override
+        public void reduce(IntWritable key, Iterable<IntStripe> values, Context context)
+                throws IOException, InterruptedException {
+            SUM.clear();
+            for (IntStripe stripe : values) {
+                SUM.plus(stripe);
+            }
+            context.write(key, SUM);
+        }
+    }
+
+    private static class MyImcReducer extends Reducer<IntWritable, IntStripe, Text, HMapStFW> {
+        private static final IntStripe SUM = new IntStripe();
+        private static final Text KEY = new Text();
+        private Vocabulary vocabulary;
+        private int threshold;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            vocabulary = Vocabulary.load(new File("./vocabulary2"));
+            threshold = context.getConfiguration().getInt(PairsPMI.THRESHOLD,
+                    PairsPMI.DEFAULT_THRESHOLD);
+        }
+
+        @Override
+        public void reduce(IntWritable key, Iterable<IntStripe> values, Context context)
+                throws IOException, InterruptedException {
+            SUM.clear();
+            for (IntStripe stripe : values) {
+                SUM.plus(stripe);
+            }
+
+            HMapStFW writeMap = new HMapStFW();
+            double px = vocabulary.count(key.get());
+            for (int slot = 0; slot < SUM.capacity(); slot++) {
+                int y = SUM.keyAt(slot);
+                if (y != IntStripe.EMPTY && SUM.countAt(slot) >= threshold) {
+                    double py = vocabulary.count(y);
+                    double pmi = Math.log10((SUM.countAt(slot) / (px * py)) * vocabulary.numLines());
+                    writeMap.put(vocabulary.term(y), (float) pmi);
+                }
+            }
+            if (writeMap.size() > 0) {
+                KEY.set(vocabulary.term(key.get()));
+                context.write(KEY, writeMap);
+            }
+        }
+    }
+
+    // Top N (-topN): every stripe holds all the partners of its word, so the best ones are picked
+    // from it directly.
+    private static class MyTopNReducer extends Reducer<Text, HMapStIW, Text, TopPartners> {
+        private TopPartners top;
+        private CountDictionary wordCounts;
+        private int numLines;
+        private int threshold;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            wordCounts = CountDictionary.open(new File("./mergedLineCounts2"));
+            numLines = wordCounts.get("numLines*");
+            threshold = context.getConfiguration().getInt(PairsPMI.THRESHOLD,
+                    PairsPMI.DEFAULT_THRESHOLD);
+            top = new TopPartners(context.getConfiguration().getInt(PairsPMI.TOP_N, 1));
+        }
+
+        @Override
+        public void reduce(Text key, Iterable<HMapStIW> values, Context context)
+                throws IOException, InterruptedException {
+            HMapStIW map = new HMapStIW();
+            for (HMapStIW value : values) {
+                map.plus(value);
+            }
+
+            top.clear();
+            int px = wordCounts.get(key);
+            for (MapKI.Entry<String> entry : map.entrySet()) {
+                int count = entry.getValue();
+                if (count >= threshold) {
+                    int py = wordCounts.get(entry.getKey());
+                    if (px != 0 && py != 0) {
+                        top.offer(entry.getKey(),
+                                (float) Math.log10(((double) count / ((double) px * py)) * numLines));
+                    }
+                }
+            }
+            if (top.size() > 0) {
+                context.write(key, top);
+            }
+        }
+    }
+
+    private static class MyImcTopNReducer extends Reducer<IntWritable, IntStripe, Text, TopPartners> {
+        private static final IntStripe SUM = new IntStripe();
+        private static final Text KEY = new Text();
+        private TopPartners top;
+        private Vocabulary vocabulary;
+        private int threshold;
+
+        @Override
+        protected void setup(Context context) throws IOException {
+            vocabulary = Vocabulary.load(new File("./vocabulary2"));
+            threshold = context.getConfiguration().getInt(PairsPMI.THRESHOLD,
+                    PairsPMI.DEFAULT_THRESHOLD);
+            top = new TopPartners(context.getConfiguration().getInt(PairsPMI.TOP_N, 1));
+        }
+
+        @Override
+        public void reduce(IntWritable key, Iterable<IntStripe> values, Context context)
+                throws IOException, InterruptedException {
+            SUM.clear();
+            for (IntStripe stripe : values) {
+                SUM.plus(stripe);
+            }
+
+            top.clear();
+            double px = vocabulary.count(key.get());
+            for (int slot = 0; slot < SUM.capacity(); slot++) {
+                int y = SUM.keyAt(slot);
+                if (y != IntStripe.EMPTY && SUM.countAt(slot) >= threshold) {
+                    double py = vocabulary.count(y);
+                    float pmi = (float) Math.log10(
+                            (SUM.countAt(slot) / (px * py)) * vocabulary.numLines());
+                    if (top.accepts(pmi)) {
+                        top.offer(vocabulary.term(y), pmi);
+                    }
+                }
+            }
+            if (top.size() > 0) {
+                KEY.set(vocabulary.term(key.get()));
+                context.write(KEY, top);
+            }
+        }
+    }
+
+    // Replays the stripes the mappers emit, for -skewAware, weighted by their number of entries.
+    private static class StripeSampler extends SkewAwarePartitioner.KeySampler {
+        private final TextTokenizer tokenizer = new TextTokenizer();
+
+        @Override
+        public void sample(Text line) {
+            tokenizer.reset(line);
+
+            List<String> tokens = new ArrayList<String>();
+            int numWords = 0;
+            while (numWords < 100 && tokenizer.next()) {
+                String w = tokenizer.token();
+                if (!tokens.contains(w)) {
+                    tokens.add(w);
+                }
+                numWords++;
+            }
+            for (int i = 0; i < tokens.size(); i++) {
+                emit(tokens.get(i), tokens.size() - 1);
+            }
+        }
+    }
+
     /**
      * Creates an instance of this tool.
      */
@@ -157,6 +439,21 @@ public class CooccurrenceStripes extends Configured implements Tool {
 
         @Option(name = "-reducers", metaVar = "[num]", required = false, usage = "number of reducers")
         public int numReducers = 1;
+
+        @Option(name = "-skewAware", usage = "sample the input to spread the heaviest keys over the reducers")
+        boolean skewAware = false;
+
+        @Option(name = "-imc",
+                usage = "combine the stripes of a whole split in the mapper, keyed by int term ids")
+        boolean imc = false;
+
+        @Option(name = "-threshold", metaVar = "[num]",
+                usage = "minimum co-occurrence count of the pairs to output (default 10)")
+        int threshold = PairsPMI.DEFAULT_THRESHOLD;
+
+        @Option(name = "-topN", metaVar = "[num]",
+                usage = "only write the num partners of highest PMI of every word, as a SequenceFile")
+        int topN = 0;
     }
 
     /**
@@ -178,12 +475,27 @@ public class CooccurrenceStripes extends Configured implements Tool {
         LOG.info(" - input path: " + args.input);
         LOG.info(" - output path: " + args.output);
         LOG.info(" - number of reducers: " + args.numReducers);
+        LOG.info(" - threshold: " + args.threshold);
+        LOG.info(" - in-mapper combining: " + args.imc);
+        LOG.info(" - top N: " + args.topN);
+
+        if (args.imc && args.skewAware) {
+            System.err.println("-skewAware plans the partitions of words, not of ids: "
+                    + "it can't be combined with -imc");
+            return -1;
+        }
 
         Job job = Job.getInstance(getConf());
         job.setJobName(CooccurrenceStripes.class.getSimpleName());
         job.setJarByClass(CooccurrenceStripes.class);
 
-        job.addCacheFile(new URI("/tmp/mergedLineCounts2#mergedLineCounts2"));
+        job.addCacheFile(Pipeline.scratchCacheFile(getConf(), "mergedLineCounts2"));
+        if (args.imc) {
+            job.addCacheFile(Pipeline.scratchCacheFile(getConf(), "vocabulary2"));
+        } else {
+            job.addCacheFile(Pipeline.scratchCacheFile(getConf(), "frequentWords2"));
+        }
+        job.getConfiguration().setInt(PairsPMI.THRESHOLD, args.threshold);
 
         // Delete the output directory if it exists already.
         Path outputDir = new Path(args.output);
@@ -194,14 +506,26 @@ public class CooccurrenceStripes extends Configured implements Tool {
         FileInputFormat.setInputPaths(job, new Path(args.input));
         FileOutputFormat.setOutputPath(job, new Path(args.output));
 
-        job.setMapOutputKeyClass(Text.class);
-        job.setMapOutputValueClass(HMapStIW.class);
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(HMapStFW.class);
 
-        job.setMapperClass(MyMapper.class);
-        job.setCombinerClass(MyCombiner.class);
-        job.setReducerClass(MyReducer.class);
+        if (args.imc) {
+            job.setMapOutputKeyClass(IntWritable.class);
+            job.setMapOutputValueClass(IntStripe.class);
+            job.setMapperClass(MyImcMapper.class);
+            job.setCombinerClass(MyImcCombiner.class);
+            job.setReducerClass(args.topN > 0 ? MyImcTopNReducer.class : MyImcReducer.class);
+        } else {
+            job.setMapOutputKeyClass(Text.class);
+            job.setMapOutputValueClass(HMapStIW.class);
+            job.setMapperClass(MyMapper.class);
+            job.setCombinerClass(MyCombiner.class);
+            job.setReducerClass(args.topN > 0 ? MyTopNReducer.class : MyReducer.class);
+        }
+
+        if (args.topN > 0) {
+            PairsPMI.configureTopN(job, args.topN);
+        }
 
         job.getConfiguration().setInt("mapred.max.split.size", 1024 * 1024 * 64);
         job.getConfiguration().set("mapreduce.map.memory.mb", "3072");
@@ -209,8 +533,20 @@ public class CooccurrenceStripes extends Configured implements Tool {
         job.getConfiguration().set("mapreduce.reduce.memory.mb", "3072");
         job.getConfiguration().set("mapreduce.reduce.java.opts", "-Xmx3072m");
 
+        if (args.skewAware) {
+            SkewAwarePartitioner.plan(job, new StripeSampler());
+            job.setPartitionerClass(SkewAwarePartitioner.class);
+        }
+
+        EmbeddedMode.configure(job);
+
         long startTime = System.currentTimeMillis();
-        job.waitForCompletion(true);
+        if (!job.waitForCompletion(true)) {
+            return 1;
+        }
+        if (job.getNumReduceTasks() > 1) {
+            SkewAwarePartitioner.logReducerLoad(job);
+        }
         System.out.println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
 
         return 0;
@@ -9,31 +9,43 @@ package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment1;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.StringTokenizer;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.Tool;
-import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.ParserProperties;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.CountDictionary;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.EmbeddedMode;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.Pipeline;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SkewAwarePartitioner;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.TextTokenizer;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.TopPartners;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.Vocabulary;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.WordBloomFilter;
+
 
 /**
  * Counts bigrams.
@@ -41,21 +53,67 @@ import org.kohsuke.args4j.ParserProperties;
 public class PairsPMI extends Configured implements Tool {
     private static final Logger LOG = Logger.getLogger(PairsPMI.class);
 
+    // Minimum co-occurrence count of the pairs written out, shared by the marginals and the pairs
+    // jobs of both implementations. A pair can't co-occur more often than either of its words, so
+    // words below it are dropped from the marginals and pruned by the pairs mappers.
+    public static final String THRESHOLD = "pmi.threshold";
+    public static final int DEFAULT_THRESHOLD = 10;
+
+    // Number of partners of highest PMI written per word by the reducers of the pairs and stripes
+    // jobs, with -topN; 0 writes all of them, as text.
+    public static final String TOP_N = "pmi.top.n";
+
+    // Of the Bloom filter of the words that reach the threshold, which the pairs and stripes mappers
+    // test tokens against.
+    static final double FALSE_POSITIVE_RATE = 0.01;
+
+    // Tallied by the pairs and stripes mappers: distinct words of a line they kept and pruned, and
+    // the co-occurrences (pairs, or stripe entries) they emitted and pruned.
+    public static enum PRUNING {
+        WORDS_KEPT, WORDS_PRUNED, EMITTED, PRUNED
+    }
+
+    // Tallies a line with the given number of distinct words, of which kept were kept: either way
+    // every ordered pair of distinct words is a co-occurrence. Mappers add their tallies to the
+    // counters once, in cleanup.
+    static void tallyPruning(long[] tally, int distinct, int kept) {
+        tally[PRUNING.WORDS_KEPT.ordinal()] += kept;
+        tally[PRUNING.WORDS_PRUNED.ordinal()] += distinct - kept;
+        tally[PRUNING.EMITTED.ordinal()] += (long) kept * (kept - 1);
+        tally[PRUNING.PRUNED.ordinal()] += (long) distinct * (distinct - 1) - (long) kept * (kept - 1);
+    }
+
+    static void countPruning(TaskAttemptContext context, long[] tally) {
+        for (PRUNING counter : PRUNING.values()) {
+            context.getCounter(counter).increment(tally[counter.ordinal()]);
+        }
+    }
+
+    // Sets up a pairs or stripes job to write the top n partners of every word: (Text, TopPartners)
+    // records, in block-compressed SequenceFiles.
+    static void configureTopN(Job job, int n) {
+        job.getConfiguration().setInt(TOP_N, n);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(TopPartners.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setCompressOutput(job, true);
+        SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+    }
+
     protected static class MyMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
         private static final IntWritable ONE = new IntWritable(1);
         private static final Text WORD = new Text();
+        private static final TextTokenizer TOKENIZER = new TextTokenizer();
 
         @Override
         public void map(LongWritable key, Text value, Context context)
                 throws IOException, InterruptedException {
-            String line = ((Text) value).toString();
+            TOKENIZER.reset(value);
 
             List<String> tokens = new ArrayList<String>();
-            StringTokenizer itr = new StringTokenizer(line);
             int numWords = 0;
-            while (itr.hasMoreTokens() && numWords < 100) {
-                String w = itr.nextToken().toLowerCase().replaceAll("(^[^a-z]+|[^a-z]+$)", "");
-                if (w.length() == 0) continue;
+            while (numWords < 100 && TOKENIZER.next()) {
+                String w = TOKENIZER.token();
                 if (!tokens.contains(w)) {
                     tokens.add(w);
                 }
@@ -95,6 +153,12 @@ public class PairsPMI extends Configured implements Tool {
 
     protected static class MyReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
         private final static IntWritable SUM = new IntWritable();
+        private int threshold;
+
+        @Override
+        protected void setup(Context context) {
+            threshold = context.getConfiguration().getInt(THRESHOLD, DEFAULT_THRESHOLD);
+        }
 
         @Override
         public void reduce(Text key, Iterable<IntWritable> values, Context context) throws IOException,
@@ -104,13 +168,40 @@ public class PairsPMI extends Configured implements Tool {
             while (iter.hasNext()) {
                 sum += iter.next().get();
             }
-            if (sum >= 10) {
+            if (sum >= threshold) {
                 SUM.set(sum);
                 context.write(key, SUM);
             }
         }
     }
 
+    // Replays the keys the line count mappers emit, for -skewAware: every distinct word among the
+    // first 100 of a line, plus the line count key, which is as heavy as it gets.
+    protected static class LineSampler extends SkewAwarePartitioner.KeySampler {
+        private final TextTokenizer tokenizer = new TextTokenizer();
+
+        @Override
+        public void sample(Text line) {
+            tokenizer.reset(line);
+
+            List<String> tokens = new ArrayList<String>();
+            int numWords = 0;
+            while (numWords < 100 && tokenizer.next()) {
+                String w = tokenizer.token();
+                if (!tokens.contains(w)) {
+                    tokens.add(w);
+                }
+                numWords++;
+            }
+            for (int i = 0; i < tokens.size(); i++) {
+                emit(tokens.get(i), 1);
+            }
+            if (tokens.size() != 0) {
+                emit("numLines*", 1);
+            }
+        }
+    }
+
     /**
      * Creates an instance of this tool.
      */
@@ -125,6 +216,26 @@ public class PairsPMI extends Configured implements Tool {
 
         @Option(name = "-reducers", metaVar = "[num]", required = false, usage = "number of reducers")
         public int numReducers = 1;
+
+        @Option(name = "-skewAware",
+                usage = "sample the input to spread the heaviest words of the marginals job evenly")
+        boolean skewAware = false;
+
+        @Option(name = "-singlePass",
+                usage = "compute the marginals and the PMI of pairs in one job (see CooccurrencePairs)")
+        boolean singlePass = false;
+
+        @Option(name = "-packed",
+                usage = "shuffle pairs of frequent words as packed int ids instead of strings")
+        boolean packed = false;
+
+        @Option(name = "-threshold", metaVar = "[num]",
+                usage = "minimum co-occurrence count of the pairs to output (default 10)")
+        int threshold = PairsPMI.DEFAULT_THRESHOLD;
+
+        @Option(name = "-topN", metaVar = "[num]",
+                usage = "only write the num partners of highest PMI of every word, as a SequenceFile")
+        int topN = 0;
     }
 
     /**
@@ -146,15 +257,24 @@ public class PairsPMI extends Configured implements Tool {
         LOG.info(" - input path: " + args.input);
         LOG.info(" - output path: " + args.output);
         LOG.info(" - num reducers: " + args.numReducers);
+        LOG.info(" - single pass: " + args.singlePass);
+        LOG.info(" - packed: " + args.packed);
+        LOG.info(" - threshold: " + args.threshold);
+
+        if (args.singlePass) {
+            // CooccurrencePairs computes the marginals along with the pairs.
+            return 0;
+        }
 
         Job job = Job.getInstance(getConf());
         job.setJobName(PairsPMI.class.getSimpleName());
         job.setJarByClass(PairsPMI.class);
 
         job.setNumReduceTasks(args.numReducers);
+        job.getConfiguration().setInt(THRESHOLD, args.threshold);
 
         FileInputFormat.setInputPaths(job, new Path(args.input));
-        FileOutputFormat.setOutputPath(job, new Path("/tmp/lineCounts"));
+        FileOutputFormat.setOutputPath(job, new Path(Pipeline.scratch(getConf()), "lineCounts"));
 
         job.setMapOutputKeyClass(Text.class);
         job.setMapOutputValueClass(IntWritable.class);
@@ -167,10 +287,10 @@ public class PairsPMI extends Configured implements Tool {
         job.setReducerClass(MyReducer.class);
 
         // Delete the output directory if it exists already.
-        Path outputDir = new Path("/tmp/lineCounts");
+        Path outputDir = new Path(Pipeline.scratch(getConf()), "lineCounts");
         FileSystem.get(getConf()).delete(outputDir, true);
 
-        Path mergedOutputDir = new Path("/tmp/mergedLineCounts");
+        Path mergedOutputDir = new Path(Pipeline.scratch(getConf()), "mergedLineCounts");
         FileSystem.get(getConf()).delete(mergedOutputDir, true);
 
 
@@ -181,14 +301,33 @@ public class PairsPMI extends Configured implements Tool {
         job.getConfiguration().set("mapreduce.reduce.java.opts", "-Xmx3072m");
 
 
+        if (args.skewAware) {
+            SkewAwarePartitioner.plan(job, new LineSampler());
+            job.setPartitionerClass(SkewAwarePartitioner.class);
+        }
+
+        EmbeddedMode.configure(job);
+
         long startTime = System.currentTimeMillis();
-        job.waitForCompletion(true);
+        if (!job.waitForCompletion(true)) {
+            return 1;
+        }
+        if (job.getNumReduceTasks() > 1) {
+            SkewAwarePartitioner.logReducerLoad(job);
+        }
 
         FileSystem fs = FileSystem.get(getConf());
-        Path srcPath = new Path("/tmp/lineCounts");
-        Path dstPath = new Path("/tmp/mergedLineCounts");
-
-        FileUtil.copyMerge(fs, srcPath, fs, dstPath, false, getConf(), null);
+        Path srcPath = new Path(Pipeline.scratch(getConf()), "lineCounts");
+        Path dstPath = new Path(Pipeline.scratch(getConf()), "mergedLineCounts");
+
+        // The reducers of the second job memory-map the merged counts instead of parsing them.
+        CountDictionary.build(fs, srcPath, dstPath);
+        int frequent = WordBloomFilter.build(fs, srcPath, "numLines*", args.threshold,
+                FALSE_POSITIVE_RATE, new Path(Pipeline.scratch(getConf()), "frequentWords"));
+        LOG.info(frequent + " words reach the threshold");
+        if (args.packed) {
+            Vocabulary.build(fs, srcPath, "numLines*", args.threshold, new Path(Pipeline.scratch(getConf()), "vocabulary"));
+        }
 
         System.out.println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
 
@@ -196,11 +335,33 @@ public class PairsPMI extends Configured implements Tool {
     }
 
     /**
-     * Dispatches command-line arguments to the tool via the {@code ToolRunner}.
+     * Runs the marginals and then the pairs job as a {@link Pipeline}, so that concurrent runs
+     * get their own intermediate files. A rerun on unchanged input with the same arguments finds
+     * the output up to date and skips both jobs.
      */
-    public static void main(String[] args) throws Exception {
-        ToolRunner.run(new PairsPMI(), args);
-        ToolRunner.run(new CooccurrencePairs(), args);
+    public static void main(String[] argv) throws Exception {
+        Configuration conf = new Configuration();
+        String[] rest = new GenericOptionsParser(conf, argv).getRemainingArgs();
+        Args args = new Args();
+        CmdLineParser parser = new CmdLineParser(args, ParserProperties.defaults().withUsageWidth(100));
+        try {
+            parser.parseArgument(rest);
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            parser.printUsage(System.err);
+            System.exit(-1);
+        }
+
+        // -skewAware only applies to the marginals job: CooccurrencePairs rejects it.
+        List<String> pairsArgs = new ArrayList<String>(Arrays.asList(rest));
+        pairsArgs.remove("-skewAware");
+
+        Pipeline pipeline = new Pipeline(conf, PairsPMI.class.getSimpleName());
+        pipeline.stage("marginals", new PairsPMI(), rest);
+        pipeline.stage("pairs", new CooccurrencePairs(), pairsArgs.toArray(new String[pairsArgs.size()]))
+                .after("marginals")
+                .inputs(args.input).output(args.output);
+        System.exit(pipeline.run());
     }
 }
 
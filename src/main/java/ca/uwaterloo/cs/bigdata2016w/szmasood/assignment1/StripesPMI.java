@@ -9,15 +9,12 @@ package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment1;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.StringTokenizer;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
@@ -29,32 +26,47 @@ import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.Tool;
-import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.ParserProperties;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.ByteCountTable;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.CountDictionary;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.EmbeddedMode;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.Pipeline;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SkewAwarePartitioner;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.TextTokenizer;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.Vocabulary;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.WordBloomFilter;
+
 
 public class StripesPMI  extends Configured implements Tool {
     private static final Logger LOG = Logger.getLogger(StripesPMI.class);
 
     protected static class MyMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
-        private final HashMap<String, Integer> counts = new HashMap<>();
+        private static final TextTokenizer TOKENIZER = new TextTokenizer();
+        private static final Text WORD = new Text();
+        private static final byte[] NUM_LINES = "numLines*".getBytes();
+        private ByteCountTable counts;
+
+        @Override
+        public void setup(Context context) {
+            counts = new ByteCountTable(context);
+        }
 
         @Override
         public void map(LongWritable key, Text value, Context context)
                 throws IOException, InterruptedException {
-            String line = ((Text) value).toString();
-            List<String> tokens = new ArrayList<String>();
-            StringTokenizer itr = new StringTokenizer(line);
+            TOKENIZER.reset(value);
 
+            List<String> tokens = new ArrayList<String>();
             int numWords = 0;
-            while (itr.hasMoreTokens() && numWords < 100) {
-                String w = itr.nextToken().toLowerCase().replaceAll("(^[^a-z]+|[^a-z]+$)", "");
-                if (w.length() == 0) continue;
+            while (numWords < 100 && TOKENIZER.next()) {
+                String w = TOKENIZER.token();
                 if (!tokens.contains(w)) {
                     tokens.add(w);
                 }
@@ -62,34 +74,19 @@ public class StripesPMI  extends Configured implements Tool {
             }
 
             for (int i =0; i < tokens.size(); i++) {
-                if (counts.containsKey(tokens.get(i))) {
-                    counts.put(tokens.get(i), counts.get(tokens.get(i)) + 1);
-                } else {
-                    counts.put(tokens.get(i),1);
-                }
+                WORD.set(tokens.get(i));
+                counts.increment(WORD.getBytes(), 0, WORD.getLength());
             }
 
             if (tokens.size() != 0) {
-                if (counts.containsKey("numLines*")) {
-                    counts.put("numLines*", counts.get("numLines*") + 1);
-                }
-                else {
-                    counts.put("numLines*",1);
-                }
+                counts.increment(NUM_LINES, 0, NUM_LINES.length);
             }
-
+            counts.flushIfFull(context);
         }
 
         @Override
         public void cleanup (Context context) throws IOException, InterruptedException {
-            IntWritable cnt = new IntWritable();
-            Text token = new Text();
-
-            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
-                token.set(entry.getKey());
-                cnt.set(entry.getValue());
-                context.write(token, cnt);
-            }
+            counts.flush(context);
         }
     }
 
@@ -107,14 +104,20 @@ public class StripesPMI  extends Configured implements Tool {
                 sum += iter.next().get();
             }
 
-           if (sum >= 10) {
-                SUM.set(sum);
-                context.write(key, SUM);
-            }
+            // Partial sums: the threshold can only be applied by the reducer.
+            SUM.set(sum);
+            context.write(key, SUM);
         }
     }
     protected static class MyReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
         private final static IntWritable SUM = new IntWritable();
+        private int threshold;
+
+        @Override
+        protected void setup(Context context) {
+            threshold = context.getConfiguration().getInt(PairsPMI.THRESHOLD,
+                    PairsPMI.DEFAULT_THRESHOLD);
+        }
 
         @Override
         public void reduce(Text key, Iterable<IntWritable> values, Context context) throws IOException,
@@ -124,7 +127,7 @@ public class StripesPMI  extends Configured implements Tool {
             while (iter.hasNext()) {
                 sum += iter.next().get();
             }
-            if (sum >= 10) {
+            if (sum >= threshold) {
                 SUM.set(sum);
                 context.write(key, SUM);
             }
@@ -133,7 +136,7 @@ public class StripesPMI  extends Configured implements Tool {
     /**
      * Creates an instance of this tool.
      */
-    private StripesPMI() {}
+    public StripesPMI() {}
 
     public static class Args {
         @Option(name = "-input", metaVar = "[path]", required = true, usage = "input path")
@@ -145,6 +148,20 @@ public class StripesPMI  extends Configured implements Tool {
         @Option(name = "-reducers", metaVar = "[num]", required = false, usage = "number of reducers")
         public int numReducers = 1;
 
+        @Option(name = "-skewAware", usage = "sample the input to spread the heaviest keys over the reducers")
+        boolean skewAware = false;
+
+        @Option(name = "-threshold", metaVar = "[num]",
+                usage = "minimum co-occurrence count of the pairs to output (default 10)")
+        int threshold = PairsPMI.DEFAULT_THRESHOLD;
+
+        @Option(name = "-imc",
+                usage = "combine the stripes of a whole split in the mapper, keyed by int term ids")
+        boolean imc = false;
+
+        @Option(name = "-topN", metaVar = "[num]",
+                usage = "only write the num partners of highest PMI of every word, as a SequenceFile")
+        int topN = 0;
     }
 
     /**
@@ -166,6 +183,8 @@ public class StripesPMI  extends Configured implements Tool {
         LOG.info(" - input path: " + args.input);
         LOG.info(" - output path: " + args.output);
         LOG.info(" - num reducers: " + args.numReducers);
+        LOG.info(" - threshold: " + args.threshold);
+        LOG.info(" - in-mapper combining: " + args.imc);
 
 
         Job job = Job.getInstance(getConf());
@@ -173,9 +192,10 @@ public class StripesPMI  extends Configured implements Tool {
         job.setJarByClass(StripesPMI.class);
 
         job.setNumReduceTasks(args.numReducers);
+        job.getConfiguration().setInt(PairsPMI.THRESHOLD, args.threshold);
 
         FileInputFormat.setInputPaths(job, new Path(args.input));
-        FileOutputFormat.setOutputPath(job, new Path("/tmp/lineCounts2"));
+        FileOutputFormat.setOutputPath(job, new Path(Pipeline.scratch(getConf()), "lineCounts2"));
 
         job.setMapOutputKeyClass(Text.class);
         job.setMapOutputValueClass(IntWritable.class);
@@ -189,10 +209,10 @@ public class StripesPMI  extends Configured implements Tool {
         job.setReducerClass(MyReducer.class);
 
         // Delete the output directory if it exists already.
-        Path outputDir = new Path("/tmp/lineCounts2");
+        Path outputDir = new Path(Pipeline.scratch(getConf()), "lineCounts2");
         FileSystem.get(getConf()).delete(outputDir, true);
 
-        Path mergedDir = new Path("/tmp/mergedLineCounts2");
+        Path mergedDir = new Path(Pipeline.scratch(getConf()), "mergedLineCounts2");
         FileSystem.get(getConf()).delete(mergedDir, true);
 
         job.getConfiguration().setInt("mapred.max.split.size", 1024 * 1024 * 64);
@@ -201,25 +221,61 @@ public class StripesPMI  extends Configured implements Tool {
         job.getConfiguration().set("mapreduce.reduce.memory.mb", "3072");
         job.getConfiguration().set("mapreduce.reduce.java.opts", "-Xmx3072m");
 
+        if (args.skewAware) {
+            SkewAwarePartitioner.plan(job, new PairsPMI.LineSampler());
+            job.setPartitionerClass(SkewAwarePartitioner.class);
+        }
+
+        EmbeddedMode.configure(job);
+
         long startTime = System.currentTimeMillis();
-        job.waitForCompletion(true);
+        if (!job.waitForCompletion(true)) {
+            return 1;
+        }
+        if (job.getNumReduceTasks() > 1) {
+            SkewAwarePartitioner.logReducerLoad(job);
+        }
         System.out.println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
 
         FileSystem fs = FileSystem.get(getConf());
-        Path srcPath = new Path("/tmp/lineCounts2");
-        Path dstPath = new Path("/tmp/mergedLineCounts2");
-
-        FileUtil.copyMerge(fs, srcPath, fs, dstPath, false, getConf(), null);
+        Path srcPath = new Path(Pipeline.scratch(getConf()), "lineCounts2");
+        Path dstPath = new Path(Pipeline.scratch(getConf()), "mergedLineCounts2");
+
+        // The reducers of the second job memory-map the merged counts instead of parsing them.
+        CountDictionary.build(fs, srcPath, dstPath);
+        int frequent = WordBloomFilter.build(fs, srcPath, "numLines*", args.threshold,
+                PairsPMI.FALSE_POSITIVE_RATE, new Path(Pipeline.scratch(getConf()), "frequentWords2"));
+        LOG.info(frequent + " words reach the threshold");
+        if (args.imc) {
+            Vocabulary.build(fs, srcPath, "numLines*", args.threshold, new Path(Pipeline.scratch(getConf()), "vocabulary2"));
+        }
 
         return 0;
     }
 
     /**
-     * Dispatches command-line arguments to the tool via the {@code ToolRunner}.
+     * Runs the marginals and then the stripes job as a {@link Pipeline}, so that concurrent runs
+     * get their own intermediate files. A rerun on unchanged input with the same arguments finds
+     * the output up to date and skips both jobs.
      */
-    public static void main(String[] args) throws Exception {
-        ToolRunner.run(new StripesPMI(), args);
-        ToolRunner.run(new CooccurrenceStripes(), args);
+    public static void main(String[] argv) throws Exception {
+        Configuration conf = new Configuration();
+        String[] rest = new GenericOptionsParser(conf, argv).getRemainingArgs();
+        Args args = new Args();
+        CmdLineParser parser = new CmdLineParser(args, ParserProperties.defaults().withUsageWidth(100));
+        try {
+            parser.parseArgument(rest);
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            parser.printUsage(System.err);
+            System.exit(-1);
+        }
+
+        Pipeline pipeline = new Pipeline(conf, StripesPMI.class.getSimpleName());
+        pipeline.stage("marginals", new StripesPMI(), rest);
+        pipeline.stage("stripes", new CooccurrenceStripes(), rest).after("marginals")
+                .inputs(args.input).output(args.output);
+        System.exit(pipeline.run());
     }
 }
 
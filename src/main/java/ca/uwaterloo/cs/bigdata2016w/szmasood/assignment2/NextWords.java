@@ -0,0 +1,114 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment2;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.ParserProperties;
+
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SuccessorIndex;
+
+/**
+ * Looks up the most frequent successors of words in a {@link SuccessorIndex}, a local file built
+ * from the output of ComputeBigramRelativeFrequencyPairs or ComputeBigramRelativeFrequencyStripes
+ * (with {@code -input}, which rebuilds the index first). Words come from {@code -word}, or else
+ * from standard input, one per line, so a single JVM answers a stream of lookups.
+ */
+public class NextWords extends Configured implements Tool {
+  private static final Logger LOG = Logger.getLogger(NextWords.class);
+
+  private NextWords() {}
+
+  public static class Args {
+    @Option(name = "-index", metaVar = "[path]", required = true, usage = "local index file")
+    public String index;
+
+    @Option(name = "-input", metaVar = "[path]", required = false,
+        usage = "bigram relative frequencies to build the index from")
+    public String input;
+
+    @Option(name = "-word", metaVar = "[word]", required = false,
+        usage = "word to look up (default: read words from standard input)")
+    public String word;
+
+    @Option(name = "-k", metaVar = "[num]", required = false, usage = "number of successors")
+    public int k = 10;
+  }
+
+  /**
+   * Runs this tool.
+   */
+  public int run(String[] argv) throws Exception {
+    Args args = new Args();
+    CmdLineParser parser = new CmdLineParser(args, ParserProperties.defaults().withUsageWidth(100));
+
+    try {
+      parser.parseArgument(argv);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      parser.printUsage(System.err);
+      return -1;
+    }
+
+    File indexFile = new File(args.index);
+    if (args.input != null) {
+      long startTime = System.currentTimeMillis();
+      Path input = new Path(args.input);
+      int n = SuccessorIndex.build(input.getFileSystem(getConf()), input, indexFile);
+      LOG.info("Indexed " + n + " successors in " + (System.currentTimeMillis() - startTime)
+          + " ms, " + indexFile.length() + " bytes");
+    }
+
+    SuccessorIndex index = SuccessorIndex.open(indexFile);
+    int[] ids = new int[args.k];
+    float[] frequencies = new float[args.k];
+
+    if (args.word != null) {
+      lookup(index, args.word, ids, frequencies);
+      return 0;
+    }
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (!line.isEmpty()) {
+        lookup(index, line, ids, frequencies);
+      }
+    }
+    return 0;
+  }
+
+  private static void lookup(SuccessorIndex index, String word, int[] ids, float[] frequencies) {
+    long startTime = System.nanoTime();
+    int id = index.id(word);
+    int n = id < 0 ? 0 : index.topK(id, ids.length, ids, frequencies);
+    long micros = (System.nanoTime() - startTime) / 1000;
+
+    StringBuilder sb = new StringBuilder(word).append('\t');
+    for (int i = 0; i < n; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(index.term(ids[i])).append('=').append(frequencies[i]);
+    }
+    System.out.println(sb.append("\t(").append(micros).append(" us)"));
+  }
+
+  /**
+   * Dispatches command-line arguments to the tool via the {@code ToolRunner}.
+   */
+  public static void main(String[] args) throws Exception {
+    System.exit(ToolRunner.run(new NextWords(), args));
+  }
+}
@@ -1,7 +1,15 @@
 package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment3;
 
 import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
@@ -20,10 +28,78 @@ import tl.lin.data.array.ArrayListWritable;
 import tl.lin.data.pair.PairOfInts;
 import tl.lin.data.pair.PairOfWritables;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.BooleanQuery;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.Postings;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.PostingsCache;
+
 public class BooleanRetrievalCompressed extends Configured implements Tool {
   private HashMap<String,MapFile.Reader> index = new HashMap<>();
   private FSDataInputStream collection;
-  private Stack<Set<Integer>> stack;
+  private PostingsCache cache;
+  private final PostingsCache.Loader loader = new PostingsCache.Loader() {
+    @Override
+    public int[] load(String term) throws IOException {
+      BooleanQuery.DocList docs = new BooleanQuery.DocList();
+      fetchPostings(term, docs);
+      return docs.toArray();
+    }
+  };
+  private final BooleanQuery.CursorIndex cachedIndex = new BooleanQuery.CursorIndex() {
+    @Override
+    public void fetch(String term, BooleanQuery.DocList docs) throws IOException {
+      docs.addAll(cache.get(term, loader));
+    }
+
+    @Override
+    public Postings.Cursor cursor(String term) throws IOException {
+      int[] docs = cache.peek(term);
+      return docs != null ? Postings.cursor(docs, docs.length) : new CachingCursor(term);
+    }
+  };
+
+  // Reads the postings of a term missing from the cache. Read to the end with next() only, as the
+  // list driving an intersection is, its docids are decoded anyway, so they are cached; a list
+  // advanced through is only partly decoded, and isn't.
+  private class CachingCursor extends Postings.Cursor {
+    private final String term;
+    private final Postings.Cursor postings;
+    private BooleanQuery.DocList docs = new BooleanQuery.DocList();
+
+    private CachingCursor(String term) throws IOException {
+      this.term = term;
+      this.postings = openPostings(term);
+    }
+
+    @Override
+    public int df() {
+      return postings.df();
+    }
+
+    @Override
+    public boolean next() {
+      boolean found = postings.next();
+      docId = postings.docId();
+      tf = postings.tf();
+      if (docs != null) {
+        if (found) {
+          docs.add(docId);
+        } else {
+          cache.put(term, docs.toArray());
+          docs = null;
+        }
+      }
+      return found;
+    }
+
+    @Override
+    public boolean advance(int target) {
+      docs = null;
+      boolean found = postings.advance(target);
+      docId = postings.docId();
+      tf = postings.tf();
+      return found;
+    }
+  }
 
   private BooleanRetrievalCompressed() {}
 
@@ -33,105 +109,220 @@ public class BooleanRetrievalCompressed extends Configured implements Tool {
       index.put(fl, new MapFile.Reader(new Path(indexPath + "/" + fl.trim()), fs.getConf()));
     }
     collection = fs.open(new Path(collectionPath));
-    stack = new Stack<Set<Integer>>();
   }
 
-  private void runQuery(String q) throws IOException {
-    String[] terms = q.split("\\s+");
+  /** Returns the matching documents, one per line. Safe to call from several threads. */
+  private String runQuery(String q) throws IOException {
+    BooleanQuery.DocList docs = BooleanQuery.parse(q).evaluate(cachedIndex);
 
-    for (String t : terms) {
-      if (t.equals("AND")) {
-        performAND();
-      } else if (t.equals("OR")) {
-        performOR();
-      } else {
-        pushTerm(t);
-      }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < docs.size(); i++) {
+      String line = fetchLine(docs.get(i));
+      sb.append(docs.get(i)).append('\t').append(line).append('\n');
     }
+    return sb.toString();
+  }
 
-    Set<Integer> set = stack.pop();
+  private static class Answer {
+    private final String query;
+    private final String output;
+    private final long nanos;
 
-    for (Integer i : set) {
-      String line = fetchLine(i);
-      System.out.println(i + "\t" + line);
+    private Answer(String query, String output, long nanos) {
+      this.query = query;
+      this.output = output;
+      this.nanos = nanos;
     }
-  }
 
-  private void pushTerm(String term) throws IOException {
-    stack.push(fetchDocumentSet(term));
+    @Override
+    public String toString() {
+      return "Query: " + query + "\n" + output
+          + String.format("query completed in %.3f ms%n", nanos / 1e6);
+    }
   }
 
-  private void performAND() {
-    Set<Integer> s1 = stack.pop();
-    Set<Integer> s2 = stack.pop();
-
-    Set<Integer> sn = new TreeSet<Integer>();
-
-    for (int n : s1) {
-      if (s2.contains(n)) {
-        sn.add(n);
+  private Callable<Answer> answer(final String query) {
+    return new Callable<Answer>() {
+      @Override
+      public Answer call() {
+        long startTime = System.nanoTime();
+        String output;
+        try {
+          output = runQuery(query);
+        } catch (IllegalArgumentException | IOException e) {
+          output = "error: " + e.getMessage() + "\n";
+        }
+        return new Answer(query, output, System.nanoTime() - startTime);
       }
-    }
-
-    stack.push(sn);
+    };
   }
 
-  private void performOR() {
-    Set<Integer> s1 = stack.pop();
-    Set<Integer> s2 = stack.pop();
+  /** Latencies of the queries answered so far. */
+  private static class Latencies {
+    private long[] nanos = new long[1024];
+    private int count = 0;
+    private final long startTime = System.nanoTime();
 
-    Set<Integer> sn = new TreeSet<Integer>();
+    private synchronized void add(long queryNanos) {
+      if (count == nanos.length) {
+        nanos = Arrays.copyOf(nanos, count * 2);
+      }
+      nanos[count++] = queryNanos;
+    }
 
-    for (int n : s1) {
-      sn.add(n);
+    @Override
+    public synchronized String toString() {
+      double secs = (System.nanoTime() - startTime) / 1e9;
+      long[] sorted = Arrays.copyOf(nanos, count);
+      Arrays.sort(sorted);
+      return String.format("%d queries in %.2f s: %.1f queries/s, latency p50 %.3f ms, "
+          + "p90 %.3f ms, p99 %.3f ms, max %.3f ms", count, secs, count / secs,
+          percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+          percentile(sorted, 1.0));
     }
 
-    for (int n : s2) {
-      sn.add(n);
+    private static double percentile(long[] sorted, double p) {
+      if (sorted.length == 0) {
+        return 0;
+      }
+      return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
     }
+  }
 
-    stack.push(sn);
+  /**
+   * Answers the queries read from {@code in}, one per line, on a pool of threads. Answers are
+   * printed in the order of the queries.
+   */
+  private void runBatch(BufferedReader in, int threads) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    ArrayDeque<Future<Answer>> pending = new ArrayDeque<Future<Answer>>();
+    Latencies latencies = new Latencies();
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty()) {
+          continue;
+        }
+        pending.add(pool.submit(answer(line)));
+        // Bound the answers waiting to be printed.
+        if (pending.size() >= threads * 64) {
+          print(pending.poll().get(), latencies);
+        }
+      }
+      while (!pending.isEmpty()) {
+        print(pending.poll().get(), latencies);
+      }
+    } finally {
+      pool.shutdown();
+    }
+    System.out.println(latencies);
+    System.out.println(cache);
   }
 
-  private Set<Integer> fetchDocumentSet(String term) throws IOException {
-    Set<Integer> set = new TreeSet<Integer>();
+  private static void print(Answer answer, Latencies latencies) {
+    latencies.add(answer.nanos);
+    System.out.print(answer);
+  }
 
-    for (PairOfInts pair : fetchPostings(term)) {
-      set.add(pair.getLeftElement());
+  /**
+   * Answers queries from clients of a socket on the loopback interface: each line a client sends
+   * is a query, answered by the matching documents, one per line, then an empty line. Each client
+   * is read by a thread of its own, which mostly waits for its next query; the queries themselves
+   * are answered by a pool of {@code threads} threads, so idle clients don't keep others waiting.
+   * Each answered query is logged with its latency.
+   */
+  private void serve(int port, int threads) throws IOException {
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    ExecutorService connections = Executors.newCachedThreadPool();
+    final Latencies latencies = new Latencies();
+    ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    System.out.println("Listening on " + server.getLocalSocketAddress());
+    try {
+      while (true) {
+        final Socket client = server.accept();
+        connections.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            try {
+              BufferedReader in = new BufferedReader(
+                  new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+              Writer out = new BufferedWriter(
+                  new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8));
+              String line;
+              while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                  continue;
+                }
+                Answer answer = pool.submit(answer(line)).get();
+                out.write(answer.output);
+                out.write('\n');
+                out.flush();
+                latencies.add(answer.nanos);
+                System.out.println(String.format("%s\t%.3f ms", line, answer.nanos / 1e6));
+              }
+            } finally {
+              client.close();
+              System.out.println(latencies);
+            }
+            return null;
+          }
+        });
+      }
+    } finally {
+      server.close();
+      connections.shutdown();
+      pool.shutdown();
     }
+  }
 
-    return set;
+  private void fetchPostings(String term, BooleanQuery.DocList docs) throws IOException {
+    Postings.Cursor postings = openPostings(term);
+    while (postings.next()) {
+      docs.add(postings.docId());
+    }
   }
 
-  private ArrayListWritable<PairOfInts> fetchPostings(String term) throws IOException {
+  private Postings.Cursor openPostings(String term) throws IOException {
     Text key = new Text();
-    BytesWritable value = new BytesWritable();
+    Postings value = new Postings();
     int hashVal = (term.hashCode() & Integer.MAX_VALUE) % index.size();
     key.set(term);
-    index.get("part-r-0000" + hashVal).get(key, value);
-    ArrayListWritable<PairOfInts> postings = new ArrayListWritable<>();
-
-    InputStream is = new ByteArrayInputStream(value.getBytes());
-    DataInputStream inputBuffer = new DataInputStream(is);
-
-    int df = WritableUtils.readVInt(inputBuffer);
-
-    int a = 0;
-    int b = 0;
-    for (int i = 0; i < df; i++) {
-      a += WritableUtils.readVInt(inputBuffer);
-      b = WritableUtils.readVInt(inputBuffer);
-      postings.add(new PairOfInts(a,b));
+    MapFile.Reader reader = index.get("part-r-0000" + hashVal);
+    // A long list is stored as chunks right after the term: read on from it while the keys are
+    // chunks of the term. The reader is shared, so no other thread may seek in between; the
+    // chunks are copied out and decoded once it is released.
+    List<Postings.Cursor> chunks = new ArrayList<Postings.Cursor>();
+    synchronized (reader) {
+      if (reader.get(key, value) != null) {
+        do {
+          chunks.add(Postings.cursor(
+              Arrays.copyOf(value.getBytes(), value.getLength()), value.getLength()));
+        } while (reader.next(key, value) && Postings.isChunkOf(key.toString(), term));
+      }
     }
-
-    return postings;
+    return Postings.concat(chunks);
   }
 
   private String fetchLine(long offset) throws IOException {
-    collection.seek(offset);
-    BufferedReader reader = new BufferedReader(new InputStreamReader(collection));
+    // A positioned read leaves the stream alone, so threads can share it. The first bytes of the
+    // line are enough for the 80 characters shown.
+    byte[] buffer = new byte[1024];
+    int length = 0;
+    while (length < buffer.length) {
+      int n = collection.read(offset + length, buffer, length, buffer.length - length);
+      if (n < 0) {
+        break;
+      }
+      length += n;
+    }
+    int end = 0;
+    while (end < length && buffer[end] != '\n' && buffer[end] != '\r') {
+      end++;
+    }
 
-    String d = reader.readLine();
+    String d = new String(buffer, 0, end);
     return d.length() > 80 ? d.substring(0, 80) + "..." : d;
   }
 
@@ -142,8 +333,24 @@ public class BooleanRetrievalCompressed extends Configured implements Tool {
     @Option(name = "-collection", metaVar = "[path]", required = true, usage = "collection path")
     public String collection;
 
-    @Option(name = "-query", metaVar = "[term]", required = true, usage = "query")
+    @Option(name = "-query", metaVar = "[term]", required = false, usage = "query")
     public String query;
+
+    @Option(name = "-queries", metaVar = "[path]", required = false,
+        usage = "local file of queries, one per line, or - for standard input")
+    public String queries;
+
+    @Option(name = "-port", metaVar = "[num]", required = false,
+        usage = "answer queries from clients of this local port")
+    public int port = -1;
+
+    @Option(name = "-threads", metaVar = "[num]", required = false,
+        usage = "number of threads answering -queries or -port")
+    public int threads = 4;
+
+    @Option(name = "-cacheBytes", metaVar = "[bytes]", required = false,
+        usage = "size of the cache of decoded postings")
+    public long cacheBytes = PostingsCache.DEFAULT_BYTES;
   }
 
   /**
@@ -161,6 +368,13 @@ public class BooleanRetrievalCompressed extends Configured implements Tool {
       return -1;
     }
 
+    if ((args.query != null ? 1 : 0) + (args.queries != null ? 1 : 0) + (args.port >= 0 ? 1 : 0)
+        != 1) {
+      System.err.println("Exactly one of -query, -queries and -port is required");
+      parser.printUsage(System.err);
+      return -1;
+    }
+
     if (args.collection.endsWith(".gz")) {
       System.out.println("gzipped collection is not seekable: use compressed version!");
       return -1;
@@ -177,11 +391,31 @@ public class BooleanRetrievalCompressed extends Configured implements Tool {
     }
 
     initialize(fileList, args.index, args.collection, fs);
+    cache = new PostingsCache(args.cacheBytes);
+
+    // The index is opened once and shared by every query below.
+    if (args.port >= 0) {
+      serve(args.port, args.threads);
+      return 0;
+    }
+    if (args.queries != null) {
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+          args.queries.equals("-") ? System.in : new FileInputStream(args.queries),
+          StandardCharsets.UTF_8));
+      try {
+        runBatch(in, args.threads);
+      } finally {
+        in.close();
+      }
+      return 0;
+    }
 
     System.out.println("Query: " + args.query);
     long startTime = System.currentTimeMillis();
-    runQuery(args.query);
+    System.out.print(runQuery(args.query));
     System.out.println("\nquery completed in " + (System.currentTimeMillis() - startTime) + "ms");
+    // On stderr, so that the output of a single query stays what it was without the cache.
+    System.err.println(cache);
 
     return 1;
   }
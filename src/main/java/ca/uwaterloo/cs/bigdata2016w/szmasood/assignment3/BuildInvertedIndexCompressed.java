@@ -2,11 +2,8 @@ package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment3;
 
 import java.io.DataOutput;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.StringTokenizer;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -32,6 +29,10 @@ import tl.lin.data.fd.Object2IntFrequencyDistribution;
 import tl.lin.data.fd.Object2IntFrequencyDistributionEntry;
 import tl.lin.data.pair.*;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.EmbeddedMode;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.Postings;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.TextTokenizer;
+
 public class BuildInvertedIndexCompressed extends Configured implements Tool {
   private static final Logger LOG = Logger.getLogger(BuildInvertedIndexCompressed.class);
 
@@ -40,25 +41,16 @@ public class BuildInvertedIndexCompressed extends Configured implements Tool {
     private static final IntWritable TF = new IntWritable();
     private static final Object2IntFrequencyDistribution<String> COUNTS =
         new Object2IntFrequencyDistributionEntry<String>();
+    private static final TextTokenizer TOKENIZER = new TextTokenizer();
 
     @Override
     public void map(LongWritable docno, Text doc, Context context)
         throws IOException, InterruptedException {
-      String text = doc.toString();
-
-      // Tokenize line.
-      List<String> tokens = new ArrayList<String>();
-      StringTokenizer itr = new StringTokenizer(text);
-      while (itr.hasMoreTokens()) {
-        String w = itr.nextToken().toLowerCase().replaceAll("(^[^a-z]+|[^a-z]+$)", "");
-        if (w.length() == 0) continue;
-        tokens.add(w);
-      }
-
-      // Build a histogram of the terms.
+      // Tokenize line and build a histogram of the terms.
       COUNTS.clear();
-      for (String token : tokens) {
-        COUNTS.increment(token);
+      TOKENIZER.reset(doc);
+      while (TOKENIZER.next()) {
+        COUNTS.increment(TOKENIZER.token());
       }
 
       // Emit postings.
@@ -77,66 +69,55 @@ public class BuildInvertedIndexCompressed extends Configured implements Tool {
     }
   }
 
-  private static class MyReducer extends
-      Reducer<PairOfStringInt, IntWritable, Text, BytesWritable> {
+  private static class MyReducer extends Reducer<PairOfStringInt, IntWritable, Text, Postings> {
+    private static final Text TERM = new Text();
+    private static final Text KEY = new Text();
+    private Postings postings;
+    private int chunk = 0;
 
-    private final static Text TPREV = new Text("!nullnual*");
-    private final static IntWritable PREVDOC = new IntWritable(-1);
-    private final static BytesWritable P = new BytesWritable();
-    private final static ArrayList<PairOfInts> PAIRS = new ArrayList<>();
+    @Override
+    public void setup(Context context) {
+      Configuration conf = context.getConfiguration();
+      postings = new Postings(
+          Postings.Format.valueOf(conf.get(Postings.FORMAT, Postings.Format.VINT.name())),
+          conf.getInt(Postings.CHUNK_BYTES, Postings.DEFAULT_CHUNK_BYTES));
+    }
 
     @Override
     public void reduce(PairOfStringInt key, Iterable<IntWritable> values, Context context)
         throws IOException, InterruptedException {
-      Iterator<IntWritable> iter = values.iterator();
-
-      int docId = key.getRightElement();
-      int gap = docId;
-      DataOutputBuffer outputBuffer = new DataOutputBuffer();
-
-      while (iter.hasNext()) {
-        if (!key.getLeftElement().equals(TPREV.toString()) && !TPREV.toString().equals("!nullnual*")) {
-          WritableUtils.writeVInt(outputBuffer, PAIRS.size());
-          for (PairOfInts prs : PAIRS) {
-            WritableUtils.writeVInt(outputBuffer, prs.getLeftElement());
-            WritableUtils.writeVInt(outputBuffer, prs.getRightElement());
-          }
-          P.setCapacity(outputBuffer.getData().length);
-          P.set(outputBuffer.getData(),0, outputBuffer.getLength());
-          context.write(TPREV, P);
-          P.set(new BytesWritable());
-          PAIRS.clear();
-          PREVDOC.set(-1);
-          outputBuffer.reset();
+      // Keys arrive sorted by term then docid: a new term completes the postings of the last one.
+      if (!TERM.toString().equals(key.getLeftElement())) {
+        if (postings.df() > 0) {
+          flush(context);
         }
-
-        if (docId != PREVDOC.get() && PREVDOC.get() != -1) {
-          gap -= PREVDOC.get();
-        }
-        PAIRS.add(new PairOfInts(gap,iter.next().get()));
-        TPREV.set(key.getLeftElement());
-        PREVDOC.set(docId);
+        chunk = 0;
+      }
+      TERM.set(key.getLeftElement());
+      for (IntWritable tf : values) {
+        postings.add(key.getRightElement(), tf.get());
+      }
+      // A long list goes out in chunks, so it is never buffered whole.
+      if (postings.isFull()) {
+        flush(context);
       }
     }
 
     @Override
     public void cleanup(Context context) throws IOException, InterruptedException {
-      DataOutputBuffer outputBuffer = new DataOutputBuffer();
-      WritableUtils.writeVInt(outputBuffer, PAIRS.size());
-      for (PairOfInts prs : PAIRS) {
-        WritableUtils.writeVInt(outputBuffer, prs.getLeftElement());
-        WritableUtils.writeVInt(outputBuffer, prs.getRightElement());
+      if (postings.df() > 0) {
+        flush(context);
       }
-      P.setCapacity(outputBuffer.getData().length);
-      P.set(outputBuffer.getData(),0, outputBuffer.getLength());
-      context.write(TPREV, P);
-      P.set(new BytesWritable());
-      PAIRS.clear();
-      PREVDOC.set(-1);
-      TPREV.set("!nullnual*");
-      outputBuffer.reset();
     }
 
+    private void flush(Context context) throws IOException, InterruptedException {
+      if (chunk > 0) {
+        context.getCounter(Postings.class.getSimpleName(), "extra chunks").increment(1);
+      }
+      KEY.set(Postings.chunkKey(TERM.toString(), chunk++));
+      context.write(KEY, postings);
+      postings.clear();
+    }
   }
 
   private BuildInvertedIndexCompressed() {}
@@ -150,6 +131,14 @@ public class BuildInvertedIndexCompressed extends Configured implements Tool {
 
     @Option(name = "-reducers", metaVar = "[num]", required = false, usage = "number of reducers")
     public int numReducers = 1;
+
+    @Option(name = "-format", metaVar = "[vint|block]", required = false,
+        usage = "postings format: vint, or block for bit-packed blocks with skips (default: vint)")
+    public String format = "vint";
+
+    @Option(name = "-chunkBytes", metaVar = "[bytes]", required = false,
+        usage = "encoded bytes of postings written as one record; longer lists are split")
+    public int chunkBytes = Postings.DEFAULT_CHUNK_BYTES;
   }
 
   /**
@@ -170,8 +159,20 @@ public class BuildInvertedIndexCompressed extends Configured implements Tool {
     LOG.info("Tool: " + BuildInvertedIndexCompressed.class.getSimpleName());
     LOG.info(" - input path: " + args.input);
     LOG.info(" - output path: " + args.output);
+    LOG.info(" - postings format: " + args.format);
+
+    Postings.Format format;
+    try {
+      format = Postings.Format.valueOf(args.format.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      System.err.println("Unknown postings format: " + args.format);
+      parser.printUsage(System.err);
+      return -1;
+    }
 
     Job job = Job.getInstance(getConf());
+    job.getConfiguration().set(Postings.FORMAT, format.name());
+    job.getConfiguration().setInt(Postings.CHUNK_BYTES, args.chunkBytes);
     job.setJobName(BuildInvertedIndexCompressed.class.getSimpleName());
     job.setJarByClass(BuildInvertedIndexCompressed.class);
 
@@ -183,7 +184,7 @@ public class BuildInvertedIndexCompressed extends Configured implements Tool {
     job.setMapOutputKeyClass(PairOfStringInt.class);
     job.setMapOutputValueClass(IntWritable.class);
     job.setOutputKeyClass(Text.class);
-    job.setOutputValueClass(BytesWritable.class);
+    job.setOutputValueClass(Postings.class);
     job.setOutputFormatClass(MapFileOutputFormat.class);
 //    job.setOutputFormatClass(TextOutputFormat.class);
 
@@ -196,6 +197,8 @@ public class BuildInvertedIndexCompressed extends Configured implements Tool {
     Path outputDir = new Path(args.output);
     FileSystem.get(getConf()).delete(outputDir, true);
 
+    EmbeddedMode.configure(job);
+
     long startTime = System.currentTimeMillis();
     job.waitForCompletion(true);
     System.out.println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
@@ -31,6 +31,8 @@ import org.apache.log4j.Logger;
 import tl.lin.data.array.ArrayListOfFloatsWritable;
 import tl.lin.data.array.ArrayListOfIntsWritable;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.EmbeddedMode;
+
 /**
  * <p>
  * Driver program that takes a plain-text encoding of a directed graph and builds corresponding
@@ -203,6 +205,8 @@ public class BuildPersonalizedPageRankRecords extends Configured implements Tool
         // Delete the output directory if it exists already.
         FileSystem.get(conf).delete(new Path(outputPath), true);
 
+        EmbeddedMode.configure(job);
+
         job.waitForCompletion(true);
 
         return 0;
@@ -43,6 +43,9 @@ import tl.lin.data.pair.PairOfObjectFloat;
 import tl.lin.data.pair.PairOfStringInt;
 import tl.lin.data.queue.TopScoredObjects;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.EmbeddedMode;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.Pipeline;
+
 public class ExtractTopPersonalizedPageRankNodes extends Configured implements Tool {
   private static final Logger LOG = Logger.getLogger(ca.uwaterloo.cs.bigdata2016w.szmasood.assignment4.ExtractTopPersonalizedPageRankNodes.class);
   private static final String SOURCE_NODES = "node.src";
@@ -268,9 +271,13 @@ public class ExtractTopPersonalizedPageRankNodes extends Configured implements T
     // Delete the output directory if it exists already.
     FileSystem.get(conf).delete(new Path(outputPath), true);
 
-    job.waitForCompletion(true);
+    EmbeddedMode.configure(job);
+
+    if (!job.waitForCompletion(true)) {
+      return 1;
+    }
 
-    Path dstPath = new Path("/tmp/mrg3d12");
+    Path dstPath = new Path(Pipeline.scratch(getConf()), "mrg3d12");
     FileSystem.get(getConf()).delete(dstPath, true);
 
     FileSystem fs = FileSystem.get(getConf());
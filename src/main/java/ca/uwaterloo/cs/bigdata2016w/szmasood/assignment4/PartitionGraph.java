@@ -23,6 +23,8 @@ import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.EmbeddedMode;
+
 /**
  * <p>
  * Driver program for partitioning the graph.
@@ -120,6 +122,8 @@ public class PartitionGraph extends Configured implements Tool {
 
     FileSystem.get(conf).delete(new Path(outPath), true);
 
+    EmbeddedMode.configure(job);
+
     job.waitForCompletion(true);
 
     return 0;
@@ -39,6 +39,8 @@ import tl.lin.data.array.ArrayListOfIntsWritable;
 
 import com.google.common.base.Preconditions;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.EmbeddedMode;
+
 
 public class RunPersonalizedPageRankBasic extends Configured implements Tool {
     private static final Logger LOG = Logger.getLogger(RunPersonalizedPageRankBasic.class);
@@ -530,6 +532,8 @@ public class RunPersonalizedPageRankBasic extends Configured implements Tool {
         FileSystem.get(getConf()).delete(new Path(out), true);
         FileSystem.get(getConf()).delete(new Path(outm), true);
 
+        EmbeddedMode.configure(job);
+
         long startTime = System.currentTimeMillis();
         job.waitForCompletion(true);
         System.out.println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
@@ -608,6 +612,8 @@ public class RunPersonalizedPageRankBasic extends Configured implements Tool {
 
         FileSystem.get(getConf()).delete(new Path(out), true);
 
+        EmbeddedMode.configure(job);
+
         long startTime = System.currentTimeMillis();
         job.waitForCompletion(true);
         System.out.println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
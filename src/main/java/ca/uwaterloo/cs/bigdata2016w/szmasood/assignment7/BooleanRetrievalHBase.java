@@ -20,93 +20,45 @@ import org.kohsuke.args4j.ParserProperties;
 import tl.lin.data.array.ArrayListWritable;
 import tl.lin.data.pair.PairOfInts;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.BooleanQuery;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.PostingsCache;
+
 public class BooleanRetrievalHBase extends Configured implements Tool {
   private FSDataInputStream collection;
-  private Stack<Set<Integer>> stack;
+  private PostingsCache cache;
 
   private BooleanRetrievalHBase() {}
 
 
   private void initialize(String collectionPath, FileSystem fs) throws IOException {
     collection = fs.open(new Path(collectionPath));
-    stack = new Stack<Set<Integer>>();
   }
 
-  private void runQuery(String q, String config, String table) throws IOException {
-    String[] terms = q.split("\\s+");
-
-    for (String t : terms) {
-      if (t.equals("AND")) {
-        performAND();
-      } else if (t.equals("OR")) {
-        performOR();
-      } else {
-        pushTerm(t, config, table);
+  private void runQuery(String q, final String config, final String table) throws IOException {
+    final PostingsCache.Loader loader = new PostingsCache.Loader() {
+      @Override
+      public int[] load(String term) throws IOException {
+        BooleanQuery.DocList docs = new BooleanQuery.DocList();
+        fetchPostings(term, config, table, docs);
+        return docs.toArray();
       }
-    }
-
-    Set<Integer> set = stack.pop();
-
-    for (Integer i : set) {
-      String line = fetchLine(i);
-      System.out.println(i + "\t" + line);
-    }
-  }
-
-  private void pushTerm(String term, String config, String table) throws IOException {
-    stack.push(fetchDocumentSet(term, config, table));
-  }
-
-  private void performAND() {
-    Set<Integer> s1 = stack.pop();
-    Set<Integer> s2 = stack.pop();
-
-    Set<Integer> sn = new TreeSet<Integer>();
-
-    for (int n : s1) {
-      if (s2.contains(n)) {
-        sn.add(n);
+    };
+    BooleanQuery.DocList docs = BooleanQuery.parse(q).evaluate(new BooleanQuery.Index() {
+      @Override
+      public void fetch(String term, BooleanQuery.DocList docs) throws IOException {
+        docs.addAll(cache.get(term, loader));
       }
-    }
-
-    stack.push(sn);
-  }
-
-  private void performOR() {
-    Set<Integer> s1 = stack.pop();
-    Set<Integer> s2 = stack.pop();
-
-    Set<Integer> sn = new TreeSet<Integer>();
-
-    for (int n : s1) {
-      sn.add(n);
-    }
-
-    for (int n : s2) {
-      sn.add(n);
-    }
+    });
 
-    stack.push(sn);
-  }
-
-  private Set<Integer> fetchDocumentSet(String term, String config, String table) throws IOException {
-    Set<Integer> set = new TreeSet<Integer>();
-
-    for (PairOfInts pair : fetchPostings(term, config, table)) {
-      set.add(pair.getLeftElement());
+    for (int i = 0; i < docs.size(); i++) {
+      String line = fetchLine(docs.get(i));
+      System.out.println(docs.get(i) + "\t" + line);
     }
-
-    return set;
   }
 
-  private ArrayListWritable<PairOfInts> fetchPostings(String term, String config, String argTable) throws IOException {
-    Text key = new Text();
-    BytesWritable value = new BytesWritable();
-    key.set(term);
-
+  private void fetchPostings(String term, String config, String argTable, BooleanQuery.DocList docs) throws IOException {
     Configuration conf = getConf();
     conf.addResource(new Path(config));
-    ArrayListWritable<PairOfInts> postings = new ArrayListWritable<>();
 
 
     try {
@@ -124,7 +76,7 @@ public class BooleanRetrievalHBase extends Configured implements Tool {
       NavigableMap<byte[], byte[]> familyMap = result.getFamilyMap("p".getBytes());
 
 
-      int counter = 0;
+      // Cells are named by their first docid, so their postings come in docid order.
       for (byte[] quant : familyMap.keySet()) {
 
         InputStream is = new ByteArrayInputStream(result.getValue("p".getBytes(), quant));
@@ -132,12 +84,9 @@ public class BooleanRetrievalHBase extends Configured implements Tool {
 
         int df = WritableUtils.readVInt(inputBuffer);
 
-        int a = 0;
-        int b = 0;
         for (int i = 0; i < df; i++) {
-          a = WritableUtils.readVInt(inputBuffer);
-          b = WritableUtils.readVInt(inputBuffer);
-          postings.add(new PairOfInts(a, b));
+          docs.add(WritableUtils.readVInt(inputBuffer));
+          WritableUtils.readVInt(inputBuffer);
         }
 
       }
@@ -145,8 +94,6 @@ public class BooleanRetrievalHBase extends Configured implements Tool {
     catch (Exception e) {
 
     }
-
-    return postings;
   }
 
   private String fetchLine(long offset) throws IOException {
@@ -170,6 +117,10 @@ public class BooleanRetrievalHBase extends Configured implements Tool {
 
     @Option(name = "-config", metaVar = "[path]", required = true, usage = "HBase config")
     public String config;
+
+    @Option(name = "-cacheBytes", metaVar = "[bytes]", required = false,
+        usage = "size of the cache of decoded postings")
+    public long cacheBytes = PostingsCache.DEFAULT_BYTES;
   }
 
   /**
@@ -195,11 +146,14 @@ public class BooleanRetrievalHBase extends Configured implements Tool {
     FileSystem fs = FileSystem.get(new Configuration());
 
     initialize(args.collection, fs);
+    cache = new PostingsCache(args.cacheBytes);
 
     System.out.println("Query: " + args.query);
     long startTime = System.currentTimeMillis();
     runQuery(args.query, args.config, args.table);
     System.out.println("\nquery completed in " + (System.currentTimeMillis() - startTime) + "ms");
+    // On stderr, so that the output of a single query stays what it was without the cache.
+    System.err.println(cache);
 
     return 1;
   }
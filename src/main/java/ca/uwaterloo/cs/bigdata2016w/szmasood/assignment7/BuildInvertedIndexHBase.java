@@ -1,10 +1,7 @@
 package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment7;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.StringTokenizer;
+import java.util.Arrays;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
@@ -40,6 +37,10 @@ import tl.lin.data.fd.Object2IntFrequencyDistribution;
 import tl.lin.data.fd.Object2IntFrequencyDistributionEntry;
 import tl.lin.data.pair.*;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.EmbeddedMode;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.Postings;
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.TextTokenizer;
+
 public class BuildInvertedIndexHBase extends Configured implements Tool {
   private static final Logger LOG = Logger.getLogger(BuildInvertedIndexHBase.class);
 
@@ -48,25 +49,16 @@ public class BuildInvertedIndexHBase extends Configured implements Tool {
     private static final IntWritable TF = new IntWritable();
     private static final Object2IntFrequencyDistribution<String> COUNTS =
         new Object2IntFrequencyDistributionEntry<String>();
+    private static final TextTokenizer TOKENIZER = new TextTokenizer();
 
     @Override
     public void map(LongWritable docno, Text doc, Context context)
         throws IOException, InterruptedException {
-      String text = doc.toString();
-
-      // Tokenize line.
-      List<String> tokens = new ArrayList<String>();
-      StringTokenizer itr = new StringTokenizer(text);
-      while (itr.hasMoreTokens()) {
-        String w = itr.nextToken().toLowerCase().replaceAll("(^[^a-z]+|[^a-z]+$)", "");
-        if (w.length() == 0) continue;
-        tokens.add(w);
-      }
-
-      // Build a histogram of the terms.
+      // Tokenize line and build a histogram of the terms.
       COUNTS.clear();
-      for (String token : tokens) {
-        COUNTS.increment(token);
+      TOKENIZER.reset(doc);
+      while (TOKENIZER.next()) {
+        COUNTS.increment(TOKENIZER.token());
       }
 
       // Emit postings.
@@ -87,70 +79,68 @@ public class BuildInvertedIndexHBase extends Configured implements Tool {
 
   private static class MyReducer extends
           TableReducer<PairOfStringInt, IntWritable, ImmutableBytesWritable> {
-
-    private final static Text TPREV = new Text("!nullnual*");
-    private final static BytesWritable P = new BytesWritable();
-    private final static ArrayList<PairOfInts> PAIRS = new ArrayList<>();
     public static final String [] FAMILIES = { "p" };
     public static final byte[] CF = FAMILIES[0].getBytes();
-    public static final IntWritable LASTDOCID = new IntWritable(0);
 
+    private static final Text TERM = new Text();
+    // Postings of the current cell as VInt docid and tf, then the cell with its df.
+    private static final DataOutputBuffer BODY = new DataOutputBuffer();
+    private static final DataOutputBuffer CELL = new DataOutputBuffer();
+    private int df = 0;
+    private int firstDocId = 0;
+    private int cellBytes;
 
+    @Override
+    public void setup(Context context) {
+      cellBytes = context.getConfiguration().getInt(Postings.CHUNK_BYTES,
+          Postings.DEFAULT_CHUNK_BYTES);
+      BODY.reset();
+      df = 0;
+    }
 
     @Override
     public void reduce(PairOfStringInt key, Iterable<IntWritable> values, Context context)
         throws IOException, InterruptedException {
-      Iterator<IntWritable> iter = values.iterator();
-
+      // Keys arrive sorted by term then docid: a new term completes the postings of the last one.
+      if (df > 0 && !TERM.toString().equals(key.getLeftElement())) {
+        flush(context);
+      }
+      TERM.set(key.getLeftElement());
       int docId = key.getRightElement();
-      LASTDOCID.set(docId);
-      DataOutputBuffer outputBuffer = new DataOutputBuffer();
-
-      while (iter.hasNext()) {
-        if (!key.getLeftElement().equals(TPREV.toString()) && !TPREV.toString().equals("!nullnual*")) {
-          WritableUtils.writeVInt(outputBuffer, PAIRS.size());
-            for (PairOfInts prs : PAIRS) {
-            WritableUtils.writeVInt(outputBuffer, prs.getLeftElement());
-            WritableUtils.writeVInt(outputBuffer, prs.getRightElement());
-          }
-          P.setCapacity(outputBuffer.getData().length);
-          P.set(outputBuffer.getData(),0, outputBuffer.getLength());
-
-          Put put = new Put(Bytes.toBytes(TPREV.toString()));
-          put.add(CF,Bytes.toBytes(docId), P.getBytes());
-
-          context.write(null, put);
-          P.set(new BytesWritable());
-          PAIRS.clear();
-          outputBuffer.reset();
+      for (IntWritable tf : values) {
+        if (df == 0) {
+          firstDocId = docId;
         }
-
-        PAIRS.add(new PairOfInts(docId,iter.next().get()));
-        TPREV.set(key.getLeftElement());
+        WritableUtils.writeVInt(BODY, docId);
+        WritableUtils.writeVInt(BODY, tf.get());
+        df++;
+      }
+      // A long list goes out as several cells of the row, which readers concatenate.
+      if (BODY.getLength() >= cellBytes) {
+        flush(context);
       }
     }
 
     @Override
     public void cleanup(Context context) throws IOException, InterruptedException {
-      DataOutputBuffer outputBuffer = new DataOutputBuffer();
-      WritableUtils.writeVInt(outputBuffer, PAIRS.size());
-      for (PairOfInts prs : PAIRS) {
-        WritableUtils.writeVInt(outputBuffer, prs.getLeftElement());
-        WritableUtils.writeVInt(outputBuffer, prs.getRightElement());
+      if (df > 0) {
+        flush(context);
       }
-      P.setCapacity(outputBuffer.getData().length);
-      P.set(outputBuffer.getData(),0, outputBuffer.getLength());
-      Put put = new Put(Bytes.toBytes(TPREV.toString()));
-      put.add(CF,Bytes.toBytes(LASTDOCID.get()), P.getBytes());
+    }
 
+    private void flush(Context context) throws IOException, InterruptedException {
+      CELL.reset();
+      WritableUtils.writeVInt(CELL, df);
+      CELL.write(BODY.getData(), 0, BODY.getLength());
+
+      // Cells are named by their first docid, so they sort in docid order.
+      Put put = new Put(Bytes.toBytes(TERM.toString()));
+      put.add(CF, Bytes.toBytes(firstDocId), Arrays.copyOf(CELL.getData(), CELL.getLength()));
       context.write(null, put);
 
-      P.set(new BytesWritable());
-      PAIRS.clear();
-      TPREV.set("!nullnual*");
-      outputBuffer.reset();
+      BODY.reset();
+      df = 0;
     }
-
   }
 
   private BuildInvertedIndexHBase() {}
@@ -230,6 +220,8 @@ public class BuildInvertedIndexHBase extends Configured implements Tool {
     TableMapReduceUtil.initTableReducerJob(args.table, MyReducer.class, job);
 
 
+    EmbeddedMode.configure(job);
+
     long startTime = System.currentTimeMillis();
     job.waitForCompletion(true);
     System.out.println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
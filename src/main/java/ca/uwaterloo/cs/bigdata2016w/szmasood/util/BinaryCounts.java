@@ -0,0 +1,183 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+
+/**
+ * Binary (Text, VInt) count output: one block-compressed MapFile per reducer, sorted by key. A lookup
+ * picks the partition with the job's partitioner and binary-searches the MapFile index, so it never
+ * parses more than one index interval of records; {@link #cursor()} streams every record without
+ * going through text at all.
+ *
+ * <p>Jobs using {@link SkewAwarePartitioner} must call {@link #savePlan(Job)} after they complete so
+ * that readers route lookups the same way.</p>
+ *
+ * <pre>
+ *   BinaryCounts counts = new BinaryCounts(conf, new Path("wc"));
+ *   int n = counts.get("hadoop");
+ *   BinaryCounts.Cursor cursor = counts.cursor();
+ *   while (cursor.next()) {
+ *     ... cursor.key(), cursor.count() ...
+ *   }
+ *   counts.close();
+ * </pre>
+ */
+public class BinaryCounts implements Closeable {
+  private static final String PLAN_FILE = "_PARTITION_PLAN";
+
+  private final MapFile.Reader[] readers;
+  private final Partitioner<Text, VIntWritable> partitioner;
+  private final Text probe = new Text();
+  private final VIntWritable value = new VIntWritable();
+
+  /** Sets up {@code job} to write its (Text, VIntWritable) output as block-compressed MapFiles. */
+  public static void configure(Job job) {
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(VIntWritable.class);
+    job.setOutputFormatClass(MapFileOutputFormat.class);
+    FileOutputFormat.setCompressOutput(job, true);
+    SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+  }
+
+  /** Saves the partition plan of a completed job next to its output, if it has one. */
+  public static void savePlan(Job job) throws IOException {
+    Configuration conf = job.getConfiguration();
+    String plan = conf.get(SkewAwarePartitioner.PLAN);
+    if (plan == null) {
+      return;
+    }
+    Path dir = FileOutputFormat.getOutputPath(job);
+    FileSystem fs = dir.getFileSystem(conf);
+    Writer writer = new OutputStreamWriter(fs.create(new Path(dir, PLAN_FILE), true), StandardCharsets.UTF_8);
+    try {
+      writer.write(plan);
+    } finally {
+      writer.close();
+    }
+  }
+
+  public BinaryCounts(Configuration conf, Path dir) throws IOException {
+    FileSystem fs = dir.getFileSystem(conf);
+
+    List<Path> parts = new ArrayList<Path>();
+    for (FileStatus status : fs.listStatus(dir)) {
+      if (status.isDirectory() && status.getPath().getName().startsWith("part-")) {
+        parts.add(status.getPath());
+      }
+    }
+    // Partition i is the i-th part in name order.
+    Collections.sort(parts);
+    readers = new MapFile.Reader[parts.size()];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new MapFile.Reader(parts.get(i), conf);
+    }
+
+    Path plan = new Path(dir, PLAN_FILE);
+    if (fs.exists(plan)) {
+      BufferedReader reader =
+          new BufferedReader(new InputStreamReader(fs.open(plan), StandardCharsets.UTF_8));
+      Configuration planConf = new Configuration(conf);
+      try {
+        planConf.set(SkewAwarePartitioner.PLAN, reader.readLine());
+      } finally {
+        reader.close();
+      }
+      SkewAwarePartitioner<VIntWritable> p = new SkewAwarePartitioner<VIntWritable>();
+      p.setConf(planConf);
+      partitioner = p;
+    } else {
+      partitioner = new HashPartitioner<Text, VIntWritable>();
+    }
+  }
+
+  /** Returns the number of partitions. */
+  public int partitions() {
+    return readers.length;
+  }
+
+  /** Returns the count of {@code key}, or 0 if it doesn't occur. */
+  public int get(Text key) throws IOException {
+    if (readers.length == 0) {
+      return 0;
+    }
+    MapFile.Reader reader = readers[partitioner.getPartition(key, null, readers.length)];
+    return reader.get(key, value) == null ? 0 : value.get();
+  }
+
+  /** Returns the count of {@code key}, or 0 if it doesn't occur. */
+  public int get(String key) throws IOException {
+    probe.set(key);
+    return get(probe);
+  }
+
+  /**
+   * Returns a cursor over all records, partition by partition; keys are sorted within a partition.
+   * The key and count it exposes are overwritten by every call to {@link Cursor#next()}. Lookups
+   * move the same readers, so they must not be interleaved with an open cursor.
+   */
+  public Cursor cursor() throws IOException {
+    return new Cursor();
+  }
+
+  public class Cursor {
+    private final Text key = new Text();
+    private final VIntWritable count = new VIntWritable();
+    private int partition = 0;
+
+    private Cursor() throws IOException {
+      if (readers.length > 0) {
+        readers[0].reset();
+      }
+    }
+
+    public boolean next() throws IOException {
+      while (partition < readers.length) {
+        if (readers[partition].next(key, count)) {
+          return true;
+        }
+        if (++partition < readers.length) {
+          readers[partition].reset();
+        }
+      }
+      return false;
+    }
+
+    public Text key() {
+      return key;
+    }
+
+    public int count() {
+      return count.get();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (MapFile.Reader reader : readers) {
+      reader.close();
+    }
+  }
+}
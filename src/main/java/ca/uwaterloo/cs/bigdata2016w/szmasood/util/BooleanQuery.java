@@ -0,0 +1,323 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A Boolean query in postfix notation, e.g. {@code "outrageous fortune AND"}, evaluated over
+ * sorted int arrays of docids. Nested ANDs (and nested ORs) are flattened into one operator, so
+ * {@code "a b AND c AND"} intersects the three lists smallest first: each step walks the current
+ * result and gallops (exponential then binary search) through the next list, which costs
+ * O(m log(n/m)) rather than O(m + n) when a short list meets a long one. OR merges the lists
+ * linearly, also smallest first. Intermediate lists come from a pool of buffers, reused from one
+ * operator (and query) to the next.
+ *
+ * <p>Over a {@link CursorIndex}, AND reads its terms with cursors instead: the operand with the
+ * fewest docids drives, and every other one {@link Postings.Cursor#advance(int) advances} to each
+ * of its docids, so a long list skips whole blocks rather than being decoded.</p>
+ *
+ * <pre>
+ *   BooleanQuery query = BooleanQuery.parse("outrageous fortune AND");
+ *   BooleanQuery.DocList docs = query.evaluate(index);
+ *   for (int i = 0; i < docs.size(); i++) {
+ *     ... docs.get(i) ...
+ *   }
+ * </pre>
+ *
+ * Not thread-safe: buffers returned by {@link #evaluate(Index)} are reused by the next call.
+ */
+public class BooleanQuery {
+  /** Source of the docids of each term. */
+  public interface Index {
+    /** Appends the docids of {@code term} to {@code docs} by increasing docid. */
+    void fetch(String term, DocList docs) throws IOException;
+  }
+
+  /** An index that can also open a cursor on the postings of a term, for AND. */
+  public interface CursorIndex extends Index {
+    /** Returns a cursor over the postings of {@code term}, empty if it isn't indexed. */
+    Postings.Cursor cursor(String term) throws IOException;
+  }
+
+  /** A growable list of docids, sorted once built. */
+  public static class DocList {
+    private int[] docs = new int[16];
+    private int size = 0;
+
+    public void add(int docId) {
+      if (size == docs.length) {
+        docs = Arrays.copyOf(docs, size * 2);
+      }
+      docs[size++] = docId;
+    }
+
+    /** Appends sorted docids, all greater than the ones in this list. */
+    public void addAll(int[] sorted) {
+      ensureCapacity(size + sorted.length);
+      System.arraycopy(sorted, 0, docs, size, sorted.length);
+      size += sorted.length;
+    }
+
+    public int get(int i) {
+      return docs[i];
+    }
+
+    public int[] toArray() {
+      return Arrays.copyOf(docs, size);
+    }
+
+    /** Returns a cursor over this list, valid until it is modified. */
+    public Postings.Cursor cursor() {
+      return Postings.cursor(docs, size);
+    }
+
+    public int size() {
+      return size;
+    }
+
+    public void clear() {
+      size = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (docs.length < capacity) {
+        docs = Arrays.copyOf(docs, Math.max(capacity, docs.length * 2));
+      }
+    }
+  }
+
+  private static final Comparator<DocList> BY_SIZE = new Comparator<DocList>() {
+    @Override
+    public int compare(DocList a, DocList b) {
+      return Integer.compare(a.size, b.size);
+    }
+  };
+
+  private static final Comparator<Postings.Cursor> BY_DF = new Comparator<Postings.Cursor>() {
+    @Override
+    public int compare(Postings.Cursor a, Postings.Cursor b) {
+      return Integer.compare(a.df(), b.df());
+    }
+  };
+
+  private static class Node {
+    private final String term;
+    private final boolean and;
+    private final List<Node> children = new ArrayList<Node>();
+
+    private Node(String term) {
+      this.term = term;
+      this.and = false;
+    }
+
+    private Node(boolean and) {
+      this.term = null;
+      this.and = and;
+    }
+  }
+
+  private final Node root;
+  private final ArrayDeque<DocList> pool = new ArrayDeque<DocList>();
+  private DocList result;
+
+  private BooleanQuery(Node root) {
+    this.root = root;
+  }
+
+  /**
+   * Parses a query in postfix notation: terms separated by whitespace, and the binary operators
+   * AND and OR.
+   *
+   * @throws IllegalArgumentException if the query is empty or an operator lacks operands
+   */
+  public static BooleanQuery parse(String query) {
+    ArrayDeque<Node> stack = new ArrayDeque<Node>();
+    for (String token : query.trim().split("\\s+")) {
+      if (token.isEmpty()) {
+        continue;
+      }
+      boolean and = token.equals("AND");
+      if (!and && !token.equals("OR")) {
+        stack.push(new Node(token));
+        continue;
+      }
+      if (stack.size() < 2) {
+        throw new IllegalArgumentException("Missing operand of " + token + " in: " + query);
+      }
+      Node right = stack.pop();
+      Node left = stack.pop();
+      Node node = new Node(and);
+      for (Node child : new Node[] { left, right }) {
+        if (child.term == null && child.and == and) {
+          node.children.addAll(child.children);
+        } else {
+          node.children.add(child);
+        }
+      }
+      stack.push(node);
+    }
+    if (stack.size() != 1) {
+      throw new IllegalArgumentException("Not a single postfix expression: " + query);
+    }
+    return new BooleanQuery(stack.pop());
+  }
+
+  /** Returns the docids matching this query, by increasing docid. */
+  public DocList evaluate(Index index) throws IOException {
+    if (result != null) {
+      release(result);
+    }
+    result = evaluate(root, index);
+    return result;
+  }
+
+  private DocList evaluate(Node node, Index index) throws IOException {
+    if (node.term != null) {
+      DocList docs = take();
+      index.fetch(node.term, docs);
+      return docs;
+    }
+    if (node.and && index instanceof CursorIndex) {
+      return intersect(node, (CursorIndex) index);
+    }
+
+    List<DocList> lists = new ArrayList<DocList>(node.children.size());
+    for (Node child : node.children) {
+      lists.add(evaluate(child, index));
+    }
+    Collections.sort(lists, BY_SIZE);
+    DocList current = lists.get(0);
+    for (int i = 1; i < lists.size(); i++) {
+      DocList next = lists.get(i);
+      DocList out = take();
+      if (node.and) {
+        intersect(current, next, out);
+      } else {
+        union(current, next, out);
+      }
+      release(current);
+      release(next);
+      current = out;
+    }
+    return current;
+  }
+
+  // Intersects the operands of an AND node with cursors, the shortest driving.
+  private DocList intersect(Node node, CursorIndex index) throws IOException {
+    List<Postings.Cursor> cursors = new ArrayList<Postings.Cursor>(node.children.size());
+    List<DocList> lists = new ArrayList<DocList>();
+    for (Node child : node.children) {
+      if (child.term != null) {
+        cursors.add(index.cursor(child.term));
+      } else {
+        DocList docs = evaluate(child, index);
+        lists.add(docs);
+        cursors.add(docs.cursor());
+      }
+    }
+    Collections.sort(cursors, BY_DF);
+
+    DocList out = take();
+    Postings.Cursor driver = cursors.get(0);
+    candidates:
+    while (driver.next()) {
+      int docId = driver.docId();
+      for (int i = 1; i < cursors.size(); i++) {
+        Postings.Cursor cursor = cursors.get(i);
+        if (!cursor.advance(docId)) {
+          break candidates;
+        }
+        if (cursor.docId() != docId) {
+          continue candidates;
+        }
+      }
+      out.add(docId);
+    }
+    for (DocList docs : lists) {
+      release(docs);
+    }
+    return out;
+  }
+
+  private DocList take() {
+    DocList docs = pool.poll();
+    if (docs == null) {
+      docs = new DocList();
+    }
+    docs.clear();
+    return docs;
+  }
+
+  private void release(DocList docs) {
+    pool.push(docs);
+  }
+
+  /** Writes the docids in both {@code small} and {@code large} to {@code out}. */
+  public static void intersect(DocList small, DocList large, DocList out) {
+    out.clear();
+    out.ensureCapacity(Math.min(small.size, large.size));
+    int[] a = small.docs;
+    int[] b = large.docs;
+    int j = 0;
+    for (int i = 0; i < small.size && j < large.size; i++) {
+      j = gallop(b, j, large.size, a[i]);
+      if (j < large.size && b[j] == a[i]) {
+        out.docs[out.size++] = a[i];
+        j++;
+      }
+    }
+  }
+
+  /** Writes the docids in {@code a} or {@code b} to {@code out}. */
+  public static void union(DocList a, DocList b, DocList out) {
+    out.clear();
+    out.ensureCapacity(a.size + b.size);
+    int[] x = a.docs;
+    int[] y = b.docs;
+    int[] merged = out.docs;
+    int i = 0;
+    int j = 0;
+    int n = 0;
+    while (i < a.size && j < b.size) {
+      if (x[i] < y[j]) {
+        merged[n++] = x[i++];
+      } else if (x[i] > y[j]) {
+        merged[n++] = y[j++];
+      } else {
+        merged[n++] = x[i++];
+        j++;
+      }
+    }
+    while (i < a.size) {
+      merged[n++] = x[i++];
+    }
+    while (j < b.size) {
+      merged[n++] = y[j++];
+    }
+    out.size = n;
+  }
+
+  /** Returns the first index in [from, to) whose docid is at least target, or to. */
+  private static int gallop(int[] docs, int from, int to, int target) {
+    int bound = 1;
+    while (from + bound < to && docs[from + bound] < target) {
+      bound <<= 1;
+    }
+    int lo = from + (bound >> 1);
+    int hi = Math.min(from + bound, to);
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (docs[mid] < target) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+}
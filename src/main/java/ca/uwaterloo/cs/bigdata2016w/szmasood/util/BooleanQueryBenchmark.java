@@ -0,0 +1,130 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.Set;
+import java.util.Stack;
+import java.util.TreeSet;
+
+/**
+ * Compares {@link BooleanQuery} with the TreeSet evaluation the Boolean retrieval tools used
+ * before (a boxed set per term, AND by lookups of one set in the other, OR into a new set), on
+ * synthetic postings with Zipf-like lengths: the list of the term of rank r has about
+ * {@code docs / r} docids. For each query shape, terms are drawn uniformly, so most queries mix a
+ * short list with a long one. Both sides fetch the docids of every term from int arrays; reports
+ * the mean time per query and checks that both return the same documents.
+ *
+ * <pre>
+ *   java -cp target/bigdata2016w-0.1.0-SNAPSHOT.jar \
+ *     ca.uwaterloo.cs.bigdata2016w.szmasood.util.BooleanQueryBenchmark [docs] [terms] [queries]
+ * </pre>
+ */
+public class BooleanQueryBenchmark {
+  private static final String[] SHAPES = {
+    "t0 t1 AND", "t0 t1 OR", "t0 t1 AND t2 AND", "t0 t1 OR t2 AND", "t0 t1 AND t2 t3 AND OR"
+  };
+
+  private BooleanQueryBenchmark() {}
+
+  public static void main(String[] args) throws IOException {
+    int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int numTerms = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    int numQueries = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+    Random random = new Random(0);
+    final int[][] postings = new int[numTerms][];
+    for (int t = 0; t < numTerms; t++) {
+      int maxGap = Math.max(1, 2 * (t + 1));
+      BooleanQuery.DocList docs = new BooleanQuery.DocList();
+      for (int doc = random.nextInt(maxGap); doc < numDocs; doc += 1 + random.nextInt(maxGap)) {
+        docs.add(doc);
+      }
+      postings[t] = new int[docs.size()];
+      for (int i = 0; i < docs.size(); i++) {
+        postings[t][i] = docs.get(i);
+      }
+    }
+    BooleanQuery.Index index = new BooleanQuery.Index() {
+      @Override
+      public void fetch(String term, BooleanQuery.DocList docs) {
+        for (int doc : postings[Integer.parseInt(term)]) {
+          docs.add(doc);
+        }
+      }
+    };
+
+    for (String shape : SHAPES) {
+      String[] queries = new String[numQueries];
+      for (int q = 0; q < numQueries; q++) {
+        String query = shape;
+        for (int i = 0; i < 4; i++) {
+          query = query.replace("t" + i, Integer.toString(random.nextInt(numTerms)));
+        }
+        queries[q] = query;
+      }
+
+      // The first pass warms up the JIT, the second one is measured.
+      long treeSetNanos = 0;
+      long arrayNanos = 0;
+      long treeSetChecksum = 0;
+      long arrayChecksum = 0;
+      for (int pass = 0; pass < 2; pass++) {
+        treeSetChecksum = 0;
+        long startTime = System.nanoTime();
+        for (String query : queries) {
+          for (int doc : evaluateTreeSets(query, postings)) {
+            treeSetChecksum += doc;
+          }
+        }
+        treeSetNanos = System.nanoTime() - startTime;
+
+        arrayChecksum = 0;
+        startTime = System.nanoTime();
+        for (String query : queries) {
+          BooleanQuery.DocList docs = BooleanQuery.parse(query).evaluate(index);
+          for (int i = 0; i < docs.size(); i++) {
+            arrayChecksum += docs.get(i);
+          }
+        }
+        arrayNanos = System.nanoTime() - startTime;
+      }
+      if (treeSetChecksum != arrayChecksum) {
+        throw new IllegalStateException("Results differ for " + shape);
+      }
+
+      System.out.println(String.format(
+          "%-26s TreeSet %10.1f us per query, int[] %10.1f us per query (%.1fx)",
+          shape, treeSetNanos / 1e3 / numQueries, arrayNanos / 1e3 / numQueries,
+          (double) treeSetNanos / arrayNanos));
+    }
+  }
+
+  private static Set<Integer> evaluateTreeSets(String query, int[][] postings) {
+    Stack<Set<Integer>> stack = new Stack<Set<Integer>>();
+    for (String t : query.split("\\s+")) {
+      if (t.equals("AND")) {
+        Set<Integer> s1 = stack.pop();
+        Set<Integer> s2 = stack.pop();
+        Set<Integer> sn = new TreeSet<Integer>();
+        for (int n : s1) {
+          if (s2.contains(n)) {
+            sn.add(n);
+          }
+        }
+        stack.push(sn);
+      } else if (t.equals("OR")) {
+        Set<Integer> sn = new TreeSet<Integer>();
+        sn.addAll(stack.pop());
+        sn.addAll(stack.pop());
+        stack.push(sn);
+      } else {
+        Set<Integer> set = new TreeSet<Integer>();
+        for (int doc : postings[Integer.parseInt(t)]) {
+          set.add(doc);
+        }
+        stack.push(set);
+      }
+    }
+    return stack.pop();
+  }
+}
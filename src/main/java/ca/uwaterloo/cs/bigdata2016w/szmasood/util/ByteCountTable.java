@@ -0,0 +1,291 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Memory-bounded counter table for in-mapper combining. Keys are byte slices (e.g. the current
+ * token of a {@link TextTokenizer}) copied into a single slab; counts are primitive ints kept in an
+ * open-addressing (linear probing) table, so incrementing an existing key allocates nothing.
+ *
+ * <p>Once the table can't grow again within the configured budget the mapper should flush the
+ * partial counts to the context (the combiner/reducer sums them up as usual) and keep going:</p>
+ * <pre>
+ *   COUNTS.increment(TOKENIZER.bytes(), 0, TOKENIZER.length());
+ *   COUNTS.flushIfFull(context);
+ *   ...
+ *   // in cleanup()
+ *   COUNTS.flush(context);
+ * </pre>
+ */
+public class ByteCountTable {
+  /** Configuration key holding the memory budget in bytes. */
+  public static final String BUDGET = "imc.budget.bytes";
+  public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+  public static enum Counters {
+    // Number of flushes forced by the memory budget (the final flush in cleanup is not counted).
+    FLUSHES,
+    // Largest table footprint reached by a task, in bytes (summed over tasks in the job totals).
+    PEAK_BYTES
+  }
+
+  private static final int EMPTY = -1;
+  // Per slot: offset, length, hash and count, one int each.
+  private static final int BYTES_PER_SLOT = 16;
+
+  private final long budget;
+  private final Text key = new Text();
+  private final IntWritable value = new IntWritable();
+
+  private byte[] slab;
+  private int slabUsed;
+  // Longest key added so far: the slab may grow on the next insertion once it has less room left.
+  private int maxLength;
+
+  private int[] offsets;
+  private int[] lengths;
+  private int[] hashes;
+  private int[] counts;
+  private int mask;
+  private int size;
+
+  private long peakBytes;
+
+  public ByteCountTable(long budget) {
+    this.budget = budget;
+    this.slab = new byte[64 * 1024];
+    allocate(1024);
+  }
+
+  /** Creates a table using the budget set under {@link #BUDGET} in the job configuration. */
+  public ByteCountTable(TaskInputOutputContext<?, ?, ?, ?> context) {
+    this(context.getConfiguration().getLong(BUDGET, DEFAULT_BUDGET));
+  }
+
+  public void increment(byte[] bytes, int offset, int length) {
+    increment(bytes, offset, length, 1);
+  }
+
+  public void increment(byte[] bytes, int offset, int length, int delta) {
+    int h = hash(bytes, offset, length);
+    int slot = h & mask;
+    while (offsets[slot] != EMPTY) {
+      if (hashes[slot] == h && lengths[slot] == length
+          && equal(slab, offsets[slot], bytes, offset, length)) {
+        counts[slot] += delta;
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    if (slabUsed + length > slab.length) {
+      slab = Arrays.copyOf(slab, Math.max(slab.length * 2, slabUsed + length));
+    }
+    System.arraycopy(bytes, offset, slab, slabUsed, length);
+    offsets[slot] = slabUsed;
+    lengths[slot] = length;
+    hashes[slot] = h;
+    counts[slot] = delta;
+    slabUsed += length;
+    maxLength = Math.max(maxLength, length);
+    size++;
+
+    // Keep the load factor at or below 1/2.
+    if (size * 2 > offsets.length) {
+      rehash();
+    }
+    peakBytes = Math.max(peakBytes, memoryBytes());
+  }
+
+  /** Returns the count of the given key, or 0 if it isn't in the table. */
+  public int get(byte[] bytes, int offset, int length) {
+    int h = hash(bytes, offset, length);
+    for (int slot = h & mask; offsets[slot] != EMPTY; slot = (slot + 1) & mask) {
+      if (hashes[slot] == h && lengths[slot] == length
+          && equal(slab, offsets[slot], bytes, offset, length)) {
+        return counts[slot];
+      }
+    }
+    return 0;
+  }
+
+  /** Returns the number of distinct keys currently held. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns the bytes currently allocated by the table. */
+  public long memoryBytes() {
+    return slab.length + (long) offsets.length * BYTES_PER_SLOT;
+  }
+
+  /**
+   * Returns the bytes needed by the keys currently held, i.e. key bytes plus their slots at the
+   * maximum load factor. Unlike {@link #memoryBytes()} this drops back to zero after a flush.
+   */
+  public long usedBytes() {
+    return slabUsed + 2L * size * BYTES_PER_SLOT;
+  }
+
+  /**
+   * Returns whether the next insertion may take the table past its budget: the arrays grow by
+   * doubling, and while one is copied both copies are allocated, so what counts is the bytes
+   * allocated plus those of the next resize, if the next insertion may trigger it. Arrays are kept
+   * across flushes, so an emptied table is never full.
+   */
+  public boolean isFull() {
+    long growth = 0;
+    if ((size + 1) * 2 > offsets.length) {
+      growth += (long) offsets.length * 2 * BYTES_PER_SLOT;
+    }
+    if (slabUsed + maxLength > slab.length) {
+      growth += (long) slab.length * 2;
+    }
+    return growth > 0 && memoryBytes() + growth > budget;
+  }
+
+  /**
+   * Flushes the partial counts if the table has reached its budget.
+   */
+  public void flushIfFull(TaskInputOutputContext<?, ?, Text, IntWritable> context)
+      throws IOException, InterruptedException {
+    if (isFull()) {
+      context.getCounter(Counters.FLUSHES).increment(1);
+      flush(context);
+    }
+  }
+
+  /**
+   * Writes every (key, count) pair to the context and empties the table.
+   */
+  public void flush(TaskInputOutputContext<?, ?, Text, IntWritable> context)
+      throws IOException, InterruptedException {
+    for (int slot = 0; slot < offsets.length; slot++) {
+      if (offsets[slot] != EMPTY) {
+        key.set(slab, offsets[slot], lengths[slot]);
+        value.set(counts[slot]);
+        context.write(key, value);
+      }
+    }
+
+    Counter peak = context.getCounter(Counters.PEAK_BYTES);
+    if (peakBytes > peak.getValue()) {
+      peak.setValue(peakBytes);
+    }
+    clear();
+  }
+
+  /**
+   * Writes the table as a VInt size followed by (VInt length, key bytes, VInt count) records by
+   * increasing key bytes, for side files that other tasks load with {@link #addFrom(DataInput)} or
+   * merge with {@link CountDictionary#mergeTables}.
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    Integer[] slots = new Integer[size];
+    int n = 0;
+    for (int slot = 0; slot < offsets.length; slot++) {
+      if (offsets[slot] != EMPTY) {
+        slots[n++] = slot;
+      }
+    }
+    Arrays.sort(slots, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return WritableComparator.compareBytes(slab, offsets[a], lengths[a],
+            slab, offsets[b], lengths[b]);
+      }
+    });
+
+    WritableUtils.writeVInt(out, size);
+    for (int slot : slots) {
+      WritableUtils.writeVInt(out, lengths[slot]);
+      out.write(slab, offsets[slot], lengths[slot]);
+      WritableUtils.writeVInt(out, counts[slot]);
+    }
+  }
+
+  /** Adds the counts written by {@link #writeTo(DataOutput)} to this table. */
+  public void addFrom(DataInput in) throws IOException {
+    byte[] buffer = new byte[64];
+    int n = WritableUtils.readVInt(in);
+    for (int i = 0; i < n; i++) {
+      int length = WritableUtils.readVInt(in);
+      if (buffer.length < length) {
+        buffer = new byte[length * 2];
+      }
+      in.readFully(buffer, 0, length);
+      increment(buffer, 0, length, WritableUtils.readVInt(in));
+    }
+  }
+
+  public void clear() {
+    // Arrays are kept: the table is bounded by the budget and will most likely fill up again.
+    Arrays.fill(offsets, EMPTY);
+    slabUsed = 0;
+    size = 0;
+  }
+
+  private void allocate(int capacity) {
+    offsets = new int[capacity];
+    lengths = new int[capacity];
+    hashes = new int[capacity];
+    counts = new int[capacity];
+    Arrays.fill(offsets, EMPTY);
+    mask = capacity - 1;
+  }
+
+  private void rehash() {
+    int[] oldOffsets = offsets;
+    int[] oldLengths = lengths;
+    int[] oldHashes = hashes;
+    int[] oldCounts = counts;
+
+    allocate(oldOffsets.length * 2);
+    for (int i = 0; i < oldOffsets.length; i++) {
+      if (oldOffsets[i] != EMPTY) {
+        int slot = oldHashes[i] & mask;
+        while (offsets[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        offsets[slot] = oldOffsets[i];
+        lengths[slot] = oldLengths[i];
+        hashes[slot] = oldHashes[i];
+        counts[slot] = oldCounts[i];
+      }
+    }
+  }
+
+  private static boolean equal(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+    for (int i = 0; i < length; i++) {
+      if (a[aOffset + i] != b[bOffset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static int hash(byte[] bytes, int offset, int length) {
+    // FNV-1a followed by the murmur3 finalizer so that the low bits used for probing are well mixed.
+    int h = 0x811C9DC5;
+    for (int i = offset; i < offset + length; i++) {
+      h = (h ^ bytes[i]) * 0x01000193;
+    }
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
@@ -0,0 +1,467 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Read-only (term, count) dictionary in a single file meant to be memory-mapped, e.g. the marginals
+ * shipped to every PMI reducer through the distributed cache. Opening it maps the file and reads a
+ * fixed-size trailer, so it costs neither parse time nor heap, and lookups allocate nothing.
+ *
+ * <p>Layout, all ints little-endian:</p>
+ * <pre>
+ *   terms:   blocks of BLOCK_SIZE terms sorted by their UTF-8 bytes. The first term of a block is
+ *            stored whole (varint length, bytes), the others front-coded against their predecessor
+ *            (varint shared prefix length, varint suffix length, suffix bytes)
+ *   index:   int offset of every block in the terms section
+ *   counts:  one count per term, in term order, on the fewest bytes (1 to 4) that fit the largest
+ *   trailer: int numTerms, int numBlocks, int indexOffset, int countsOffset, int countBytes, int MAGIC
+ * </pre>
+ * A lookup binary-searches the first terms of the blocks, which are compared in place, then decodes
+ * at most one block. Lookups reuse a scratch buffer, so an instance must not be shared by threads.
+ */
+public class CountDictionary {
+  public static final int BLOCK_SIZE = 16;
+  private static final int MAGIC = 0x43444943;
+  private static final int TRAILER_BYTES = 6 * 4;
+
+  private final MappedByteBuffer buffer;
+  private final int numTerms;
+  private final int numBlocks;
+  private final int indexOffset;
+  private final int countsOffset;
+  private final int countBytes;
+  // The term being decoded while scanning a block.
+  private byte[] scratch = new byte[64];
+  private final Text probe = new Text();
+
+  private CountDictionary(MappedByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    int trailer = buffer.limit() - TRAILER_BYTES;
+    if (trailer < 0 || buffer.getInt(trailer + 20) != MAGIC) {
+      throw new IOException("Not a count dictionary");
+    }
+    numTerms = buffer.getInt(trailer);
+    numBlocks = buffer.getInt(trailer + 4);
+    indexOffset = buffer.getInt(trailer + 8);
+    countsOffset = buffer.getInt(trailer + 12);
+    countBytes = buffer.getInt(trailer + 16);
+  }
+
+  /** Maps {@code file} read-only. The mapping stays valid after the file is closed. */
+  public static CountDictionary open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return new CountDictionary(
+          raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+    } finally {
+      raf.close();
+    }
+  }
+
+  public int size() {
+    return numTerms;
+  }
+
+  /** Returns the count of the given term, or 0 if it isn't in the dictionary. */
+  public int get(byte[] key, int offset, int length) {
+    // Last block whose first term is <= key.
+    int lo = 0;
+    int hi = numBlocks - 1;
+    int block = -1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int pos = buffer.getInt(indexOffset + 4 * mid);
+      int len = readVarint(pos);
+      int c = compare(pos + varintSize(len), len, key, offset, length);
+      if (c == 0) {
+        return count(mid * BLOCK_SIZE);
+      } else if (c < 0) {
+        block = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    if (block < 0) {
+      return 0;
+    }
+
+    int pos = buffer.getInt(indexOffset + 4 * block);
+    int len = readVarint(pos);
+    pos += varintSize(len);
+    ensureScratch(len);
+    for (int i = 0; i < len; i++) {
+      scratch[i] = buffer.get(pos + i);
+    }
+    pos += len;
+    int end = Math.min(numTerms, (block + 1) * BLOCK_SIZE);
+    for (int term = block * BLOCK_SIZE + 1; term < end; term++) {
+      int shared = readVarint(pos);
+      pos += varintSize(shared);
+      int suffix = readVarint(pos);
+      pos += varintSize(suffix);
+      len = shared + suffix;
+      ensureScratch(len);
+      for (int i = 0; i < suffix; i++) {
+        scratch[shared + i] = buffer.get(pos + i);
+      }
+      pos += suffix;
+
+      int c = compareBytes(scratch, 0, len, key, offset, length);
+      if (c == 0) {
+        return count(term);
+      } else if (c > 0) {
+        return 0;
+      }
+    }
+    return 0;
+  }
+
+  public int get(Text key) {
+    return get(key.getBytes(), 0, key.getLength());
+  }
+
+  public int get(String key) {
+    probe.set(key);
+    return get(probe);
+  }
+
+  private int count(int term) {
+    int pos = countsOffset + term * countBytes;
+    int value = 0;
+    for (int i = 0; i < countBytes; i++) {
+      value |= (buffer.get(pos + i) & 0xFF) << (8 * i);
+    }
+    return value;
+  }
+
+  private void ensureScratch(int length) {
+    if (scratch.length < length) {
+      scratch = Arrays.copyOf(scratch, length * 2);
+    }
+  }
+
+  private int compare(int pos, int len, byte[] key, int offset, int length) {
+    int n = Math.min(len, length);
+    for (int i = 0; i < n; i++) {
+      int a = buffer.get(pos + i) & 0xFF;
+      int b = key[offset + i] & 0xFF;
+      if (a != b) {
+        return a - b;
+      }
+    }
+    return len - length;
+  }
+
+  private static int compareBytes(byte[] a, int aOffset, int aLength,
+      byte[] b, int bOffset, int bLength) {
+    int n = Math.min(aLength, bLength);
+    for (int i = 0; i < n; i++) {
+      int x = a[aOffset + i] & 0xFF;
+      int y = b[bOffset + i] & 0xFF;
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return aLength - bLength;
+  }
+
+  private int readVarint(int pos) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buffer.get(pos++);
+      value |= (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  private static int varintSize(int value) {
+    int n = 1;
+    while ((value >>>= 7) != 0) {
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Writes a dictionary from terms added in increasing byte order. Counts are buffered until
+   * {@link #close()}, 4 bytes per term.
+   */
+  public static class Writer {
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+    private int[] counts = new int[1024];
+    private int numTerms = 0;
+    private int maxCount = 0;
+    private byte[] previous = new byte[64];
+    private int previousLength = 0;
+    private int written = 0;
+
+    public Writer(OutputStream out) {
+      this.out = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    public void add(byte[] term, int offset, int length, int count) throws IOException {
+      if (numTerms > 0 && compareBytes(previous, 0, previousLength, term, offset, length) >= 0) {
+        throw new IllegalArgumentException("Terms must be added in strictly increasing order");
+      }
+      if (count < 0) {
+        throw new IllegalArgumentException("Negative count");
+      }
+
+      if (numTerms % BLOCK_SIZE == 0) {
+        writeIntLE(index, written);
+        writeVarint(length);
+        out.write(term, offset, length);
+        written += length;
+      } else {
+        int shared = 0;
+        int n = Math.min(previousLength, length);
+        while (shared < n && previous[shared] == term[offset + shared]) {
+          shared++;
+        }
+        writeVarint(shared);
+        writeVarint(length - shared);
+        out.write(term, offset + shared, length - shared);
+        written += length - shared;
+      }
+
+      if (previous.length < length) {
+        previous = new byte[length * 2];
+      }
+      System.arraycopy(term, offset, previous, 0, length);
+      previousLength = length;
+
+      if (numTerms == counts.length) {
+        counts = Arrays.copyOf(counts, counts.length * 2);
+      }
+      counts[numTerms++] = count;
+      maxCount = Math.max(maxCount, count);
+    }
+
+    public void close() throws IOException {
+      int indexOffset = written;
+      index.writeTo(out);
+      int countsOffset = indexOffset + index.size();
+      int countBytes = 1;
+      while (countBytes < 4 && (maxCount >>> (8 * countBytes)) != 0) {
+        countBytes++;
+      }
+      for (int i = 0; i < numTerms; i++) {
+        for (int b = 0; b < countBytes; b++) {
+          out.write(counts[i] >>> (8 * b));
+        }
+      }
+
+      ByteArrayOutputStream trailer = new ByteArrayOutputStream();
+      writeIntLE(trailer, numTerms);
+      writeIntLE(trailer, (numTerms + BLOCK_SIZE - 1) / BLOCK_SIZE);
+      writeIntLE(trailer, indexOffset);
+      writeIntLE(trailer, countsOffset);
+      writeIntLE(trailer, countBytes);
+      writeIntLE(trailer, MAGIC);
+      trailer.writeTo(out);
+      out.close();
+    }
+
+    private void writeVarint(int value) throws IOException {
+      while ((value & ~0x7F) != 0) {
+        out.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+        written++;
+      }
+      out.write(value);
+      written++;
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException {
+      for (int b = 0; b < 4; b++) {
+        out.write(value >>> (8 * b));
+      }
+    }
+  }
+
+  /**
+   * Builds a dictionary from the text ("term\tcount") part files of a job, each sorted by term, by
+   * merging them.
+   */
+  public static void build(FileSystem fs, Path parts, Path dictionary) throws IOException {
+    List<BufferedReader> readers = new ArrayList<BufferedReader>();
+    PriorityQueue<Head> heads = new PriorityQueue<Head>();
+    Writer writer = new Writer(fs.create(dictionary, true));
+    try {
+      for (FileStatus f : fs.listStatus(parts)) {
+        if (!f.getPath().getName().startsWith("part-")) {
+          continue;
+        }
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(fs.open(f.getPath()), StandardCharsets.UTF_8));
+        readers.add(reader);
+        Head head = new Head(reader);
+        if (head.advance()) {
+          heads.add(head);
+        }
+      }
+
+      while (!heads.isEmpty()) {
+        Head head = heads.poll();
+        writer.add(head.term, 0, head.term.length, head.count);
+        if (head.advance()) {
+          heads.add(head);
+        }
+      }
+    } finally {
+      writer.close();
+      for (BufferedReader reader : readers) {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Builds a dictionary from the side files of a job's tasks in {@code dir}, each written by
+   * {@link ByteCountTable#writeTo} (so sorted by term), by merging them and summing the counts of
+   * equal terms. Terms whose total is below {@code minCount} are left out. Files whose name starts
+   * with "_" or "." are ignored. Returns the number of terms written.
+   */
+  public static int mergeTables(FileSystem fs, Path dir, int minCount, Path dictionary)
+      throws IOException {
+    List<DataInputStream> inputs = new ArrayList<DataInputStream>();
+    PriorityQueue<TableHead> heads = new PriorityQueue<TableHead>();
+    Writer writer = new Writer(fs.create(dictionary, true));
+    try {
+      for (FileStatus f : fs.listStatus(dir)) {
+        String name = f.getPath().getName();
+        if (name.startsWith("_") || name.startsWith(".")) {
+          continue;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(fs.open(f.getPath())));
+        inputs.add(in);
+        TableHead head = new TableHead(in);
+        if (head.advance()) {
+          heads.add(head);
+        }
+      }
+
+      byte[] term = new byte[64];
+      while (!heads.isEmpty()) {
+        TableHead head = heads.poll();
+        int length = head.length;
+        if (term.length < length) {
+          term = new byte[length * 2];
+        }
+        System.arraycopy(head.term, 0, term, 0, length);
+        long count = head.count;
+        if (head.advance()) {
+          heads.add(head);
+        }
+        while (!heads.isEmpty() && compareBytes(heads.peek().term, 0, heads.peek().length,
+            term, 0, length) == 0) {
+          TableHead same = heads.poll();
+          count += same.count;
+          if (same.advance()) {
+            heads.add(same);
+          }
+        }
+        if (count >= minCount) {
+          writer.add(term, 0, length, (int) Math.min(count, Integer.MAX_VALUE));
+        }
+      }
+    } finally {
+      writer.close();
+      for (DataInputStream in : inputs) {
+        in.close();
+      }
+    }
+    return writer.numTerms;
+  }
+
+  // Current line of one part file.
+  private static class Head implements Comparable<Head> {
+    private final BufferedReader reader;
+    private byte[] term;
+    private int count;
+
+    private Head(BufferedReader reader) {
+      this.reader = reader;
+    }
+
+    private boolean advance() throws IOException {
+      String line = reader.readLine();
+      if (line == null) {
+        return false;
+      }
+      int tab = line.lastIndexOf('\t');
+      term = line.substring(0, tab).getBytes(StandardCharsets.UTF_8);
+      count = Integer.parseInt(line.substring(tab + 1));
+      return true;
+    }
+
+    @Override
+    public int compareTo(Head other) {
+      return compareBytes(term, 0, term.length, other.term, 0, other.term.length);
+    }
+  }
+
+  // Current record of one ByteCountTable side file.
+  private static class TableHead implements Comparable<TableHead> {
+    private final DataInputStream in;
+    private int remaining = -1;
+    private byte[] term = new byte[64];
+    private int length;
+    private int count;
+
+    private TableHead(DataInputStream in) {
+      this.in = in;
+    }
+
+    private boolean advance() throws IOException {
+      if (remaining < 0) {
+        remaining = WritableUtils.readVInt(in);
+      }
+      if (remaining == 0) {
+        return false;
+      }
+      remaining--;
+      length = WritableUtils.readVInt(in);
+      if (term.length < length) {
+        term = new byte[length * 2];
+      }
+      in.readFully(term, 0, length);
+      count = WritableUtils.readVInt(in);
+      return true;
+    }
+
+    @Override
+    public int compareTo(TableHead other) {
+      return compareBytes(term, 0, length, other.term, 0, other.length);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Count-Min sketch over byte-slice keys in fixed memory. Estimates never undercount, and with
+ * probability 1 - delta overcount by at most {@code epsilon * total()}, where
+ * width = ceil(e / epsilon) and depth = ceil(ln(1 / delta)). Sketches with the same dimensions can be
+ * merged, which is what lets mappers ship sketches instead of their vocabulary.
+ */
+public class CountMinSketch implements Writable {
+  private int depth;
+  private int width;
+  private long[] table;
+  private long total;
+
+  /** For deserialization only. */
+  public CountMinSketch() {}
+
+  public CountMinSketch(int depth, int width) {
+    this.depth = depth;
+    this.width = width;
+    this.table = new long[depth * width];
+  }
+
+  public static CountMinSketch withErrorBounds(double epsilon, double delta) {
+    return new CountMinSketch((int) Math.ceil(Math.log(1 / delta)), (int) Math.ceil(Math.E / epsilon));
+  }
+
+  public void add(byte[] bytes, int offset, int length, long count) {
+    int h1 = ByteCountTable.hash(bytes, offset, length);
+    int h2 = secondHash(h1);
+    for (int i = 0; i < depth; i++) {
+      table[i * width + bucket(h1, h2, i)] += count;
+    }
+    total += count;
+  }
+
+  /** Returns an upper bound of the count of the given key. */
+  public long estimate(byte[] bytes, int offset, int length) {
+    int h1 = ByteCountTable.hash(bytes, offset, length);
+    int h2 = secondHash(h1);
+    long min = Long.MAX_VALUE;
+    for (int i = 0; i < depth; i++) {
+      min = Math.min(min, table[i * width + bucket(h1, h2, i)]);
+    }
+    return min;
+  }
+
+  public void merge(CountMinSketch other) {
+    if (other.depth != depth || other.width != width) {
+      throw new IllegalArgumentException("Cannot merge a " + other.depth + "x" + other.width
+          + " sketch into a " + depth + "x" + width + " sketch");
+    }
+    for (int i = 0; i < table.length; i++) {
+      table[i] += other.table[i];
+    }
+    total += other.total;
+  }
+
+  public int depth() {
+    return depth;
+  }
+
+  public int width() {
+    return width;
+  }
+
+  /** Returns the sum of all counts added. */
+  public long total() {
+    return total;
+  }
+
+  /** Returns the additive error that estimates stay within with probability 1 - delta. */
+  public long errorBound() {
+    return (long) Math.ceil(Math.E / width * total);
+  }
+
+  // Kirsch-Mitzenmacher: the i-th hash is h1 + i * h2.
+  private int bucket(int h1, int h2, int i) {
+    return ((h1 + i * h2) & Integer.MAX_VALUE) % width;
+  }
+
+  private static int secondHash(int h) {
+    h = (h ^ (h >>> 15)) * 0x2C1B3C6D;
+    h = (h ^ (h >>> 12)) * 0x297A2D39;
+    return (h ^ (h >>> 15)) | 1;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, depth);
+    WritableUtils.writeVInt(out, width);
+    WritableUtils.writeVLong(out, total);
+    // Most cells of a mapper's sketch are small or zero, so VLongs keep this compact.
+    for (long cell : table) {
+      WritableUtils.writeVLong(out, cell);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    depth = WritableUtils.readVInt(in);
+    width = WritableUtils.readVInt(in);
+    total = WritableUtils.readVLong(in);
+    if (table == null || table.length != depth * width) {
+      table = new long[depth * width];
+    }
+    for (int i = 0; i < table.length; i++) {
+      table[i] = WritableUtils.readVLong(in);
+    }
+  }
+
+  /** Returns an empty sketch with the same dimensions. */
+  public CountMinSketch emptyCopy() {
+    return new CountMinSketch(depth, width);
+  }
+
+  public void clear() {
+    Arrays.fill(table, 0);
+    total = 0;
+  }
+}
@@ -0,0 +1,172 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Stripe of float values keyed by word, for Spark: an open-addressing (linear probing) map over a
+ * String array and a float array, so values are never boxed and adding to an existing entry
+ * allocates nothing.
+ *
+ * <p>Kryo writes it as VInt size, then per entry the word and the float value; Java serialization
+ * writes the arrays. {@link #toString()} prints the entries sorted by word, as
+ * {@code {a=0.5, b=0.25}}.</p>
+ */
+public class FloatStripe implements KryoSerializable, Serializable {
+  private String[] keys;
+  private float[] values;
+  // Hash codes of the keys, so that probing and rehashing compare ints first.
+  private int[] hashes;
+  private int mask;
+  private int size;
+
+  public FloatStripe() {
+    allocate(8);
+  }
+
+  public void increment(String key) {
+    increment(key, 1f);
+  }
+
+  public void increment(String key, float delta) {
+    int h = hash(key);
+    int slot = slot(key, h);
+    if (keys[slot] != null) {
+      values[slot] += delta;
+      return;
+    }
+    keys[slot] = key;
+    values[slot] = delta;
+    hashes[slot] = h;
+    size++;
+    // Keep the load factor at or below 1/2.
+    if (size * 2 > keys.length) {
+      rehash();
+    }
+  }
+
+  /** Returns the value of {@code key}, or 0 if it isn't in the stripe. */
+  public float get(String key) {
+    int slot = slot(key, hash(key));
+    return keys[slot] != null ? values[slot] : 0f;
+  }
+
+  /** Adds every entry of {@code other} to this stripe. */
+  public void plus(FloatStripe other) {
+    for (int slot = 0; slot < other.keys.length; slot++) {
+      if (other.keys[slot] != null) {
+        increment(other.keys[slot], other.values[slot]);
+      }
+    }
+  }
+
+  /** Divides every value by the sum of the values, e.g. to turn counts into frequencies. */
+  public void normalize() {
+    float sum = 0f;
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != null) {
+        sum += values[slot];
+      }
+    }
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != null) {
+        values[slot] /= sum;
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private static int hash(String key) {
+    // Mix the bits: the slot is taken from the low bits only.
+    int h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private int slot(String key, int h) {
+    int slot = h & mask;
+    while (keys[slot] != null && (hashes[slot] != h || !keys[slot].equals(key))) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void allocate(int capacity) {
+    keys = new String[capacity];
+    values = new float[capacity];
+    hashes = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  private void rehash() {
+    String[] oldKeys = keys;
+    float[] oldValues = values;
+    int[] oldHashes = hashes;
+    allocate(oldKeys.length * 2);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null) {
+        int slot = oldHashes[i] & mask;
+        while (keys[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+        hashes[slot] = oldHashes[i];
+      }
+    }
+  }
+
+  @Override
+  public void write(Kryo kryo, Output output) {
+    output.writeVarInt(size, true);
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != null) {
+        output.writeString(keys[slot]);
+        output.writeFloat(values[slot]);
+      }
+    }
+  }
+
+  @Override
+  public void read(Kryo kryo, Input input) {
+    int n = input.readVarInt(true);
+    int capacity = 8;
+    while (capacity < n * 2) {
+      capacity *= 2;
+    }
+    allocate(capacity);
+    size = 0;
+    for (int i = 0; i < n; i++) {
+      String key = input.readString();
+      increment(key, input.readFloat());
+    }
+  }
+
+  @Override
+  public String toString() {
+    String[] sorted = new String[size];
+    int n = 0;
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != null) {
+        sorted[n++] = keys[slot];
+      }
+    }
+    Arrays.sort(sorted);
+
+    StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < n; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(sorted[i]).append('=').append(get(sorted[i]));
+    }
+    return sb.append('}').toString();
+  }
+}
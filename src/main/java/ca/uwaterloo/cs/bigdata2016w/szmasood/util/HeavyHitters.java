@@ -0,0 +1,87 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Merges per-split {@link CountMinSketch}/{@link SpaceSaving} pairs into a global top-k list with
+ * error bounds. Any key whose total count exceeds total / capacity is monitored by at least one
+ * summary, so the union of the summaries holds every real heavy hitter. For each candidate:
+ * <ul>
+ *   <li>upper bound: its counts in the summaries monitoring it, plus the smallest count of every
+ *   full summary that doesn't, capped by the merged Count-Min estimate;</li>
+ *   <li>lower bound: the sum of (count - error) over the summaries monitoring it.</li>
+ * </ul>
+ * Inputs are copied, so Hadoop's reused value objects can be passed in directly.
+ */
+public class HeavyHitters {
+  public static class Entry {
+    public final String key;
+    public final long estimate;
+    public final long lower;
+
+    private Entry(String key, long estimate, long lower) {
+      this.key = key;
+      this.estimate = estimate;
+      this.lower = lower;
+    }
+  }
+
+  private CountMinSketch sketch;
+  private long minSum;
+  // Per candidate: {sum of (count - minCount) over summaries monitoring it, sum of (count - error)}.
+  private final HashMap<String, long[]> candidates = new HashMap<String, long[]>();
+
+  public void add(CountMinSketch cms, SpaceSaving summary) {
+    if (sketch == null) {
+      sketch = cms.emptyCopy();
+    }
+    sketch.merge(cms);
+
+    long min = summary.minCount();
+    minSum += min;
+    for (int i = 0; i < summary.size(); i++) {
+      String key = summary.key(i).toString();
+      long[] c = candidates.get(key);
+      if (c == null) {
+        c = new long[2];
+        candidates.put(key, c);
+      }
+      c[0] += summary.count(i) - min;
+      c[1] += summary.count(i) - summary.error(i);
+    }
+  }
+
+  /** Returns the merged sketch, or null if nothing was added. */
+  public CountMinSketch sketch() {
+    return sketch;
+  }
+
+  /** Returns the k candidates with the highest estimates, highest first. */
+  public List<Entry> top(int k) {
+    List<Entry> entries = new ArrayList<Entry>(candidates.size());
+    Text t = new Text();
+    for (Map.Entry<String, long[]> e : candidates.entrySet()) {
+      t.set(e.getKey());
+      long upper = Math.min(minSum + e.getValue()[0], sketch.estimate(t.getBytes(), 0, t.getLength()));
+      entries.add(new Entry(e.getKey(), upper, Math.min(e.getValue()[1], upper)));
+    }
+
+    Collections.sort(entries, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry a, Entry b) {
+        if (a.estimate != b.estimate) {
+          return a.estimate > b.estimate ? -1 : 1;
+        }
+        return a.key.compareTo(b.key);
+      }
+    });
+    return entries.size() > k ? entries.subList(0, k) : entries;
+  }
+}
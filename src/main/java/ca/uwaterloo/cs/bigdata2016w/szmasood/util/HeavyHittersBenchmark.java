@@ -0,0 +1,147 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Compares WordCount's -approx mode against exact counting on a local text file. The lines are
+ * split into a number of chunks standing in for map tasks; for each the exact run shuffles every
+ * distinct word with its count (after in-mapper combining) while the approximate run shuffles one
+ * serialized sketch pair. Reports recall of the exact top k, the error of the estimates and the
+ * bytes each run would shuffle.
+ *
+ * <pre>
+ *   java -cp target/bigdata2016w-0.1.0-SNAPSHOT.jar \
+ *     ca.uwaterloo.cs.bigdata2016w.szmasood.util.HeavyHittersBenchmark data/Shakespeare.txt [k] [splits]
+ * </pre>
+ */
+public class HeavyHittersBenchmark {
+  private HeavyHittersBenchmark() {}
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: HeavyHittersBenchmark [local text file] [k] [splits]");
+      System.exit(-1);
+    }
+    int k = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    int splits = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+    List<Text> lines = new ArrayList<Text>();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(args[0]), StandardCharsets.UTF_8));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      lines.add(new Text(line));
+    }
+    reader.close();
+
+    TextTokenizer tokenizer = new TextTokenizer();
+    int chunk = (lines.size() + splits - 1) / splits;
+
+    // Exact: per-split combined counts, then a global merge.
+    long start = System.nanoTime();
+    long exactShuffle = 0;
+    final Map<String, Long> exact = new HashMap<String, Long>();
+    for (int s = 0; s < splits; s++) {
+      Map<String, Long> local = new HashMap<String, Long>();
+      for (int i = s * chunk; i < Math.min(lines.size(), (s + 1) * chunk); i++) {
+        tokenizer.reset(lines.get(i));
+        while (tokenizer.next()) {
+          String w = tokenizer.token();
+          Long c = local.get(w);
+          local.put(w, c == null ? 1 : c + 1);
+        }
+      }
+      for (Map.Entry<String, Long> e : local.entrySet()) {
+        // Text key (vint length + bytes) and an IntWritable value.
+        exactShuffle += 1 + e.getKey().getBytes(StandardCharsets.UTF_8).length + 4;
+        Long c = exact.get(e.getKey());
+        exact.put(e.getKey(), c == null ? e.getValue() : c + e.getValue());
+      }
+    }
+    List<String> exactTop = new ArrayList<String>(exact.keySet());
+    Collections.sort(exactTop, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        int c = exact.get(b).compareTo(exact.get(a));
+        return c != 0 ? c : a.compareTo(b);
+      }
+    });
+    exactTop = exactTop.subList(0, Math.min(k, exactTop.size()));
+    double exactSecs = (System.nanoTime() - start) / 1e9;
+
+    // Approximate: per-split sketches, serialized as they would be for the shuffle.
+    start = System.nanoTime();
+    long approxShuffle = 0;
+    HeavyHitters merged = new HeavyHitters();
+    for (int s = 0; s < splits; s++) {
+      CountMinSketch cms = CountMinSketch.withErrorBounds(0.0001, 0.01);
+      SpaceSaving summary = new SpaceSaving(Math.max(10 * k, 1000));
+      for (int i = s * chunk; i < Math.min(lines.size(), (s + 1) * chunk); i++) {
+        tokenizer.reset(lines.get(i));
+        while (tokenizer.next()) {
+          cms.add(tokenizer.bytes(), 0, tokenizer.length(), 1);
+          summary.add(tokenizer.bytes(), 0, tokenizer.length(), 1);
+        }
+      }
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      cms.write(out);
+      summary.write(out);
+      out.close();
+      approxShuffle += bytes.size();
+
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+      CountMinSketch cmsCopy = new CountMinSketch();
+      SpaceSaving summaryCopy = new SpaceSaving();
+      cmsCopy.readFields(in);
+      summaryCopy.readFields(in);
+      merged.add(cmsCopy, summaryCopy);
+    }
+    List<HeavyHitters.Entry> approxTop = merged.top(k);
+    double approxSecs = (System.nanoTime() - start) / 1e9;
+
+    Set<String> approxKeys = new HashSet<String>();
+    double maxRelError = 0;
+    long outsideBounds = 0;
+    for (HeavyHitters.Entry e : approxTop) {
+      approxKeys.add(e.key);
+      long truth = exact.get(e.key);
+      maxRelError = Math.max(maxRelError, Math.abs(e.estimate - truth) / (double) truth);
+      if (truth < e.lower || truth > e.estimate) {
+        outsideBounds++;
+      }
+    }
+    int hits = 0;
+    for (String w : exactTop) {
+      if (approxKeys.contains(w)) {
+        hits++;
+      }
+    }
+
+    System.out.println("distinct words: " + exact.size() + ", tokens: " + merged.sketch().total());
+    System.out.println(String.format("exact:  %.3f s, %d shuffle bytes", exactSecs, exactShuffle));
+    System.out.println(String.format("approx: %.3f s, %d shuffle bytes", approxSecs, approxShuffle));
+    System.out.println(String.format("recall@%d: %.3f", k, hits / (double) exactTop.size()));
+    System.out.println(String.format("max relative error of estimates: %.5f", maxRelError));
+    System.out.println("true counts outside [lower, estimate]: " + outsideBounds);
+  }
+}
@@ -0,0 +1,285 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.log4j.Logger;
+
+/**
+ * Incremental (Text, count) results for the counting tools. The output directory holds the current
+ * totals as block-compressed SequenceFiles, sorted within each partition, under {@code gen-NNNNN/},
+ * plus a {@code _MANIFEST} listing the input files already counted and the number of partitions.
+ *
+ * <p>A run counts only the input files missing from the manifest. An input file that was counted
+ * but has changed since (other length or modification time) fails the run, since neither
+ * counting it again nor skipping it would give the right totals; rebuild the output from scratch,
+ * or explicitly accept the stale counts of such files. Each reducer merge-joins its
+ * sorted delta with the same partition of the previous generation ({@link MergeReducer}), so the
+ * corpus is never re-scanned; the manifest is only rewritten once the job succeeds, which makes
+ * reruns idempotent. It is replaced by renames only (the old manifest is moved to
+ * {@code _MANIFEST.prev} until the new one is in place), so a run interrupted while committing
+ * leaves a readable manifest behind.</p>
+ */
+public class IncrementalCounts {
+  private static final Logger LOG = Logger.getLogger(IncrementalCounts.class);
+
+  /** Configuration key holding the directory of the previous generation, if any. */
+  public static final String PREVIOUS = "incremental.previous";
+
+  private static final String MANIFEST = "_MANIFEST";
+  private static final String PREVIOUS_MANIFEST = MANIFEST + ".prev";
+
+  private final FileSystem fs;
+  private final Path root;
+  private int generation = 0;
+  private int reducers = 0;
+  // Path of every input file counted so far, with its length and modification time at the time
+  // (-1 if unknown, in manifests written before it was recorded).
+  private final Map<String, long[]> counted = new TreeMap<String, long[]>();
+
+  public IncrementalCounts(FileSystem fs, Path root) throws IOException {
+    this.fs = fs;
+    this.root = root;
+
+    Path manifest = new Path(root, MANIFEST);
+    if (!fs.exists(manifest)) {
+      // A commit interrupted between its renames leaves only the previous manifest.
+      manifest = new Path(root, PREVIOUS_MANIFEST);
+      if (!fs.exists(manifest)) {
+        return;
+      }
+    }
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(fs.open(manifest), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] split = line.split("\t");
+        if (split[0].equals("generation")) {
+          generation = Integer.parseInt(split[1]);
+        } else if (split[0].equals("reducers")) {
+          reducers = Integer.parseInt(split[1]);
+        } else if (split[0].equals("file")) {
+          counted.put(split[1], new long[] {
+              Long.parseLong(split[2]), split.length > 3 ? Long.parseLong(split[3]) : -1 });
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Returns the files under {@code input} (a file, directory or glob) that haven't been counted yet,
+   * as listed now: their length and modification time are what {@link #commit} records.
+   *
+   * @throws IOException if a file already counted has changed since, unless {@code allowChanged}
+   *     is set, in which case it is skipped and keeps its old counts
+   */
+  public List<FileStatus> newInputs(Path input, boolean allowChanged) throws IOException {
+    List<FileStatus> inputs = new ArrayList<FileStatus>();
+    List<String> changed = new ArrayList<String>();
+    FileStatus[] matches = fs.globStatus(input);
+    if (matches == null) {
+      return inputs;
+    }
+    for (FileStatus match : matches) {
+      FileStatus[] files = match.isDirectory() ? fs.listStatus(match.getPath()) : new FileStatus[] { match };
+      for (FileStatus file : files) {
+        String name = file.getPath().getName();
+        if (file.isDirectory() || name.startsWith("_") || name.startsWith(".")) {
+          continue;
+        }
+        String path = file.getPath().toString();
+        long[] status = counted.get(path);
+        if (status == null) {
+          inputs.add(file);
+        } else if (status[0] != file.getLen()
+            || (status[1] >= 0 && status[1] != file.getModificationTime())) {
+          changed.add(path + " (length " + status[0] + ", now " + file.getLen() + ")");
+        }
+      }
+    }
+
+    if (!changed.isEmpty()) {
+      String message = changed.size() + " input files changed since they were counted: " + changed;
+      if (!allowChanged) {
+        throw new IOException(message + ". Recount from scratch into a new output, or rerun "
+            + "with -allowChanged to keep their previous counts.");
+      }
+      LOG.warn(message + ". Keeping their previous counts as requested.");
+    }
+    return inputs;
+  }
+
+  /**
+   * Returns the number of reducers to use: merging partition by partition requires the same
+   * partitioning as the previous generation, so an existing result fixes it.
+   */
+  public int reducers(int requested) {
+    if (reducers != 0 && reducers != requested) {
+      LOG.info("Using " + reducers + " reducers to match the partitioning of the existing counts");
+    }
+    return reducers != 0 ? reducers : requested;
+  }
+
+  /** Returns the directory of the current totals, or null before the first run. */
+  public Path current() {
+    return generation == 0 ? null : generationPath(generation);
+  }
+
+  /**
+   * Sets up {@code job} to merge its counts into the current totals, writing the next generation.
+   * The mapper, combiner and number of reducers are left to the caller.
+   */
+  public void configure(Job job) throws IOException {
+    Path next = generationPath(generation + 1);
+    fs.delete(next, true);
+    FileOutputFormat.setOutputPath(job, next);
+
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(IntWritable.class);
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+    FileOutputFormat.setCompressOutput(job, true);
+    SequenceFileOutputFormat.setOutputCompressionType(job, SequenceFile.CompressionType.BLOCK);
+    job.setReducerClass(MergeReducer.class);
+
+    if (current() != null) {
+      job.getConfiguration().set(PREVIOUS, current().toString());
+    }
+  }
+
+  /**
+   * Records {@code inputs}, as returned by {@link #newInputs} before the job read them, as counted
+   * and makes the generation written by the job current. A file changed while the job ran thus
+   * shows up as changed on the next run rather than being taken as counted in full.
+   */
+  public void commit(List<FileStatus> inputs, int numReducers) throws IOException {
+    Path previous = current();
+    for (FileStatus status : inputs) {
+      counted.put(status.getPath().toString(),
+          new long[] { status.getLen(), status.getModificationTime() });
+    }
+    generation++;
+    reducers = numReducers;
+
+    Path tmp = new Path(root, MANIFEST + ".tmp");
+    Writer writer = new OutputStreamWriter(fs.create(tmp, true), StandardCharsets.UTF_8);
+    try {
+      writer.write("generation\t" + generation + "\n");
+      writer.write("reducers\t" + reducers + "\n");
+      for (Map.Entry<String, long[]> e : counted.entrySet()) {
+        writer.write("file\t" + e.getKey() + "\t" + e.getValue()[0] + "\t" + e.getValue()[1]
+            + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+
+    // Never without a manifest: move the old one aside, move the new one in, then drop the old one.
+    Path manifest = new Path(root, MANIFEST);
+    Path prev = new Path(root, PREVIOUS_MANIFEST);
+    if (fs.exists(manifest)) {
+      fs.delete(prev, false);
+      rename(manifest, prev);
+    }
+    rename(tmp, manifest);
+    fs.delete(prev, false);
+    if (previous != null) {
+      fs.delete(previous, true);
+    }
+  }
+
+  private void rename(Path from, Path to) throws IOException {
+    if (!fs.rename(from, to)) {
+      throw new IOException("Could not rename " + from + " to " + to);
+    }
+  }
+
+  private Path generationPath(int g) {
+    return new Path(root, String.format("gen-%05d", g));
+  }
+
+  /**
+   * Sums up the counts of the new input and merge-joins them with the same partition of the
+   * previous generation. Both sides are sorted by the raw bytes of the key, so a single pass over
+   * the previous partition suffices.
+   */
+  public static class MergeReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
+    private final static IntWritable SUM = new IntWritable();
+    private final Text prevKey = new Text();
+    private final IntWritable prevValue = new IntWritable();
+    private SequenceFile.Reader previous;
+    private boolean hasPrevious;
+
+    @Override
+    public void setup(Context context) throws IOException {
+      Configuration conf = context.getConfiguration();
+      String dir = conf.get(PREVIOUS);
+      if (dir == null) {
+        return;
+      }
+      int partition = context.getTaskAttemptID().getTaskID().getId();
+      Path p = new Path(dir, String.format("part-r-%05d", partition));
+      if (p.getFileSystem(conf).exists(p)) {
+        previous = new SequenceFile.Reader(conf, SequenceFile.Reader.file(p));
+        advance();
+      }
+    }
+
+    @Override
+    public void reduce(Text key, Iterable<IntWritable> values, Context context)
+        throws IOException, InterruptedException {
+      int sum = 0;
+      for (IntWritable value : values) {
+        sum += value.get();
+      }
+
+      // Carry over the previous keys that sort before this one.
+      while (hasPrevious && prevKey.compareTo(key) < 0) {
+        context.write(prevKey, prevValue);
+        advance();
+      }
+      if (hasPrevious && prevKey.equals(key)) {
+        sum += prevValue.get();
+        advance();
+      }
+      SUM.set(sum);
+      context.write(key, SUM);
+    }
+
+    @Override
+    public void cleanup(Context context) throws IOException, InterruptedException {
+      while (hasPrevious) {
+        context.write(prevKey, prevValue);
+        advance();
+      }
+      if (previous != null) {
+        previous.close();
+      }
+    }
+
+    private void advance() throws IOException {
+      hasPrevious = previous.next(prevKey, prevValue);
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Stripe of co-occurrence counts keyed by term id (see {@link Vocabulary}): a primitive int to int
+ * open-addressing (linear probing) map, so incrementing an existing entry allocates nothing.
+ *
+ * <p>Serialized as VInt size, then the entries in increasing key order, each as the VInt gap from the
+ * previous key followed by the VInt count. Frequent terms have small ids, so the gaps of the dense
+ * stripes of frequent words mostly fit in one byte. Being a few primitive arrays, it is also
+ * Serializable, for Spark.</p>
+ *
+ * <p>Iterate over the entries with the slots:</p>
+ * <pre>
+ *   for (int slot = 0; slot &lt; stripe.capacity(); slot++) {
+ *     if (stripe.keyAt(slot) != IntStripe.EMPTY) {
+ *       ... stripe.keyAt(slot), stripe.countAt(slot) ...
+ *     }
+ *   }
+ * </pre>
+ */
+public class IntStripe implements Writable, Serializable {
+  public static final int EMPTY = -1;
+  // Per slot: key and count, one int each.
+  private static final int BYTES_PER_SLOT = 8;
+
+  private int[] keys;
+  private int[] counts;
+  private int mask;
+  private int size;
+  // Entries packed as key << 32 | count for sorting, kept across writes.
+  private long[] sorted = new long[0];
+
+  public IntStripe() {
+    allocate(8);
+  }
+
+  public void increment(int key) {
+    increment(key, 1);
+  }
+
+  /** Adds {@code delta} to the count of {@code key}, which must not be negative. */
+  public void increment(int key, int delta) {
+    int slot = slot(key);
+    if (keys[slot] == key) {
+      counts[slot] += delta;
+      return;
+    }
+    keys[slot] = key;
+    counts[slot] = delta;
+    size++;
+    // Keep the load factor at or below 1/2.
+    if (size * 2 > keys.length) {
+      rehash();
+    }
+  }
+
+  /** Returns the count of {@code key}, or 0 if it isn't in the stripe. */
+  public int get(int key) {
+    int slot = slot(key);
+    return keys[slot] == key ? counts[slot] : 0;
+  }
+
+  /** Adds every entry of {@code other} to this stripe. */
+  public void plus(IntStripe other) {
+    for (int slot = 0; slot < other.keys.length; slot++) {
+      if (other.keys[slot] != EMPTY) {
+        increment(other.keys[slot], other.counts[slot]);
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return keys.length;
+  }
+
+  /** Returns the key in {@code slot}, or {@link #EMPTY}. */
+  public int keyAt(int slot) {
+    return keys[slot];
+  }
+
+  public int countAt(int slot) {
+    return counts[slot];
+  }
+
+  /** Approximate heap footprint of the table, in bytes. */
+  public long memoryBytes() {
+    return (long) keys.length * BYTES_PER_SLOT + sorted.length * 8L;
+  }
+
+  /** Removes every entry, keeping the table allocated. */
+  public void clear() {
+    if (size > 0) {
+      Arrays.fill(keys, EMPTY);
+      size = 0;
+    }
+  }
+
+  private int slot(int key) {
+    // Murmur3 finalizer: ids are dense, so they need mixing before masking.
+    int h = key * 0x85EBCA6B;
+    h ^= h >>> 13;
+    int slot = h & mask;
+    while (keys[slot] != EMPTY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void allocate(int capacity) {
+    keys = new int[capacity];
+    counts = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    mask = capacity - 1;
+  }
+
+  private void rehash() {
+    int[] oldKeys = keys;
+    int[] oldCounts = counts;
+    allocate(oldKeys.length * 2);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = slot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        counts[slot] = oldCounts[i];
+      }
+    }
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    if (sorted.length < size) {
+      sorted = new long[Math.max(size, sorted.length * 2)];
+    }
+    int n = 0;
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != EMPTY) {
+        sorted[n++] = ((long) keys[slot] << 32) | (counts[slot] & 0xFFFFFFFFL);
+      }
+    }
+    Arrays.sort(sorted, 0, n);
+
+    WritableUtils.writeVInt(out, n);
+    int previous = 0;
+    for (int i = 0; i < n; i++) {
+      int key = (int) (sorted[i] >>> 32);
+      WritableUtils.writeVInt(out, key - previous);
+      WritableUtils.writeVInt(out, (int) sorted[i]);
+      previous = key;
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    clear();
+    int n = WritableUtils.readVInt(in);
+    if (keys.length < n * 2) {
+      allocate(Integer.highestOneBit(n * 2 - 1) << 1);
+    }
+    int key = 0;
+    for (int i = 0; i < n; i++) {
+      key += WritableUtils.readVInt(in);
+      int slot = slot(key);
+      keys[slot] = key;
+      counts[slot] = WritableUtils.readVInt(in);
+    }
+    size = n;
+  }
+}
@@ -0,0 +1,128 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.util.Arrays;
+
+/**
+ * Primitive long to int counter table: open addressing (linear probing) over two arrays, so
+ * incrementing an existing key allocates nothing. Meant for keys packed into a long, e.g. pairs of
+ * ids packed with {@link Vocabulary#pair(int, int)}; keys must not be negative.
+ *
+ * <p>Iterate over the entries with the slots, like an {@link IntStripe}:</p>
+ * <pre>
+ *   for (int slot = 0; slot &lt; table.capacity(); slot++) {
+ *     if (table.keyAt(slot) != LongCountTable.EMPTY) {
+ *       ... table.keyAt(slot), table.countAt(slot) ...
+ *     }
+ *   }
+ * </pre>
+ */
+public class LongCountTable {
+  public static final long EMPTY = -1L;
+  // Per slot: a long key and an int count.
+  private static final int BYTES_PER_SLOT = 12;
+
+  private long[] keys;
+  private int[] counts;
+  private int mask;
+  private int size;
+
+  public LongCountTable() {
+    allocate(1024);
+  }
+
+  public void increment(long key) {
+    increment(key, 1);
+  }
+
+  public void increment(long key, int delta) {
+    int slot = slot(key);
+    if (keys[slot] == key) {
+      counts[slot] += delta;
+      return;
+    }
+    keys[slot] = key;
+    counts[slot] = delta;
+    size++;
+    // Keep the load factor at or below 1/2.
+    if (size * 2 > keys.length) {
+      rehash();
+    }
+  }
+
+  /** Returns the count of {@code key}, or 0 if it isn't in the table. */
+  public int get(long key) {
+    int slot = slot(key);
+    return keys[slot] == key ? counts[slot] : 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return keys.length;
+  }
+
+  /** Returns the key in {@code slot}, or {@link #EMPTY}. */
+  public long keyAt(int slot) {
+    return keys[slot];
+  }
+
+  public int countAt(int slot) {
+    return counts[slot];
+  }
+
+  /** Returns the bytes allocated by the table. */
+  public long memoryBytes() {
+    return (long) keys.length * BYTES_PER_SLOT;
+  }
+
+  /**
+   * Returns the bytes needed by the entries held, at the maximum load factor. Unlike
+   * {@link #memoryBytes()} this drops back to zero after {@link #clear()}.
+   */
+  public long usedBytes() {
+    return 2L * size * BYTES_PER_SLOT;
+  }
+
+  /** Removes every entry, keeping the table allocated. */
+  public void clear() {
+    if (size > 0) {
+      Arrays.fill(keys, EMPTY);
+      size = 0;
+    }
+  }
+
+  private int slot(long key) {
+    // Murmur3 64-bit finalizer: packed ids are dense in both halves.
+    long h = key;
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    int slot = (int) h & mask;
+    while (keys[slot] != EMPTY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    counts = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+    mask = capacity - 1;
+  }
+
+  private void rehash() {
+    long[] oldKeys = keys;
+    int[] oldCounts = counts;
+    allocate(oldKeys.length * 2);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = slot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        counts[slot] = oldCounts[i];
+      }
+    }
+  }
+}
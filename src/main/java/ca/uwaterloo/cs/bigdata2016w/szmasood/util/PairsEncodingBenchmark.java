@@ -0,0 +1,194 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+
+import tl.lin.data.pair.PairOfStrings;
+
+/**
+ * Compares the map output of CooccurrencePairs with string pairs against -packed: serializes every
+ * pair the mappers would emit for a local text file, as {@link PairOfStrings} and as packed
+ * {@link Vocabulary} ids in a {@link LongWritable}, then sorts each buffer with the raw comparator
+ * the shuffle would use. Reports records, bytes and sort time.
+ *
+ * <pre>
+ *   java -cp target/bigdata2016w-0.1.0-SNAPSHOT.jar \
+ *     ca.uwaterloo.cs.bigdata2016w.szmasood.util.PairsEncodingBenchmark data/Shakespeare.txt [lines]
+ * </pre>
+ */
+public class PairsEncodingBenchmark {
+  private PairsEncodingBenchmark() {}
+
+  // Serialized records: bytes in out, record i in [starts[i], starts[i + 1]).
+  private static class Records {
+    final DataOutputBuffer out = new DataOutputBuffer();
+    int[] starts = new int[1024];
+    int size = 0;
+
+    void mark() {
+      if (size + 1 == starts.length) {
+        starts = Arrays.copyOf(starts, starts.length * 2);
+      }
+      starts[++size] = out.getLength();
+    }
+
+    double sort(final WritableComparator comparator) {
+      Integer[] order = new Integer[size];
+      for (int i = 0; i < size; i++) {
+        order[i] = i;
+      }
+      final byte[] bytes = out.getData();
+      long start = System.nanoTime();
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return comparator.compare(bytes, starts[a], starts[a + 1] - starts[a],
+              bytes, starts[b], starts[b + 1] - starts[b]);
+        }
+      });
+      return (System.nanoTime() - start) / 1e9;
+    }
+  }
+
+  private static List<String> distinctWords(Text line, TextTokenizer tokenizer) {
+    tokenizer.reset(line);
+    List<String> tokens = new ArrayList<String>();
+    int numWords = 0;
+    while (numWords < 100 && tokenizer.next()) {
+      String w = tokenizer.token();
+      if (!tokens.contains(w)) {
+        tokens.add(w);
+      }
+      numWords++;
+    }
+    return tokens;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: PairsEncodingBenchmark [local text file] [max lines]");
+      System.exit(-1);
+    }
+    int maxLines = args.length > 1 ? Integer.parseInt(args[1]) : Integer.MAX_VALUE;
+
+    List<Text> lines = new ArrayList<Text>();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(args[0]), StandardCharsets.UTF_8));
+    String line;
+    while (lines.size() < maxLines && (line = reader.readLine()) != null) {
+      lines.add(new Text(line));
+    }
+    reader.close();
+
+    // Marginals, as PairsPMI counts them, then the vocabulary -packed ships to the tasks.
+    TextTokenizer tokenizer = new TextTokenizer();
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    int numLines = 0;
+    for (Text t : lines) {
+      List<String> tokens = distinctWords(t, tokenizer);
+      for (String w : tokens) {
+        Integer c = counts.get(w);
+        counts.put(w, c == null ? 1 : c + 1);
+      }
+      if (tokens.size() != 0) {
+        numLines++;
+      }
+    }
+
+    File dir = File.createTempFile("vocabulary", "");
+    dir.delete();
+    dir.mkdirs();
+    Writer writer = new OutputStreamWriter(
+        new FileOutputStream(new File(dir, "part-r-00000")), StandardCharsets.UTF_8);
+    for (Map.Entry<String, Integer> e : counts.entrySet()) {
+      writer.write(e.getKey() + "\t" + e.getValue() + "\n");
+    }
+    writer.write("numLines*\t" + numLines + "\n");
+    writer.close();
+    File file = new File(dir, "vocabulary");
+    Vocabulary.build(FileSystem.getLocal(new Configuration()), new Path(dir.getPath()), "numLines*",
+        10, new Path(file.getPath()));
+    Vocabulary vocabulary = Vocabulary.load(file);
+    new File(dir, "part-r-00000").delete();
+    file.delete();
+    dir.delete();
+
+    Records strings = new Records();
+    Records packed = new Records();
+    PairOfStrings pair = new PairOfStrings();
+    LongWritable ids = new LongWritable();
+    int[] idBuf = new int[100];
+    for (Text t : lines) {
+      List<String> tokens = distinctWords(t, tokenizer);
+      for (int i = 0; i < tokens.size(); i++) {
+        for (int j = 0; j < tokens.size(); j++) {
+          if (i != j) {
+            pair.set(tokens.get(i), tokens.get(j));
+            pair.write(strings.out);
+            strings.mark();
+          }
+        }
+      }
+
+      int n = 0;
+      for (String w : tokens) {
+        byte[] bytes = w.getBytes(StandardCharsets.UTF_8);
+        int id = vocabulary.id(bytes, 0, bytes.length);
+        if (id >= 0) {
+          idBuf[n++] = id;
+        }
+      }
+      for (int i = 0; i < n; i++) {
+        for (int j = 0; j < n; j++) {
+          if (i != j) {
+            ids.set(Vocabulary.pair(idBuf[i], idBuf[j]));
+            ids.write(packed.out);
+            packed.mark();
+          }
+        }
+      }
+    }
+
+    System.out.println(lines.size() + " lines, " + counts.size() + " distinct words, "
+        + vocabulary.size() + " with an id (on 10 lines or more)");
+
+    WritableComparator stringComparator = WritableComparator.get(PairOfStrings.class);
+    WritableComparator packedComparator = WritableComparator.get(LongWritable.class);
+    // Warm up both comparators before timing.
+    strings.sort(stringComparator);
+    packed.sort(packedComparator);
+    double stringSecs = strings.sort(stringComparator);
+    double packedSecs = packed.sort(packedComparator);
+
+    System.out.println(String.format("strings: %d pairs, %d bytes (%.1f per pair), sorted in %.3f s",
+        strings.size, strings.out.getLength(), strings.out.getLength() / (double) strings.size,
+        stringSecs));
+    System.out.println(String.format("packed:  %d pairs, %d bytes (%.1f per pair), sorted in %.3f s",
+        packed.size, packed.out.getLength(), packed.out.getLength() / (double) packed.size,
+        packedSecs));
+    System.out.println(String.format("bytes:   %.2fx fewer, sort %.2fx faster",
+        strings.out.getLength() / (double) Math.max(1, packed.out.getLength()),
+        stringSecs / packedSecs));
+  }
+}
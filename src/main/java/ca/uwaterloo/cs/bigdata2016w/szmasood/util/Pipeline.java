@@ -0,0 +1,446 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs a DAG of tools as one pipeline run. Every run gets its own scratch directory, which the
+ * stages find under {@link #SCRATCH} in their configuration ({@link #scratch(Configuration)}) and
+ * which is deleted when the run ends, so concurrent runs of the same tools don't collide on their
+ * intermediate paths.
+ * Stages are launched as soon as the stages they come after have succeeded, up to
+ * {@code pipeline.parallelism} at a time. Only a stage launched while no other stage runs may run
+ * its jobs in-process ({@link EmbeddedMode}), so a linear chain of stages keeps that mode.
+ *
+ * <p>A stage that declares its inputs and output is skipped when its output was written by a run
+ * with the same tool, arguments and input files (same paths, lengths and modification times), and
+ * no stage it comes after (directly or not) is rerun for the same reason: an upstream stage that
+ * reruns may rewrite the files it reads. A stage without an output is skipped when every stage
+ * that comes after it is.</p>
+ *
+ * <pre>
+ *   Pipeline pipeline = new Pipeline(conf, "pmi");
+ *   pipeline.stage("marginals", new PairsPMI(), args);
+ *   pipeline.stage("pairs", new CooccurrencePairs(), args)
+ *       .after("marginals").inputs(input).output(output);
+ *   int exitCode = pipeline.run();
+ * </pre>
+ *
+ * <p>{@link #main(String[])} runs a pipeline described in a file, one stage per line:</p>
+ * <pre>
+ *   # name    tool class                       [after=a,b] [in=p,q] [out=p] -- tool arguments
+ *   marginals ...assignment1.PairsPMI          -- -input data -output pmi
+ *   pairs     ...assignment1.CooccurrencePairs after=marginals in=data out=pmi -- -input data
+ *                                              -output pmi   (on one line)
+ * </pre>
+ */
+public class Pipeline {
+  private static final Logger LOG = Logger.getLogger(Pipeline.class);
+
+  /** Configuration key holding the scratch directory of the current run. */
+  public static final String SCRATCH = "pipeline.scratch.dir";
+  /** Scratch directory of tools run on their own. */
+  public static final String DEFAULT_SCRATCH = "/tmp";
+
+  /** Configuration key of the directory under which runs create their scratch directories. */
+  public static final String ROOT = "pipeline.scratch.root";
+  /** Configuration key of the number of stages run at the same time. */
+  public static final String PARALLELISM = "pipeline.parallelism";
+  /** Configuration key that keeps the scratch directory of a run, for debugging. */
+  public static final String KEEP_SCRATCH = "pipeline.scratch.keep";
+
+  private static final String FINGERPRINT = "_PIPELINE_FINGERPRINT";
+
+  private final Configuration conf;
+  private final Path scratch;
+  private final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+
+  /** Returns the scratch directory tools should write their intermediate files to. */
+  public static Path scratch(Configuration conf) {
+    return new Path(conf.get(SCRATCH, DEFAULT_SCRATCH));
+  }
+
+  /** Returns the URI of a scratch file for the distributed cache, linked as {@code name}. */
+  public static URI scratchCacheFile(Configuration conf, String name) {
+    return URI.create(new Path(scratch(conf), name).toUri() + "#" + name);
+  }
+
+  public Pipeline(Configuration conf, String name) {
+    this.conf = conf;
+    String run = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + "-"
+        + Integer.toHexString(new Random().nextInt() & 0xFFFF);
+    this.scratch = new Path(conf.get(ROOT, "/tmp/pipelines"), name + "-" + run);
+  }
+
+  public Path scratch() {
+    return scratch;
+  }
+
+  /** Adds a stage running {@code tool} with the given arguments. */
+  public Stage stage(String name, Tool tool, String... args) {
+    if (stages.containsKey(name)) {
+      throw new IllegalArgumentException("Duplicate stage " + name);
+    }
+    Stage stage = new Stage(name, tool, args);
+    stages.put(name, stage);
+    return stage;
+  }
+
+  public class Stage {
+    private final String name;
+    private final Tool tool;
+    private final String[] args;
+    private final List<String> after = new ArrayList<String>();
+    private final List<String> inputs = new ArrayList<String>();
+    private String output = null;
+    private boolean skip = false;
+    private boolean done = false;
+    // Whether this stage, or a stage it comes after, has a declared output that is out of date.
+    private boolean stale = false;
+    // Whether another stage was running when this one was launched.
+    private boolean concurrent = false;
+
+    private Stage(String name, Tool tool, String[] args) {
+      this.name = name;
+      this.tool = tool;
+      this.args = args;
+    }
+
+    /** Runs this stage once the given stages have succeeded. */
+    public Stage after(String... names) {
+      after.addAll(Arrays.asList(names));
+      return this;
+    }
+
+    /** Declares the paths (files, directories or globs) this stage reads. */
+    public Stage inputs(String... paths) {
+      inputs.addAll(Arrays.asList(paths));
+      return this;
+    }
+
+    /** Declares the directory this stage writes, which makes it reusable by later runs. */
+    public Stage output(String path) {
+      output = path;
+      return this;
+    }
+
+    private String fingerprint() throws IOException {
+      StringBuilder sb = new StringBuilder(tool.getClass().getName());
+      for (String arg : args) {
+        sb.append('\n').append(arg);
+      }
+      for (String input : inputs) {
+        Path path = new Path(input);
+        FileSystem fs = path.getFileSystem(conf);
+        FileStatus[] matches = fs.globStatus(path);
+        if (matches == null) {
+          continue;
+        }
+        // Sorted so that the listing order doesn't matter.
+        Map<String, String> files = new TreeMap<String, String>();
+        for (FileStatus match : matches) {
+          RemoteIterator<LocatedFileStatus> it = fs.listFiles(match.getPath(), true);
+          while (it.hasNext()) {
+            LocatedFileStatus f = it.next();
+            files.put(f.getPath().toString(), f.getLen() + "\t" + f.getModificationTime());
+          }
+        }
+        for (Map.Entry<String, String> f : files.entrySet()) {
+          sb.append('\n').append(f.getKey()).append('\t').append(f.getValue());
+        }
+      }
+      return md5(sb.toString());
+    }
+
+    private boolean upToDate() throws IOException {
+      if (output == null) {
+        return false;
+      }
+      Path dir = new Path(output);
+      FileSystem fs = dir.getFileSystem(conf);
+      Path saved = new Path(dir, FINGERPRINT);
+      if (!fs.exists(new Path(dir, "_SUCCESS")) || !fs.exists(saved)) {
+        return false;
+      }
+      BufferedReader reader =
+          new BufferedReader(new InputStreamReader(fs.open(saved), StandardCharsets.UTF_8));
+      try {
+        return fingerprint().equals(reader.readLine());
+      } finally {
+        reader.close();
+      }
+    }
+
+    private void saveFingerprint() throws IOException {
+      if (output == null) {
+        return;
+      }
+      Path dir = new Path(output);
+      FileSystem fs = dir.getFileSystem(conf);
+      if (!fs.exists(new Path(dir, "_SUCCESS"))) {
+        return;
+      }
+      Writer writer = new OutputStreamWriter(fs.create(new Path(dir, FINGERPRINT), true),
+          StandardCharsets.UTF_8);
+      try {
+        writer.write(fingerprint());
+      } finally {
+        writer.close();
+      }
+    }
+
+    private int run() throws Exception {
+      Configuration stageConf = new Configuration(conf);
+      stageConf.set(SCRATCH, scratch.toString());
+      if (concurrent) {
+        // In-process jobs keep their reused Writables in static fields, which concurrent stages
+        // running the same classes would share: only a stage started alone may run in-process.
+        // Stages launched while it runs go to the cluster.
+        stageConf.setLong(EmbeddedMode.THRESHOLD, 0);
+      }
+      long start = System.currentTimeMillis();
+      int exitCode = ToolRunner.run(stageConf, tool, args);
+      LOG.info("Stage " + name + " exited with " + exitCode + " after "
+          + (System.currentTimeMillis() - start) / 1000.0 + " seconds");
+      if (exitCode == 0) {
+        saveFingerprint();
+      }
+      return exitCode;
+    }
+  }
+
+  // Stages in an order where every stage comes after the stages it depends on.
+  private List<Stage> topologicalOrder() {
+    List<Stage> order = new ArrayList<Stage>();
+    Map<String, Integer> state = new TreeMap<String, Integer>();
+    for (Stage stage : stages.values()) {
+      visit(stage, state, order);
+    }
+    return order;
+  }
+
+  private void visit(Stage stage, Map<String, Integer> state, List<Stage> order) {
+    Integer s = state.get(stage.name);
+    if (s != null && s == 2) {
+      return;
+    }
+    if (s != null && s == 1) {
+      throw new IllegalArgumentException("Cycle through stage " + stage.name);
+    }
+    state.put(stage.name, 1);
+    for (String name : stage.after) {
+      Stage dependency = stages.get(name);
+      if (dependency == null) {
+        throw new IllegalArgumentException(
+            "Stage " + stage.name + " comes after unknown stage " + name);
+      }
+      visit(dependency, state, order);
+    }
+    state.put(stage.name, 2);
+    order.add(stage);
+  }
+
+  /** Runs every stage, then deletes the scratch directory. Returns 0 if all stages succeeded. */
+  public int run() throws Exception {
+    List<Stage> order = topologicalOrder();
+
+    // First stages first: an output is stale if it is out of date or anything upstream is.
+    for (Stage stage : order) {
+      stage.stale = stage.output != null && !stage.upToDate();
+      for (String name : stage.after) {
+        stage.stale |= stages.get(name).stale;
+      }
+    }
+
+    // Decide what to skip, last stages first: a stage without an output only feeds later stages.
+    for (int i = order.size() - 1; i >= 0; i--) {
+      Stage stage = order.get(i);
+      if (stage.output != null) {
+        stage.skip = !stage.stale;
+      } else {
+        boolean needed = false;
+        boolean hasDependents = false;
+        for (Stage other : order) {
+          if (other.after.contains(stage.name)) {
+            hasDependents = true;
+            needed |= !other.skip;
+          }
+        }
+        stage.skip = hasDependents && !needed;
+      }
+      if (stage.skip) {
+        LOG.info("Stage " + stage.name + " is up to date, skipping it");
+        stage.done = true;
+      }
+    }
+
+    FileSystem fs = scratch.getFileSystem(conf);
+    int parallelism = Math.max(1, conf.getInt(PARALLELISM, 4));
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    CompletionService<Integer> completion = new ExecutorCompletionService<Integer>(executor);
+    Map<Future<Integer>, Stage> running = new LinkedHashMap<Future<Integer>, Stage>();
+    List<Stage> pending = new ArrayList<Stage>();
+    for (Stage stage : order) {
+      if (!stage.done) {
+        pending.add(stage);
+      }
+    }
+
+    int exitCode = 0;
+    try {
+      fs.mkdirs(scratch);
+      LOG.info("Scratch directory of this run: " + scratch);
+      while (!pending.isEmpty() || !running.isEmpty()) {
+        // Launch every stage whose dependencies are done, unless a stage failed.
+        for (int i = 0; exitCode == 0 && i < pending.size(); ) {
+          final Stage stage = pending.get(i);
+          if (ready(stage)) {
+            pending.remove(i);
+            stage.concurrent = !running.isEmpty();
+            LOG.info("Starting stage " + stage.name);
+            running.put(completion.submit(new Callable<Integer>() {
+              @Override
+              public Integer call() throws Exception {
+                return stage.run();
+              }
+            }), stage);
+          } else {
+            i++;
+          }
+        }
+        if (running.isEmpty()) {
+          break;
+        }
+
+        Future<Integer> finished = completion.take();
+        Stage stage = running.remove(finished);
+        int stageExitCode;
+        try {
+          stageExitCode = finished.get();
+        } catch (Exception e) {
+          LOG.error("Stage " + stage.name + " failed", e);
+          stageExitCode = -1;
+        }
+        if (stageExitCode == 0) {
+          stage.done = true;
+        } else if (exitCode == 0) {
+          exitCode = stageExitCode;
+          LOG.error("Stage " + stage.name + " exited with " + stageExitCode
+              + ": not starting any other stage");
+        }
+      }
+    } finally {
+      executor.shutdown();
+      if (!conf.getBoolean(KEEP_SCRATCH, false)) {
+        fs.delete(scratch, true);
+      }
+    }
+    return exitCode;
+  }
+
+  private boolean ready(Stage stage) {
+    for (String name : stage.after) {
+      if (!stages.get(name).done) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String md5(String s) throws IOException {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest) {
+        sb.append(String.format("%02x", b & 0xFF));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Runs the pipeline described in a local file (see the class comment). Generic options
+   * ({@code -D key=value}, ...) before the file name apply to every stage.
+   */
+  public static void main(String[] argv) throws Exception {
+    Configuration conf = new Configuration();
+    String[] rest = new GenericOptionsParser(conf, argv).getRemainingArgs();
+    if (rest.length != 1) {
+      System.err.println("usage: Pipeline [generic options] [pipeline file]");
+      System.exit(-1);
+    }
+
+    String name = new Path(rest[0]).getName().replaceAll("\\..*$", "");
+    Pipeline pipeline = new Pipeline(conf, name);
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(rest[0]), StandardCharsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        int dashes = line.indexOf(" -- ");
+        String[] spec = (dashes < 0 ? line : line.substring(0, dashes)).trim().split("\\s+");
+        String[] args =
+            dashes < 0 ? new String[0] : line.substring(dashes + 4).trim().split("\\s+");
+
+        Tool tool = (Tool) ReflectionUtils.newInstance(Class.forName(spec[1]), conf);
+        Stage stage = pipeline.stage(spec[0], tool, args);
+        for (int i = 2; i < spec.length; i++) {
+          String[] kv = spec[i].split("=", 2);
+          if (kv[0].equals("after")) {
+            stage.after(kv[1].split(","));
+          } else if (kv[0].equals("in")) {
+            stage.inputs(kv[1].split(","));
+          } else if (kv[0].equals("out")) {
+            stage.output(kv[1]);
+          } else {
+            throw new IllegalArgumentException("Unknown stage attribute " + spec[i]);
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    System.exit(pipeline.run());
+  }
+}
@@ -0,0 +1,602 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Postings lists of (docid, tf), in one of two formats:
+ * <pre>
+ *   VINT:  VInt df, then per posting VInt docid gap and VInt tf (Hadoop VInts)
+ *   BLOCK: byte -1, varint df, a skip table with per block the varint gap between its last docid
+ *          and the last docid of the previous block and the varint byte length of the block, then
+ *          the blocks of {@link #BLOCK_SIZE} postings (the last one may be shorter)
+ * </pre>
+ * A block holds the docid gaps (the first one from the last docid of the previous block), then
+ * the tfs minus one, each bit-packed with patched frame of reference: a byte bit width b, the low
+ * b bits of every value packed little-endian, then a varint number of exceptions and per exception
+ * its byte position and varint high bits. b is picked to minimize the size of the block, so a
+ * rare large gap doesn't widen all the others. Varints are unsigned LEB128.
+ *
+ * <p>As a {@link Writable}, a list is serialized like a {@link BytesWritable} holding it: an int
+ * length, then the list. On the writing side, {@link #add(int, int)} encodes each posting (or
+ * each block) as it arrives. A long list is not written as one value: once {@link #isFull()},
+ * the postings so far are written as a chunk and the writer is cleared, so the next chunk is a
+ * list of its own (its first docid gap is from 0). The chunks of a term are stored under
+ * {@link #chunkKey(String, int)}, which sorts right after the term and before any other term, so
+ * a reader gets the first chunk by the term and the others by reading on while keys are
+ * continuations of it ({@link #isChunkOf(String, String)}). The writer never holds more than a
+ * chunk of encoded postings, and neither does the SequenceFile writer buffering each value.</p>
+ *
+ * <p>{@link #cursor(byte[], int)} recognizes both formats (a VInt df never starts with byte -1).
+ * On BLOCK lists, {@link Cursor#advance(int)} reads the skip table only and decodes a single
+ * block, so intersecting with a short list touches few blocks of a long one. The chunks of a list
+ * are read as one with {@link #concat(List)}.</p>
+ *
+ * <pre>
+ *   Text key = new Text(term);
+ *   Postings value = new Postings();
+ *   if (reader.get(key, value) != null) {
+ *     do {
+ *       Postings.Cursor cursor = value.cursor();
+ *       while (cursor.next()) {
+ *         ... cursor.docId(), cursor.tf() ...
+ *       }
+ *     } while (reader.next(key, value) &amp;&amp; Postings.isChunkOf(key.toString(), term));
+ *   }
+ * </pre>
+ */
+public class Postings implements Writable {
+  public static enum Format {
+    VINT, BLOCK
+  }
+
+  /** Configuration key of the format BuildInvertedIndexCompressed writes. */
+  public static final String FORMAT = "postings.format";
+  /** Configuration key of the encoded bytes of postings written as one chunk of a list. */
+  public static final String CHUNK_BYTES = "postings.chunk.bytes";
+  public static final int DEFAULT_CHUNK_BYTES = 8 << 20;
+  public static final int BLOCK_SIZE = 128;
+  private static final byte BLOCK_MARKER = -1;
+
+  private final Format format;
+  private final int chunkBytes;
+  private int df = 0;
+  private int lastDocId = 0;
+  // BLOCK: the postings of the block being filled, the last docid of the previous block, and the
+  // skip table of the blocks written so far.
+  private final int[] blockDocIds = new int[BLOCK_SIZE];
+  private final int[] blockTfs = new int[BLOCK_SIZE];
+  private final int[] values = new int[BLOCK_SIZE];
+  private int blockSize = 0;
+  private int blockBase = 0;
+  private final DataOutputBuffer skips = new DataOutputBuffer();
+  private final DataOutputBuffer body = new DataOutputBuffer();
+
+  // A list read by readFields.
+  private byte[] bytes = new byte[0];
+  private int length = 0;
+
+  public Postings() {
+    this(Format.VINT, DEFAULT_CHUNK_BYTES);
+  }
+
+  public Postings(Format format, int chunkBytes) {
+    this.format = format;
+    this.chunkBytes = chunkBytes;
+  }
+
+  /**
+   * Returns the key of chunk {@code chunk} of the list of {@code term}: the term itself for the
+   * first chunk, then the term, a NUL character and the zero-padded ordinal.
+   */
+  public static String chunkKey(String term, int chunk) {
+    return chunk == 0 ? term : String.format("%s\u0000%08d", term, chunk);
+  }
+
+  /** Returns whether {@code key} is the key of a later chunk (not the first) of {@code term}. */
+  public static boolean isChunkOf(String key, String term) {
+    return key.length() > term.length() && key.startsWith(term)
+        && key.charAt(term.length()) == '\u0000';
+  }
+
+  /** Adds a posting. Postings must be added by increasing docid. */
+  public void add(int docId, int tf) throws IOException {
+    if (format == Format.VINT) {
+      WritableUtils.writeVInt(body, docId - lastDocId);
+      WritableUtils.writeVInt(body, tf);
+    } else {
+      blockDocIds[blockSize] = docId;
+      blockTfs[blockSize] = tf;
+      if (++blockSize == BLOCK_SIZE) {
+        writeBlock();
+      }
+    }
+    lastDocId = docId;
+    df++;
+  }
+
+  /** Returns the number of postings added since {@link #clear()}. */
+  public int df() {
+    return df;
+  }
+
+  /** Returns whether the postings added since {@link #clear()} fill a chunk. */
+  public boolean isFull() {
+    return body.getLength() >= chunkBytes;
+  }
+
+  /** Drops the postings added so far. */
+  public void clear() {
+    df = 0;
+    lastDocId = 0;
+    blockSize = 0;
+    blockBase = 0;
+    skips.reset();
+    body.reset();
+  }
+
+  /** Writes the postings added since {@link #clear()}; no posting can be added after this. */
+  @Override
+  public void write(DataOutput out) throws IOException {
+    if (blockSize > 0) {
+      writeBlock();
+    }
+    int headerLength = format == Format.VINT ? WritableUtils.getVIntSize(df)
+        : 1 + varintSize(df) + skips.getLength();
+    out.writeInt(headerLength + body.getLength());
+    if (format == Format.VINT) {
+      WritableUtils.writeVInt(out, df);
+    } else {
+      out.writeByte(BLOCK_MARKER);
+      writeVarint(out, df);
+      out.write(skips.getData(), 0, skips.getLength());
+    }
+    out.write(body.getData(), 0, body.getLength());
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    length = in.readInt();
+    if (bytes.length < length) {
+      bytes = new byte[length];
+    }
+    in.readFully(bytes, 0, length);
+  }
+
+  /** Returns the bytes of the list last read by {@link #readFields(DataInput)}. */
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  /** Returns a cursor over the list last read by {@link #readFields(DataInput)}. */
+  public Cursor cursor() {
+    return cursor(bytes, length);
+  }
+
+  private void writeBlock() throws IOException {
+    int start = body.getLength();
+    int previous = blockBase;
+    for (int i = 0; i < blockSize; i++) {
+      values[i] = blockDocIds[i] - previous;
+      previous = blockDocIds[i];
+    }
+    writePacked(values, blockSize, body);
+    for (int i = 0; i < blockSize; i++) {
+      values[i] = blockTfs[i] - 1;
+    }
+    writePacked(values, blockSize, body);
+    writeVarint(skips, previous - blockBase);
+    writeVarint(skips, body.getLength() - start);
+    blockBase = previous;
+    blockSize = 0;
+  }
+
+  /** Returns a cursor over a postings list in either format; an empty value is an empty list. */
+  public static Cursor cursor(byte[] bytes, int length) {
+    if (length > 0 && bytes[0] == BLOCK_MARKER) {
+      return new BlockCursor(bytes);
+    }
+    return new VIntCursor(bytes, length);
+  }
+
+  /** Returns a cursor over the first {@code length} of sorted docids; {@link Cursor#tf()} is 0. */
+  public static Cursor cursor(int[] docIds, int length) {
+    return new ArrayCursor(docIds, length);
+  }
+
+  /** Returns a cursor over the chunks of a list, in order, as over a single list. */
+  public static Cursor concat(List<Cursor> chunks) {
+    return chunks.size() == 1 ? chunks.get(0) : new ConcatCursor(chunks);
+  }
+
+  /**
+   * Iterates over a postings list by increasing docid. Once past the end, {@link #docId()} is
+   * {@link #END}.
+   */
+  public abstract static class Cursor {
+    public static final int END = Integer.MAX_VALUE;
+
+    protected int docId = -1;
+    protected int tf = 0;
+
+    public abstract int df();
+
+    /** Moves to the next posting. Returns false at the end of the list. */
+    public abstract boolean next();
+
+    /**
+     * Moves to the first posting at or after the current one whose docid is at least
+     * {@code target}. Returns false if there is none.
+     */
+    public boolean advance(int target) {
+      if (docId == END) {
+        return false;
+      }
+      while (docId < target) {
+        if (!next()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    public int docId() {
+      return docId;
+    }
+
+    public int tf() {
+      return tf;
+    }
+  }
+
+  private static class VIntCursor extends Cursor {
+    private final byte[] bytes;
+    private final int df;
+    private int pos;
+    private int read = 0;
+
+    private VIntCursor(byte[] bytes, int length) {
+      this.bytes = bytes;
+      if (length == 0) {
+        df = 0;
+      } else {
+        df = readVInt(bytes, 0);
+        pos = WritableUtils.decodeVIntSize(bytes[0]);
+      }
+    }
+
+    @Override
+    public int df() {
+      return df;
+    }
+
+    @Override
+    public boolean next() {
+      if (read == df) {
+        docId = END;
+        return false;
+      }
+      docId = Math.max(docId, 0) + readVInt(bytes, pos);
+      pos += WritableUtils.decodeVIntSize(bytes[pos]);
+      tf = readVInt(bytes, pos);
+      pos += WritableUtils.decodeVIntSize(bytes[pos]);
+      read++;
+      return true;
+    }
+  }
+
+  private static int readVInt(byte[] bytes, int pos) {
+    try {
+      return WritableComparator.readVInt(bytes, pos);
+    } catch (IOException e) {
+      // Only thrown for a malformed VInt.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static class BlockCursor extends Cursor {
+    private final byte[] bytes;
+    private final int df;
+    private final int numBlocks;
+    // Per block: its last docid and its offset in bytes.
+    private final int[] lastDocIds;
+    private final int[] offsets;
+    // The decoded block: docids and tfs of its postings.
+    private final int[] docIds = new int[BLOCK_SIZE];
+    private final int[] tfs = new int[BLOCK_SIZE];
+    private int block = -1;
+    private int blockSize = 0;
+    private int index = -1;
+    private final int[] pos = new int[1];
+
+    private BlockCursor(byte[] bytes) {
+      this.bytes = bytes;
+      pos[0] = 1;
+      df = readVarint(bytes, pos);
+      numBlocks = (df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      lastDocIds = new int[numBlocks];
+      offsets = new int[numBlocks + 1];
+      int last = 0;
+      int[] lengths = new int[numBlocks];
+      for (int b = 0; b < numBlocks; b++) {
+        last += readVarint(bytes, pos);
+        lastDocIds[b] = last;
+        lengths[b] = readVarint(bytes, pos);
+      }
+      offsets[0] = pos[0];
+      for (int b = 0; b < numBlocks; b++) {
+        offsets[b + 1] = offsets[b] + lengths[b];
+      }
+    }
+
+    @Override
+    public int df() {
+      return df;
+    }
+
+    @Override
+    public boolean next() {
+      if (index + 1 < blockSize) {
+        index++;
+      } else if (block + 1 < numBlocks) {
+        decode(block + 1);
+        index = 0;
+      } else {
+        docId = END;
+        return false;
+      }
+      docId = docIds[index];
+      tf = tfs[index];
+      return true;
+    }
+
+    @Override
+    public boolean advance(int target) {
+      if (docId >= target) {
+        return docId != END;
+      }
+      int b = Math.max(block, 0);
+      while (b < numBlocks && lastDocIds[b] < target) {
+        b++;
+      }
+      if (b == numBlocks) {
+        docId = END;
+        return false;
+      }
+      if (b != block) {
+        decode(b);
+        index = 0;
+      }
+      while (docIds[index] < target) {
+        index++;
+      }
+      docId = docIds[index];
+      tf = tfs[index];
+      return true;
+    }
+
+    private void decode(int b) {
+      blockSize = Math.min(BLOCK_SIZE, df - b * BLOCK_SIZE);
+      pos[0] = offsets[b];
+      readPacked(bytes, pos, docIds, blockSize);
+      readPacked(bytes, pos, tfs, blockSize);
+      int previous = b == 0 ? 0 : lastDocIds[b - 1];
+      for (int i = 0; i < blockSize; i++) {
+        previous += docIds[i];
+        docIds[i] = previous;
+        tfs[i]++;
+      }
+      block = b;
+    }
+  }
+
+  private static class ArrayCursor extends Cursor {
+    private final int[] docIds;
+    private final int length;
+    private int index = -1;
+
+    private ArrayCursor(int[] docIds, int length) {
+      this.docIds = docIds;
+      this.length = length;
+    }
+
+    @Override
+    public int df() {
+      return length;
+    }
+
+    @Override
+    public boolean next() {
+      if (index + 1 >= length) {
+        index = length;
+        docId = END;
+        return false;
+      }
+      docId = docIds[++index];
+      return true;
+    }
+
+    @Override
+    public boolean advance(int target) {
+      if (docId >= target) {
+        return docId != END;
+      }
+      int i = Arrays.binarySearch(docIds, index + 1, length, target);
+      index = i < 0 ? -i - 1 : i;
+      if (index == length) {
+        docId = END;
+        return false;
+      }
+      docId = docIds[index];
+      return true;
+    }
+  }
+
+  private static class ConcatCursor extends Cursor {
+    private final List<Cursor> chunks;
+    private final int df;
+    private int chunk = 0;
+
+    private ConcatCursor(List<Cursor> chunks) {
+      this.chunks = chunks;
+      int n = 0;
+      for (Cursor c : chunks) {
+        n += c.df();
+      }
+      df = n;
+    }
+
+    @Override
+    public int df() {
+      return df;
+    }
+
+    @Override
+    public boolean next() {
+      for (; chunk < chunks.size(); chunk++) {
+        Cursor c = chunks.get(chunk);
+        if (c.next()) {
+          docId = c.docId();
+          tf = c.tf();
+          return true;
+        }
+      }
+      docId = END;
+      return false;
+    }
+
+    @Override
+    public boolean advance(int target) {
+      if (docId >= target) {
+        return docId != END;
+      }
+      // A chunk that ends before target is passed over by its own skips.
+      for (; chunk < chunks.size(); chunk++) {
+        Cursor c = chunks.get(chunk);
+        if (c.advance(target)) {
+          docId = c.docId();
+          tf = c.tf();
+          return true;
+        }
+      }
+      docId = END;
+      return false;
+    }
+  }
+
+  private static void writePacked(int[] values, int n, DataOutput out) throws IOException {
+    // Number of values that need exactly 0, 1, ..., 32 bits.
+    int[] widths = new int[33];
+    for (int i = 0; i < n; i++) {
+      widths[32 - Integer.numberOfLeadingZeros(values[i])]++;
+    }
+    int best = 32;
+    long bestCost = Long.MAX_VALUE;
+    for (int b = 0; b <= 32; b++) {
+      // Packed bits, then an estimated 1 byte position and 2 bytes of high bits per exception.
+      long cost = (long) n * b;
+      for (int w = b + 1; w <= 32; w++) {
+        cost += widths[w] * 24L;
+      }
+      if (cost < bestCost) {
+        bestCost = cost;
+        best = b;
+      }
+    }
+
+    out.writeByte(best);
+    long mask = best == 32 ? 0xFFFFFFFFL : (1L << best) - 1;
+    long buffer = 0;
+    int bits = 0;
+    int exceptions = 0;
+    for (int i = 0; i < n; i++) {
+      long value = values[i] & 0xFFFFFFFFL;
+      if ((value & ~mask) != 0) {
+        exceptions++;
+      }
+      buffer |= (value & mask) << bits;
+      bits += best;
+      while (bits >= 8) {
+        out.writeByte((int) buffer);
+        buffer >>>= 8;
+        bits -= 8;
+      }
+    }
+    if (bits > 0) {
+      out.writeByte((int) buffer);
+    }
+    writeVarint(out, exceptions);
+    for (int i = 0; i < n && exceptions > 0; i++) {
+      long value = values[i] & 0xFFFFFFFFL;
+      if ((value & ~mask) != 0) {
+        out.writeByte(i);
+        writeVarint(out, (int) (value >>> best));
+        exceptions--;
+      }
+    }
+  }
+
+  private static void readPacked(byte[] bytes, int[] pos, int[] values, int n) {
+    int p = pos[0];
+    int width = bytes[p++];
+    long mask = width == 32 ? 0xFFFFFFFFL : (1L << width) - 1;
+    long buffer = 0;
+    int bits = 0;
+    for (int i = 0; i < n; i++) {
+      while (bits < width) {
+        buffer |= (bytes[p++] & 0xFFL) << bits;
+        bits += 8;
+      }
+      values[i] = (int) (buffer & mask);
+      buffer >>>= width;
+      bits -= width;
+    }
+    pos[0] = p;
+    int exceptions = readVarint(bytes, pos);
+    for (int e = 0; e < exceptions; e++) {
+      int i = bytes[pos[0]++] & 0xFF;
+      values[i] |= readVarint(bytes, pos) << width;
+    }
+  }
+
+  private static int varintSize(int value) {
+    int size = 1;
+    while ((value & ~0x7F) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  private static void writeVarint(DataOutput out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarint(byte[] bytes, int[] pos) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = bytes[pos[0]++];
+      value |= (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+}
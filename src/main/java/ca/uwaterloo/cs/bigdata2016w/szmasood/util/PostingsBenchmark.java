@@ -0,0 +1,169 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+/**
+ * Compares the {@link Postings} formats on the postings BuildInvertedIndexCompressed would write
+ * for a local text file (one document per line, docids are byte offsets): total size, time to
+ * decode every list, and time of AND queries intersecting a rare term with one of the most
+ * frequent terms through {@link Postings.Cursor#advance(int)}, best of a few passes.
+ *
+ * <pre>
+ *   java -cp target/bigdata2016w-0.1.0-SNAPSHOT.jar \
+ *     ca.uwaterloo.cs.bigdata2016w.szmasood.util.PostingsBenchmark data/Shakespeare.txt [queries]
+ * </pre>
+ */
+public class PostingsBenchmark {
+  private static final int FREQUENT_TERMS = 100;
+  private static final int PASSES = 5;
+
+  private PostingsBenchmark() {}
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: PostingsBenchmark [local text file] [queries]");
+      System.exit(-1);
+    }
+    int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+    byte[] text = Files.readAllBytes(Paths.get(args[0]));
+    final Map<String, int[]> index = new HashMap<String, int[]>();
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    TextTokenizer tokenizer = new TextTokenizer();
+    for (int start = 0; start < text.length; ) {
+      int end = start;
+      while (end < text.length && text[end] != '\n') {
+        end++;
+      }
+      counts.clear();
+      tokenizer.reset(text, start, end - start);
+      while (tokenizer.next()) {
+        String term = tokenizer.token();
+        Integer count = counts.get(term);
+        counts.put(term, count == null ? 1 : count + 1);
+      }
+      for (Map.Entry<String, Integer> e : counts.entrySet()) {
+        // Per term: df, then docid and tf of each posting.
+        int[] postings = index.get(e.getKey());
+        if (postings == null) {
+          postings = new int[9];
+        } else if (2 * postings[0] + 3 > postings.length) {
+          postings = Arrays.copyOf(postings, 2 * postings.length + 1);
+        }
+        postings[2 * postings[0] + 1] = start;
+        postings[2 * postings[0] + 2] = e.getValue();
+        postings[0]++;
+        index.put(e.getKey(), postings);
+      }
+      start = end + 1;
+    }
+
+    // Terms by decreasing df: queries pair a random term with one of the first FREQUENT_TERMS.
+    List<String> terms = new ArrayList<String>(index.keySet());
+    Collections.sort(terms, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        return Integer.compare(index.get(b)[0], index.get(a)[0]);
+      }
+    });
+    int numFrequent = Math.min(FREQUENT_TERMS, terms.size());
+    Random random = new Random(0);
+    int[][] queries = new int[numQueries][];
+    for (int i = 0; i < numQueries; i++) {
+      queries[i] = new int[] { random.nextInt(terms.size()), random.nextInt(numFrequent) };
+    }
+
+    long postingsCount = 0;
+    for (int[] postings : index.values()) {
+      postingsCount += postings[0];
+    }
+    System.out.println(String.format("%d terms, %d postings, %d queries",
+        terms.size(), postingsCount, numQueries));
+
+    DataOutputBuffer buffer = new DataOutputBuffer();
+    DataInputBuffer input = new DataInputBuffer();
+    for (Postings.Format format : Postings.Format.values()) {
+      Postings writer = new Postings(format, Postings.DEFAULT_CHUNK_BYTES);
+      byte[][] lists = new byte[terms.size()][];
+      long bytes = 0;
+      for (int t = 0; t < lists.length; t++) {
+        int[] postings = index.get(terms.get(t));
+        writer.clear();
+        for (int i = 0; i < postings[0]; i++) {
+          writer.add(postings[2 * i + 1], postings[2 * i + 2]);
+        }
+        buffer.reset();
+        writer.write(buffer);
+        Postings list = new Postings();
+        input.reset(buffer.getData(), buffer.getLength());
+        list.readFields(input);
+        lists[t] = Arrays.copyOf(list.getBytes(), list.getLength());
+        bytes += lists[t].length;
+      }
+
+      // The first passes warm up the JIT; the fastest pass is reported.
+      long decodeNanos = Long.MAX_VALUE;
+      long queryNanos = Long.MAX_VALUE;
+      long decodeChecksum = 0;
+      long matches = 0;
+      for (int pass = 0; pass < PASSES; pass++) {
+        decodeChecksum = 0;
+        long startTime = System.nanoTime();
+        for (byte[] list : lists) {
+          Postings.Cursor cursor = Postings.cursor(list, list.length);
+          while (cursor.next()) {
+            decodeChecksum += cursor.docId() + cursor.tf();
+          }
+        }
+        decodeNanos = Math.min(decodeNanos, System.nanoTime() - startTime);
+
+        matches = 0;
+        startTime = System.nanoTime();
+        for (int[] query : queries) {
+          matches += intersect(lists[query[0]], lists[query[1]]);
+        }
+        queryNanos = Math.min(queryNanos, System.nanoTime() - startTime);
+      }
+
+      System.out.println(String.format(
+          "%-5s %10d bytes (%.2f per posting), decode all %8.2f ms (%.1f ns per posting), "
+              + "AND %.2f us per query (%d matches, checksum %d)",
+          format, bytes, (double) bytes / postingsCount, decodeNanos / 1e6,
+          (double) decodeNanos / postingsCount, queryNanos / 1e3 / numQueries, matches,
+          decodeChecksum));
+    }
+  }
+
+  private static int intersect(byte[] a, byte[] b) {
+    Postings.Cursor shorter = Postings.cursor(a, a.length);
+    Postings.Cursor longer = Postings.cursor(b, b.length);
+    if (shorter.df() > longer.df()) {
+      Postings.Cursor swap = shorter;
+      shorter = longer;
+      longer = swap;
+    }
+    int matches = 0;
+    while (shorter.next()) {
+      if (!longer.advance(shorter.docId())) {
+        break;
+      }
+      if (longer.docId() == shorter.docId()) {
+        matches++;
+      }
+    }
+    return matches;
+  }
+}
@@ -0,0 +1,125 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decoded docid lists of terms, bounded by their total size in bytes and evicted least recently
+ * used first. Lookups and insertions lock the cache, loads of missing terms don't, so concurrent
+ * readers never wait on each other's I/O (two readers missing the same term may both load it).
+ * Lists larger than the whole budget are returned without being cached.
+ *
+ * <pre>
+ *   int[] docs = cache.get(term, new PostingsCache.Loader() {
+ *     public int[] load(String term) throws IOException { ... }
+ *   });
+ * </pre>
+ */
+public class PostingsCache {
+  /** Loads the sorted docids of a term missing from the cache. */
+  public interface Loader {
+    int[] load(String term) throws IOException;
+  }
+
+  public static final long DEFAULT_BYTES = 64L << 20;
+  // Estimated overhead per entry: the map entry, the key String and its chars, the array header.
+  private static final int ENTRY_OVERHEAD = 96;
+
+  private final long maxBytes;
+  private long bytes = 0;
+  // In access order, least recently used first.
+  private final LinkedHashMap<String, int[]> lists =
+      new LinkedHashMap<String, int[]>(16, 0.75f, true);
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public PostingsCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /** Returns the docids of {@code term}, loading them on a miss. Callers must not modify them. */
+  public int[] get(String term, Loader loader) throws IOException {
+    int[] docs = peek(term);
+    if (docs == null) {
+      docs = loader.load(term);
+      put(term, docs);
+    }
+    return docs;
+  }
+
+  /**
+   * Returns the docids of {@code term}, or null on a miss, for callers that read the postings
+   * themselves and {@link #put} them once decoded. Callers must not modify them.
+   */
+  public int[] peek(String term) {
+    synchronized (this) {
+      int[] docs = lists.get(term);
+      if (docs != null) {
+        hits.incrementAndGet();
+        return docs;
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /** Caches the docids of {@code term}, evicting the least recently used lists to make room. */
+  public void put(String term, int[] docs) {
+    long size = sizeOf(term, docs);
+    if (size > maxBytes) {
+      return;
+    }
+
+    synchronized (this) {
+      int[] previous = lists.put(term, docs);
+      if (previous != null) {
+        bytes -= sizeOf(term, previous);
+      }
+      bytes += size;
+      Iterator<Map.Entry<String, int[]>> iter = lists.entrySet().iterator();
+      while (bytes > maxBytes) {
+        Map.Entry<String, int[]> eldest = iter.next();
+        bytes -= sizeOf(eldest.getKey(), eldest.getValue());
+        iter.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  public long hits() {
+    return hits.get();
+  }
+
+  public long misses() {
+    return misses.get();
+  }
+
+  public long evictions() {
+    return evictions.get();
+  }
+
+  public synchronized long bytes() {
+    return bytes;
+  }
+
+  public synchronized int size() {
+    return lists.size();
+  }
+
+  @Override
+  public String toString() {
+    long h = hits();
+    long lookups = h + misses();
+    return String.format("postings cache: %d terms, %d bytes, %d hits, %d misses (%.1f%% hits), "
+        + "%d evictions", size(), bytes(), h, misses(), lookups == 0 ? 0.0 : 100.0 * h / lookups,
+        evictions());
+  }
+
+  private static long sizeOf(String term, int[] docs) {
+    return ENTRY_OVERHEAD + 2L * term.length() + 4L * docs.length;
+  }
+}
@@ -0,0 +1,299 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.TaskReport;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Partitioner for Text keys that routes the heaviest keys according to a precomputed plan and hashes
+ * everything else exactly like {@code HashPartitioner}.
+ *
+ * <p>The plan is built in the driver by {@link #plan(Job, KeySampler)}: it reads the first records
+ * of a few evenly spaced input splits, lets a {@link KeySampler} replay what the mapper would emit,
+ * and estimates the load every reducer would get from hashing the light keys. The load is what
+ * reaches the reducers: with a combiner, a key weighs once per sampled split it occurs in (with the
+ * largest weight it was emitted with there), however often the mapper emits it, since the combiner
+ * folds its records into one per spill; without one, every emitted record counts. Keys heavier than
+ * a fraction of a reducer's fair share ({@link #HEAVY_SHARE}) are then placed, heaviest first, on
+ * the least loaded reducer. The plan travels in the job configuration, so it only holds a bounded
+ * number of keys. {@link #logReducerLoad(Job)} reports the load each reducer actually got.</p>
+ */
+public class SkewAwarePartitioner<V> extends Partitioner<Text, V> implements Configurable {
+  private static final Logger LOG = Logger.getLogger(SkewAwarePartitioner.class);
+
+  /** Configuration key holding the serialized plan. */
+  public static final String PLAN = "skew.plan";
+  /** Number of input splits to sample. */
+  public static final String SAMPLE_SPLITS = "skew.sample.splits";
+  /** Number of records to read from each sampled split. */
+  public static final String SAMPLE_RECORDS = "skew.sample.records";
+  /** A key is planned once its estimated load exceeds this fraction of total load / reducers. */
+  public static final String HEAVY_SHARE = "skew.heavy.share";
+
+  public static final int DEFAULT_SAMPLE_SPLITS = 10;
+  public static final int DEFAULT_SAMPLE_RECORDS = 20000;
+  public static final float DEFAULT_HEAVY_SHARE = 0.1f;
+  public static final int MAX_PLANNED_KEYS = 1000;
+
+  /**
+   * Replays the keys a mapper would emit for one input line, with the number of records (or any other
+   * measure of reducer work) each of them stands for.
+   */
+  public static abstract class KeySampler {
+    private final HashMap<Text, long[]> loads = new HashMap<Text, long[]>();
+    // With a combiner, the keys of the split being sampled, folded into loads once it is done.
+    private final HashMap<Text, long[]> split = new HashMap<Text, long[]>();
+    private final Text probe = new Text();
+    private boolean combined;
+    private long total;
+
+    public abstract void sample(Text line);
+
+    protected final void emit(byte[] bytes, int offset, int length, long weight) {
+      probe.set(bytes, offset, length);
+      HashMap<Text, long[]> target = combined ? split : loads;
+      long[] load = target.get(probe);
+      if (load == null) {
+        load = new long[1];
+        target.put(new Text(probe), load);
+      }
+      if (combined) {
+        load[0] = Math.max(load[0], weight);
+      } else {
+        load[0] += weight;
+        total += weight;
+      }
+    }
+
+    protected final void emit(String key, long weight) {
+      probe.set(key);
+      emit(probe.getBytes(), 0, probe.getLength(), weight);
+    }
+
+    private void endSplit() {
+      for (Map.Entry<Text, long[]> e : split.entrySet()) {
+        long[] load = loads.get(e.getKey());
+        if (load == null) {
+          loads.put(e.getKey(), e.getValue());
+        } else {
+          load[0] += e.getValue()[0];
+        }
+        total += e.getValue()[0];
+      }
+      split.clear();
+    }
+  }
+
+  private Configuration conf;
+  // Open-addressing table of the planned keys, probed with Text.hashCode(); size is a power of two.
+  private Text[] keys = new Text[0];
+  private int[] hashes;
+  private int[] partitions;
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    String plan = conf.get(PLAN);
+    if (plan == null) {
+      return;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.decodeBase64(plan)));
+      int n = WritableUtils.readVInt(in);
+      int capacity = Integer.highestOneBit(Math.max(1, n) * 4);
+      keys = new Text[capacity];
+      hashes = new int[capacity];
+      partitions = new int[capacity];
+      for (int i = 0; i < n; i++) {
+        int partition = WritableUtils.readVInt(in);
+        Text key = new Text();
+        key.readFields(in);
+        int h = key.hashCode();
+        int slot = h & (capacity - 1);
+        while (keys[slot] != null) {
+          slot = (slot + 1) & (capacity - 1);
+        }
+        keys[slot] = key;
+        hashes[slot] = h;
+        partitions[slot] = partition;
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Malformed " + PLAN + " in the job configuration", e);
+    }
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  @Override
+  public int getPartition(Text key, V value, int numPartitions) {
+    int h = key.hashCode();
+    if (keys.length != 0) {
+      int mask = keys.length - 1;
+      for (int slot = h & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+        if (hashes[slot] == h && keys[slot].equals(key)) {
+          return partitions[slot] % numPartitions;
+        }
+      }
+    }
+    return (h & Integer.MAX_VALUE) % numPartitions;
+  }
+
+  /**
+   * Samples the input of {@code job} and stores a plan for its number of reducers in its
+   * configuration. The input paths and format, and the combiner if any, must already be set; the
+   * caller still has to set this class as the partitioner.
+   */
+  public static void plan(Job job, KeySampler sampler) throws IOException, InterruptedException {
+    int numReducers = job.getNumReduceTasks();
+    if (numReducers <= 1) {
+      return;
+    }
+    Configuration conf = job.getConfiguration();
+
+    InputFormat<?, ?> format;
+    try {
+      format = ReflectionUtils.newInstance(job.getInputFormatClass(), conf);
+      sampler.combined = job.getCombinerClass() != null;
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+    List<InputSplit> splits = format.getSplits(job);
+    int numSamples = Math.min(splits.size(), conf.getInt(SAMPLE_SPLITS, DEFAULT_SAMPLE_SPLITS));
+    int maxRecords = conf.getInt(SAMPLE_RECORDS, DEFAULT_SAMPLE_RECORDS);
+    for (int i = 0; i < numSamples; i++) {
+      InputSplit split = splits.get((int) ((long) i * splits.size() / numSamples));
+      TaskAttemptContext context = new TaskAttemptContextImpl(conf, new TaskAttemptID());
+      RecordReader<?, ?> reader = format.createRecordReader(split, context);
+      try {
+        reader.initialize(split, context);
+        for (int records = 0; records < maxRecords && reader.nextKeyValue(); records++) {
+          sampler.sample((Text) reader.getCurrentValue());
+        }
+      } finally {
+        reader.close();
+      }
+      sampler.endSplit();
+    }
+    if (sampler.total == 0) {
+      return;
+    }
+
+    // Split the sampled keys into heavy ones and the tail, whose load is spread by hashing.
+    long threshold = (long) Math.ceil(conf.getFloat(HEAVY_SHARE, DEFAULT_HEAVY_SHARE)
+        * sampler.total / numReducers);
+    final List<Map.Entry<Text, long[]>> heavy = new ArrayList<Map.Entry<Text, long[]>>();
+    long[] hashLoad = new long[numReducers];
+    long[] plannedLoad = new long[numReducers];
+    for (Map.Entry<Text, long[]> e : sampler.loads.entrySet()) {
+      int p = (e.getKey().hashCode() & Integer.MAX_VALUE) % numReducers;
+      hashLoad[p] += e.getValue()[0];
+      if (e.getValue()[0] >= threshold) {
+        heavy.add(e);
+      } else {
+        plannedLoad[p] += e.getValue()[0];
+      }
+    }
+    Collections.sort(heavy, new Comparator<Map.Entry<Text, long[]>>() {
+      @Override
+      public int compare(Map.Entry<Text, long[]> a, Map.Entry<Text, long[]> b) {
+        long x = a.getValue()[0];
+        long y = b.getValue()[0];
+        return x > y ? -1 : x < y ? 1 : 0;
+      }
+    });
+    // Keys past the cap stay hashed.
+    for (int i = MAX_PLANNED_KEYS; i < heavy.size(); i++) {
+      Map.Entry<Text, long[]> e = heavy.get(i);
+      plannedLoad[(e.getKey().hashCode() & Integer.MAX_VALUE) % numReducers] += e.getValue()[0];
+    }
+    int numPlanned = Math.min(heavy.size(), MAX_PLANNED_KEYS);
+
+    // Longest processing time first: each heavy key goes to the currently least loaded reducer.
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    WritableUtils.writeVInt(out, numPlanned);
+    for (int i = 0; i < numPlanned; i++) {
+      int p = 0;
+      for (int r = 1; r < numReducers; r++) {
+        if (plannedLoad[r] < plannedLoad[p]) {
+          p = r;
+        }
+      }
+      plannedLoad[p] += heavy.get(i).getValue()[0];
+      WritableUtils.writeVInt(out, p);
+      heavy.get(i).getKey().write(out);
+    }
+    out.close();
+    conf.set(PLAN, Base64.encodeBase64String(bytes.toByteArray()));
+
+    LOG.info("Skew-aware partitioning: sampled " + numSamples + " splits, estimated load "
+        + sampler.total + (sampler.combined ? " after combining" : "") + ", planned " + numPlanned
+        + " heavy keys");
+    LOG.info(String.format(" - estimated max/mean reducer load: %.2f with hashing, %.2f planned",
+        skew(hashLoad), skew(plannedLoad)));
+  }
+
+  /**
+   * Logs the number of input records each reducer of a completed job got, and the ratio of the
+   * largest to the mean. Does nothing if the task reports aren't available.
+   */
+  public static void logReducerLoad(Job job) throws InterruptedException {
+    TaskReport[] reports;
+    try {
+      reports = job.getTaskReports(TaskType.REDUCE);
+    } catch (IOException e) {
+      LOG.warn("Could not get the reduce task reports: " + e.getMessage());
+      return;
+    }
+    if (reports == null || reports.length == 0) {
+      return;
+    }
+    long[] load = new long[reports.length];
+    for (TaskReport report : reports) {
+      int id = report.getTaskID().getId();
+      load[id] = report.getTaskCounters().findCounter(TaskCounter.REDUCE_INPUT_RECORDS).getValue();
+      LOG.info(String.format(" - reducer %d: %d input records", id, load[id]));
+    }
+    LOG.info(String.format("Max/mean reducer load: %.2f", skew(load)));
+  }
+
+  private static double skew(long[] load) {
+    long max = 0;
+    long sum = 0;
+    for (long l : load) {
+      max = Math.max(max, l);
+      sum += l;
+    }
+    return sum == 0 ? 1.0 : max * (double) load.length / sum;
+  }
+}
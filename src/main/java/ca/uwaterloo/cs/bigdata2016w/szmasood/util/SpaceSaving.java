@@ -0,0 +1,185 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * SpaceSaving top-k summary (Metwally et al.) holding at most {@code capacity} counters. Every key
+ * occurring more than total / capacity times is guaranteed to be present; the count of a monitored
+ * key overestimates its true count by at most its error. Counters live in a min-heap so that a new
+ * key replaces the smallest one in O(log capacity); hits on monitored keys allocate nothing.
+ */
+public class SpaceSaving implements Writable {
+  private int capacity;
+  private int size;
+  private Text[] keys;
+  private long[] counts;
+  private long[] errors;
+  // heap[i] is a slot; pos[slot] is its position in the heap. Ordered by count, smallest first.
+  private int[] heap;
+  private int[] pos;
+  private final HashMap<Text, Integer> index = new HashMap<Text, Integer>();
+  private final Text probe = new Text();
+
+  /** For deserialization only. */
+  public SpaceSaving() {}
+
+  public SpaceSaving(int capacity) {
+    allocate(capacity);
+  }
+
+  public void add(byte[] bytes, int offset, int length, long count) {
+    probe.set(bytes, offset, length);
+    Integer slot = index.get(probe);
+    if (slot != null) {
+      counts[slot] += count;
+      siftDown(pos[slot]);
+      return;
+    }
+
+    if (size < capacity) {
+      int s = size++;
+      keys[s] = new Text(probe);
+      counts[s] = count;
+      errors[s] = 0;
+      heap[s] = s;
+      pos[s] = s;
+      index.put(keys[s], s);
+      siftUp(s);
+    } else {
+      // Replace the smallest counter; its count becomes the error of the new key.
+      int s = heap[0];
+      index.remove(keys[s]);
+      keys[s].set(probe);
+      errors[s] = counts[s];
+      counts[s] += count;
+      index.put(keys[s], s);
+      siftDown(0);
+    }
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the smallest monitored count once the summary is full (an upper bound of the count of
+   * any key that isn't monitored), or 0 if it never had to evict anything.
+   */
+  public long minCount() {
+    return size < capacity ? 0 : counts[heap[0]];
+  }
+
+  // Accessors for the i-th counter, 0 <= i < size(), in no particular order.
+
+  public Text key(int i) {
+    return keys[i];
+  }
+
+  public long count(int i) {
+    return counts[i];
+  }
+
+  public long error(int i) {
+    return errors[i];
+  }
+
+  public void clear() {
+    size = 0;
+    index.clear();
+  }
+
+  private void allocate(int capacity) {
+    this.capacity = capacity;
+    this.keys = new Text[capacity];
+    this.counts = new long[capacity];
+    this.errors = new long[capacity];
+    this.heap = new int[capacity];
+    this.pos = new int[capacity];
+    this.size = 0;
+    index.clear();
+  }
+
+  private void siftUp(int i) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (counts[heap[parent]] <= counts[heap[i]]) {
+        break;
+      }
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown(int i) {
+    while (true) {
+      int smallest = i;
+      int left = 2 * i + 1;
+      int right = left + 1;
+      if (left < size && counts[heap[left]] < counts[heap[smallest]]) {
+        smallest = left;
+      }
+      if (right < size && counts[heap[right]] < counts[heap[smallest]]) {
+        smallest = right;
+      }
+      if (smallest == i) {
+        return;
+      }
+      swap(i, smallest);
+      i = smallest;
+    }
+  }
+
+  private void swap(int i, int j) {
+    int t = heap[i];
+    heap[i] = heap[j];
+    heap[j] = t;
+    pos[heap[i]] = i;
+    pos[heap[j]] = j;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, capacity);
+    WritableUtils.writeVInt(out, size);
+    for (int i = 0; i < size; i++) {
+      keys[i].write(out);
+      WritableUtils.writeVLong(out, counts[i]);
+      WritableUtils.writeVLong(out, errors[i]);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    int c = WritableUtils.readVInt(in);
+    if (keys == null || capacity != c) {
+      allocate(c);
+    } else {
+      clear();
+    }
+    int n = WritableUtils.readVInt(in);
+    for (int i = 0; i < n; i++) {
+      if (keys[i] == null) {
+        keys[i] = new Text();
+      }
+      keys[i].readFields(in);
+      counts[i] = WritableUtils.readVLong(in);
+      errors[i] = WritableUtils.readVLong(in);
+      heap[i] = i;
+      pos[i] = i;
+      index.put(keys[i], i);
+      size++;
+      siftUp(i);
+    }
+  }
+}
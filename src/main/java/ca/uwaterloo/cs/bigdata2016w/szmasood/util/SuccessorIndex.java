@@ -0,0 +1,350 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Read-only index of the successors of every word, built from the output of the bigram relative
+ * frequency jobs, in a single file meant to be memory-mapped. Opening it maps the file and reads a
+ * fixed-size trailer; a lookup binary-searches the terms in place and reads the successors of the
+ * word, which are stored best first, so the top k cost k reads and no allocation.
+ *
+ * <p>Layout, all ints and floats little-endian:</p>
+ * <pre>
+ *   terms:      UTF-8 bytes of every term (left words and successors), in increasing byte order
+ *   termIndex:  int offset of every term in the terms section, then the end of the section
+ *   heads:      int index of the first successor of every term, then the number of successors
+ *   successors: per successor int term id and float relative frequency, grouped by left term in
+ *               term order, by decreasing frequency then term within a group
+ *   trailer:    int numTerms, int numSuccessors, int termIndexOffset, int headsOffset,
+ *               int successorsOffset, int MAGIC
+ * </pre>
+ * Term ids are ranks in the terms section. Lookups only use absolute reads of the mapping, so an
+ * instance can be shared by threads.
+ */
+public class SuccessorIndex {
+  private static final int MAGIC = 0x53554343;
+  private static final int TRAILER_BYTES = 6 * 4;
+  private static final int SUCCESSOR_BYTES = 8;
+
+  private final MappedByteBuffer buffer;
+  private final int numTerms;
+  private final int numSuccessors;
+  private final int termIndexOffset;
+  private final int headsOffset;
+  private final int successorsOffset;
+
+  private SuccessorIndex(MappedByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    int trailer = buffer.limit() - TRAILER_BYTES;
+    if (trailer < 0 || buffer.getInt(trailer + 20) != MAGIC) {
+      throw new IOException("Not a successor index");
+    }
+    numTerms = buffer.getInt(trailer);
+    numSuccessors = buffer.getInt(trailer + 4);
+    termIndexOffset = buffer.getInt(trailer + 8);
+    headsOffset = buffer.getInt(trailer + 12);
+    successorsOffset = buffer.getInt(trailer + 16);
+  }
+
+  /** Maps {@code file} read-only. The mapping stays valid after the file is closed. */
+  public static SuccessorIndex open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return new SuccessorIndex(
+          raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+    } finally {
+      raf.close();
+    }
+  }
+
+  public int numTerms() {
+    return numTerms;
+  }
+
+  public int numSuccessors() {
+    return numSuccessors;
+  }
+
+  /** Returns the id of the given UTF-8 term, or -1 if it isn't in the index. */
+  public int id(byte[] key, int offset, int length) {
+    int lo = 0;
+    int hi = numTerms - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = compare(mid, key, offset, length);
+      if (c == 0) {
+        return mid;
+      } else if (c < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return -1;
+  }
+
+  public int id(String term) {
+    byte[] key = term.getBytes(StandardCharsets.UTF_8);
+    return id(key, 0, key.length);
+  }
+
+  public String term(int id) {
+    int start = buffer.getInt(termIndexOffset + 4 * id);
+    int end = buffer.getInt(termIndexOffset + 4 * id + 4);
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(start + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** Returns the number of successors of the term with the given id. */
+  public int numSuccessors(int id) {
+    return buffer.getInt(headsOffset + 4 * id + 4) - buffer.getInt(headsOffset + 4 * id);
+  }
+
+  /** Returns the id of the {@code rank}-th most frequent successor (0 is the most frequent). */
+  public int successor(int id, int rank) {
+    return buffer.getInt(successorPosition(id, rank));
+  }
+
+  /** Returns the relative frequency of the {@code rank}-th most frequent successor. */
+  public float frequency(int id, int rank) {
+    return buffer.getFloat(successorPosition(id, rank) + 4);
+  }
+
+  /**
+   * Copies the ids and relative frequencies of the (at most) {@code k} most frequent successors of
+   * the term with the given id into the arrays, and returns how many there are.
+   */
+  public int topK(int id, int k, int[] ids, float[] frequencies) {
+    int n = Math.min(k, numSuccessors(id));
+    int pos = successorPosition(id, 0);
+    for (int i = 0; i < n; i++, pos += SUCCESSOR_BYTES) {
+      ids[i] = buffer.getInt(pos);
+      frequencies[i] = buffer.getFloat(pos + 4);
+    }
+    return n;
+  }
+
+  private int successorPosition(int id, int rank) {
+    return successorsOffset + (buffer.getInt(headsOffset + 4 * id) + rank) * SUCCESSOR_BYTES;
+  }
+
+  private int compare(int id, byte[] key, int offset, int length) {
+    int pos = buffer.getInt(termIndexOffset + 4 * id);
+    int len = buffer.getInt(termIndexOffset + 4 * id + 4) - pos;
+    int n = Math.min(len, length);
+    for (int i = 0; i < n; i++) {
+      int a = buffer.get(pos + i) & 0xFF;
+      int b = key[offset + i] & 0xFF;
+      if (a != b) {
+        return a - b;
+      }
+    }
+    return len - length;
+  }
+
+  /**
+   * Builds an index from the text part files of ComputeBigramRelativeFrequencyPairs
+   * ("(a, b)\tfrequency"; the "(a, *)" marginals are skipped) or
+   * ComputeBigramRelativeFrequencyStripes ("a\t{b=frequency, ...}"). {@code parts} is a job
+   * output directory or a single file. Everything is read into primitive arrays first, so the
+   * successors of a word may come from any number of lines and part files. Returns the number of
+   * successors.
+   */
+  public static int build(FileSystem fs, Path parts, File index) throws IOException {
+    Builder builder = new Builder();
+    for (FileStatus f : fs.listStatus(parts)) {
+      String name = f.getPath().getName();
+      if (f.isDirectory() || name.startsWith("_") || name.startsWith(".")) {
+        continue;
+      }
+      BufferedReader reader =
+          new BufferedReader(new InputStreamReader(fs.open(f.getPath()), StandardCharsets.UTF_8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          builder.addLine(line);
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    builder.write(new FileOutputStream(index));
+    return builder.size;
+  }
+
+  // (left, right, frequency) triples in parallel arrays, with term ids in order of appearance.
+  private static class Builder {
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private int[] lefts = new int[1024];
+    private int[] rights = new int[1024];
+    private float[] frequencies = new float[1024];
+    private int size = 0;
+
+    private void addLine(String line) {
+      int tab = line.lastIndexOf('\t');
+      if (line.startsWith("(")) {
+        // "(a, b)\tfrequency": words contain no spaces, so the first ", " separates them.
+        int comma = line.indexOf(", ");
+        String right = line.substring(comma + 2, tab - 1);
+        if (!right.equals("*")) {
+          add(line.substring(1, comma), right, Float.parseFloat(line.substring(tab + 1)));
+        }
+        return;
+      }
+
+      // "a\t{b=frequency, c=frequency}"
+      tab = line.indexOf('\t');
+      String left = line.substring(0, tab);
+      int pos = tab + 2;
+      int end = line.length() - 1;
+      while (pos < end) {
+        int next = line.indexOf(", ", pos);
+        if (next < 0) {
+          next = end;
+        }
+        int eq = line.lastIndexOf('=', next - 1);
+        add(left, line.substring(pos, eq), Float.parseFloat(line.substring(eq + 1, next)));
+        pos = next + 2;
+      }
+    }
+
+    private void add(String left, String right, float frequency) {
+      if (size == lefts.length) {
+        lefts = Arrays.copyOf(lefts, size * 2);
+        rights = Arrays.copyOf(rights, size * 2);
+        frequencies = Arrays.copyOf(frequencies, size * 2);
+      }
+      lefts[size] = id(left);
+      rights[size] = id(right);
+      frequencies[size] = frequency;
+      size++;
+    }
+
+    private int id(String term) {
+      Integer id = ids.get(term);
+      if (id == null) {
+        id = ids.size();
+        ids.put(term, id);
+      }
+      return id;
+    }
+
+    private void write(OutputStream stream) throws IOException {
+      int numTerms = ids.size();
+      final byte[][] terms = new byte[numTerms][];
+      for (Map.Entry<String, Integer> e : ids.entrySet()) {
+        terms[e.getValue()] = e.getKey().getBytes(StandardCharsets.UTF_8);
+      }
+      Integer[] order = new Integer[numTerms];
+      for (int i = 0; i < numTerms; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return compareBytes(terms[a], terms[b]);
+        }
+      });
+      int[] rank = new int[numTerms];
+      for (int i = 0; i < numTerms; i++) {
+        rank[order[i]] = i;
+      }
+
+      // Group the successors by left term with a counting sort, then order each group by
+      // decreasing frequency then term: frequencies aren't negative, so the bits of a frequency
+      // order like the frequency, and a group sorts as longs.
+      int[] heads = new int[numTerms + 1];
+      for (int i = 0; i < size; i++) {
+        heads[rank[lefts[i]] + 1]++;
+      }
+      for (int i = 0; i < numTerms; i++) {
+        heads[i + 1] += heads[i];
+      }
+      long[] keys = new long[size];
+      int[] fill = Arrays.copyOf(heads, numTerms);
+      for (int i = 0; i < size; i++) {
+        long bits = Integer.MAX_VALUE - Float.floatToIntBits(frequencies[i]);
+        keys[fill[rank[lefts[i]]]++] = (bits << 32) | rank[rights[i]];
+      }
+      for (int i = 0; i < numTerms; i++) {
+        Arrays.sort(keys, heads[i], heads[i + 1]);
+      }
+
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+      try {
+        int offset = 0;
+        int[] termIndex = new int[numTerms + 1];
+        for (int i = 0; i < numTerms; i++) {
+          termIndex[i] = offset;
+          out.write(terms[order[i]]);
+          offset += terms[order[i]].length;
+        }
+        termIndex[numTerms] = offset;
+        int termIndexOffset = offset;
+        for (int value : termIndex) {
+          writeIntLE(out, value);
+        }
+        int headsOffset = termIndexOffset + 4 * (numTerms + 1);
+        for (int value : heads) {
+          writeIntLE(out, value);
+        }
+        int successorsOffset = headsOffset + 4 * (numTerms + 1);
+        for (long key : keys) {
+          writeIntLE(out, (int) key);
+          writeIntLE(out, Integer.MAX_VALUE - (int) (key >>> 32));
+        }
+
+        writeIntLE(out, numTerms);
+        writeIntLE(out, size);
+        writeIntLE(out, termIndexOffset);
+        writeIntLE(out, headsOffset);
+        writeIntLE(out, successorsOffset);
+        writeIntLE(out, MAGIC);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  private static int compareBytes(byte[] a, byte[] b) {
+    int n = Math.min(a.length, b.length);
+    for (int i = 0; i < n; i++) {
+      int x = a[i] & 0xFF;
+      int y = b[i] & 0xFF;
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  private static void writeIntLE(OutputStream out, int value) throws IOException {
+    for (int b = 0; b < 4; b++) {
+      out.write(value >>> (8 * b));
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Measures a {@link SuccessorIndex} built from the output of a bigram relative frequency job: build
+ * time and size, then the latency of top-10 lookups (term id and successors) for words drawn at
+ * random among the words with successors, after a warm-up. Reports percentiles in microseconds.
+ *
+ * <pre>
+ *   java -cp target/bigdata2016w-0.1.0-SNAPSHOT.jar \
+ *     ca.uwaterloo.cs.bigdata2016w.szmasood.util.SuccessorIndexBenchmark bigram-output [lookups]
+ * </pre>
+ */
+public class SuccessorIndexBenchmark {
+  private static final int K = 10;
+
+  private SuccessorIndexBenchmark() {}
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: SuccessorIndexBenchmark [bigram output path] [lookups]");
+      System.exit(-1);
+    }
+    int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+    File file = File.createTempFile("successors", ".idx");
+    file.deleteOnExit();
+    long startTime = System.nanoTime();
+    int n = SuccessorIndex.build(FileSystem.getLocal(new Configuration()), new Path(args[0]), file);
+    double buildSecs = (System.nanoTime() - startTime) / 1e9;
+
+    startTime = System.nanoTime();
+    SuccessorIndex index = SuccessorIndex.open(file);
+    double openMillis = (System.nanoTime() - startTime) / 1e6;
+    System.out.println(String.format(
+        "%d terms, %d successors: built in %.2f s, %d bytes, opened in %.2f ms",
+        index.numTerms(), n, buildSecs, file.length(), openMillis));
+
+    int numWords = 0;
+    byte[][] words = new byte[index.numTerms()][];
+    for (int id = 0; id < index.numTerms(); id++) {
+      if (index.numSuccessors(id) > 0) {
+        words[numWords++] = index.term(id).getBytes(StandardCharsets.UTF_8);
+      }
+    }
+    if (numWords == 0) {
+      System.err.println("No word has successors");
+      System.exit(-1);
+    }
+
+    Random random = new Random(0);
+    int[] queries = new int[lookups];
+    for (int i = 0; i < lookups; i++) {
+      queries[i] = random.nextInt(numWords);
+    }
+    int[] ids = new int[K];
+    float[] frequencies = new float[K];
+    long[] nanos = new long[lookups];
+    long checksum = 0;
+
+    // The first pass warms up the JIT and the page cache, the second one is measured.
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < lookups; i++) {
+        byte[] word = words[queries[i]];
+        long start = System.nanoTime();
+        int id = index.id(word, 0, word.length);
+        int found = index.topK(id, K, ids, frequencies);
+        nanos[i] = System.nanoTime() - start;
+        checksum += found + ids[0];
+      }
+    }
+
+    long total = 0;
+    for (long t : nanos) {
+      total += t;
+    }
+    Arrays.sort(nanos);
+    System.out.println(String.format(
+        "%d top-%d lookups: mean %.2f us, p50 %.2f us, p90 %.2f us, p99 %.2f us, max %.2f us (%d)",
+        lookups, K, total / 1e3 / lookups, percentile(nanos, 0.5), percentile(nanos, 0.9),
+        percentile(nanos, 0.99), nanos[lookups - 1] / 1e3, checksum));
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e3;
+  }
+}
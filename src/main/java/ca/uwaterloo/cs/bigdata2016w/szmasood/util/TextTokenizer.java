@@ -0,0 +1,183 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Byte-level tokenizer over the UTF-8 contents of a {@link Text}. Produces exactly the same tokens
+ * as the usual
+ * <pre>
+ *   StringTokenizer itr = new StringTokenizer(value.toString());
+ *   String w = itr.nextToken().toLowerCase().replaceAll("(^[^a-z]+|[^a-z]+$)", "");
+ * </pre>
+ * idiom (empty tokens skipped), but scans the bytes in place and lowercases/trims into a reused
+ * buffer, so no objects are created per token. Tokens containing non-ASCII bytes are rare and go
+ * through the original String path to keep the results identical.
+ *
+ * <p>Typical use in a mapper:</p>
+ * <pre>
+ *   TOKENIZER.reset(value);
+ *   while (TOKENIZER.next()) {
+ *     TOKENIZER.get(WORD);
+ *     context.write(WORD, ONE);
+ *   }
+ * </pre>
+ *
+ * Not thread-safe; keep one instance per mapper.
+ */
+public final class TextTokenizer {
+  private byte[] input;
+  private int pos;
+  private int end;
+
+  // Current token (already lowercased and trimmed), always in buf[0, length).
+  private byte[] buf = new byte[64];
+  private int length;
+
+  public TextTokenizer() {}
+
+  /**
+   * Starts tokenizing the contents of {@code text}. The tokenizer reads the backing array of
+   * {@code text} directly, so it must not be modified until tokenization is done.
+   */
+  public TextTokenizer reset(Text text) {
+    return reset(text.getBytes(), 0, text.getLength());
+  }
+
+  public TextTokenizer reset(byte[] bytes, int offset, int len) {
+    input = bytes;
+    pos = offset;
+    end = offset + len;
+    length = 0;
+    return this;
+  }
+
+  /**
+   * Advances to the next non-empty token.
+   *
+   * @return false once the input is exhausted
+   */
+  public boolean next() {
+    while (pos < end) {
+      while (pos < end && isDelimiter(input[pos])) {
+        pos++;
+      }
+      if (pos == end) {
+        break;
+      }
+      int start = pos;
+      boolean ascii = true;
+      while (pos < end && !isDelimiter(input[pos])) {
+        ascii &= input[pos] >= 0;
+        pos++;
+      }
+
+      if (ascii ? trimAscii(start, pos) : trimUnicode(start, pos)) {
+        return true;
+      }
+    }
+    length = 0;
+    return false;
+  }
+
+  /** Returns the buffer holding the current token; valid bytes are {@code [0, length())}. */
+  public byte[] bytes() {
+    return buf;
+  }
+
+  /** Returns the length in bytes of the current token. */
+  public int length() {
+    return length;
+  }
+
+  /** Copies the current token into {@code out}. */
+  public void get(Text out) {
+    out.set(buf, 0, length);
+  }
+
+  /**
+   * Copies at most the first {@code chars} characters of the current token into {@code out}.
+   */
+  public void prefix(Text out, int chars) {
+    out.set(buf, 0, prefixLength(chars));
+  }
+
+  /** Returns the number of bytes taken up by the first {@code chars} characters of the token. */
+  public int prefixLength(int chars) {
+    int i = 0;
+    int n = 0;
+    while (i < length) {
+      // Count only UTF-8 lead bytes.
+      if ((buf[i] & 0xC0) != 0x80) {
+        if (n == chars) {
+          break;
+        }
+        n++;
+      }
+      i++;
+    }
+    return i;
+  }
+
+  /** Decodes the current token into a new String. */
+  public String token() {
+    return new String(buf, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private static boolean isDelimiter(byte b) {
+    // Same delimiter set as the default StringTokenizer. These never occur inside a multi-byte
+    // UTF-8 sequence, so scanning bytes is safe.
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+  }
+
+  private static boolean isLetter(byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+  }
+
+  private boolean trimAscii(int start, int stop) {
+    while (start < stop && !isLetter(input[start])) {
+      start++;
+    }
+    while (stop > start && !isLetter(input[stop - 1])) {
+      stop--;
+    }
+    length = stop - start;
+    if (length == 0) {
+      return false;
+    }
+    ensureCapacity(length);
+    for (int i = 0; i < length; i++) {
+      byte b = input[start + i];
+      buf[i] = (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+    return true;
+  }
+
+  private boolean trimUnicode(int start, int stop) {
+    String w = new String(input, start, stop - start, StandardCharsets.UTF_8).toLowerCase();
+    int s = 0;
+    int e = w.length();
+    while (s < e && (w.charAt(s) < 'a' || w.charAt(s) > 'z')) {
+      s++;
+    }
+    while (e > s && (w.charAt(e - 1) < 'a' || w.charAt(e - 1) > 'z')) {
+      e--;
+    }
+    if (s == e) {
+      length = 0;
+      return false;
+    }
+    byte[] encoded = w.substring(s, e).getBytes(StandardCharsets.UTF_8);
+    ensureCapacity(encoded.length);
+    System.arraycopy(encoded, 0, buf, 0, encoded.length);
+    length = encoded.length;
+    return true;
+  }
+
+  private void ensureCapacity(int n) {
+    if (buf.length < n) {
+      buf = new byte[Math.max(n, buf.length * 2)];
+    }
+  }
+}
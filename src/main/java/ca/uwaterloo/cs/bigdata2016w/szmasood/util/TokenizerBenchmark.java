@@ -0,0 +1,112 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Compares the throughput of {@link TextTokenizer} against the regex-based tokenization the
+ * mappers used before. Reads a local text file (e.g. the Shakespeare collection) into memory,
+ * checks that both paths produce the same tokens and then times several passes of each.
+ *
+ * <pre>
+ *   java -cp target/bigdata2016w-0.1.0-SNAPSHOT.jar \
+ *     ca.uwaterloo.cs.bigdata2016w.szmasood.util.TokenizerBenchmark data/Shakespeare.txt [passes]
+ * </pre>
+ */
+public class TokenizerBenchmark {
+  private TokenizerBenchmark() {}
+
+  private static long regex(List<Text> lines) {
+    long checksum = 0;
+    for (Text line : lines) {
+      StringTokenizer itr = new StringTokenizer(line.toString());
+      while (itr.hasMoreTokens()) {
+        String w = itr.nextToken().toLowerCase().replaceAll("(^[^a-z]+|[^a-z]+$)", "");
+        if (w.length() == 0) continue;
+        checksum += w.length();
+      }
+    }
+    return checksum;
+  }
+
+  private static long bytes(List<Text> lines, TextTokenizer tokenizer) {
+    long checksum = 0;
+    for (Text line : lines) {
+      tokenizer.reset(line);
+      while (tokenizer.next()) {
+        checksum += tokenizer.length();
+      }
+    }
+    return checksum;
+  }
+
+  private static void verify(List<Text> lines, TextTokenizer tokenizer) {
+    for (Text line : lines) {
+      StringTokenizer itr = new StringTokenizer(line.toString());
+      tokenizer.reset(line);
+      while (itr.hasMoreTokens()) {
+        String w = itr.nextToken().toLowerCase().replaceAll("(^[^a-z]+|[^a-z]+$)", "");
+        if (w.length() == 0) continue;
+        if (!tokenizer.next() || !w.equals(tokenizer.token())) {
+          throw new IllegalStateException("Tokens differ on line: " + line);
+        }
+      }
+      if (tokenizer.next()) {
+        throw new IllegalStateException("Extra token on line: " + line);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: TokenizerBenchmark [local text file] [passes]");
+      System.exit(-1);
+    }
+    int passes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    List<Text> lines = new ArrayList<Text>();
+    long bytes = 0;
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(args[0]), StandardCharsets.UTF_8));
+    String line;
+    while ((line = reader.readLine()) != null) {
+      Text t = new Text(line);
+      bytes += t.getLength();
+      lines.add(t);
+    }
+    reader.close();
+
+    TextTokenizer tokenizer = new TextTokenizer();
+    verify(lines, tokenizer);
+    System.out.println("Verified identical tokens on " + lines.size() + " lines (" + bytes + " bytes)");
+
+    // Warm up both paths before timing.
+    regex(lines);
+    bytes(lines, tokenizer);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < passes; i++) {
+      regex(lines);
+    }
+    double regexSecs = (System.nanoTime() - start) / 1e9;
+
+    start = System.nanoTime();
+    for (int i = 0; i < passes; i++) {
+      bytes(lines, tokenizer);
+    }
+    double byteSecs = (System.nanoTime() - start) / 1e9;
+
+    double mb = bytes * (double) passes / (1024 * 1024);
+    System.out.println(String.format("regex:     %.3f s (%.1f MB/s)", regexSecs, mb / regexSecs));
+    System.out.println(String.format("tokenizer: %.3f s (%.1f MB/s)", byteSecs, mb / byteSecs));
+    System.out.println(String.format("speedup:   %.2fx", regexSecs / byteSecs));
+  }
+}
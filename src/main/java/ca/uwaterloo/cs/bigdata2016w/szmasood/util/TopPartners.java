@@ -0,0 +1,174 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * The N highest-scoring partners of a word. While a reducer offers candidates it is a bounded
+ * min-heap over parallel arrays, so scores are never boxed and a candidate below the current N-th
+ * best costs one comparison. It is written with its partners sorted by decreasing score:
+ * VInt size, then per partner the term as a {@link Text} string and the score as a float.
+ * {@link #toString()} prints the partners, so {@code hadoop fs -text} shows the output.
+ */
+public class TopPartners implements Writable {
+  private String[] terms;
+  private float[] scores;
+  private int size = 0;
+  private boolean sorted = true;
+
+  /** For deserialization only. */
+  public TopPartners() {
+    this(0);
+  }
+
+  public TopPartners(int capacity) {
+    terms = new String[capacity];
+    scores = new float[capacity];
+  }
+
+  public int capacity() {
+    return terms.length;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    Arrays.fill(terms, 0, size, null);
+    size = 0;
+    sorted = true;
+  }
+
+  /** Keeps {@code term} if its score is among the best {@link #capacity()} seen since clear(). */
+  public void offer(String term, float score) {
+    if (sorted) {
+      // Decreasing order isn't a min-heap, but reversed it is.
+      for (int i = 0, j = size - 1; i < j; i++, j--) {
+        swap(i, j);
+      }
+      sorted = false;
+    }
+    if (size < terms.length) {
+      terms[size] = term;
+      scores[size] = score;
+      siftUp(size++);
+    } else if (size > 0 && score > scores[0]) {
+      terms[0] = term;
+      scores[0] = score;
+      siftDown(0, size);
+    }
+  }
+
+  /** Returns whether {@link #offer} would keep a partner with this score, e.g. before building it. */
+  public boolean accepts(float score) {
+    if (size < terms.length) {
+      return true;
+    }
+    return size > 0 && score > (sorted ? scores[size - 1] : scores[0]);
+  }
+
+  /** Returns the i-th best partner. Sorts the partners first if needed. */
+  public String term(int i) {
+    sort();
+    return terms[i];
+  }
+
+  public float score(int i) {
+    sort();
+    return scores[i];
+  }
+
+  // Heapsort: popping the minimum to the end of the array leaves it in decreasing order.
+  private void sort() {
+    if (sorted) {
+      return;
+    }
+    for (int end = size - 1; end > 0; end--) {
+      swap(0, end);
+      siftDown(0, end);
+    }
+    sorted = true;
+  }
+
+  private void siftUp(int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (scores[parent] <= scores[i]) {
+        return;
+      }
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown(int i, int end) {
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= end) {
+        return;
+      }
+      if (child + 1 < end && scores[child + 1] < scores[child]) {
+        child++;
+      }
+      if (scores[i] <= scores[child]) {
+        return;
+      }
+      swap(i, child);
+      i = child;
+    }
+  }
+
+  private void swap(int i, int j) {
+    String term = terms[i];
+    terms[i] = terms[j];
+    terms[j] = term;
+    float score = scores[i];
+    scores[i] = scores[j];
+    scores[j] = score;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    sort();
+    WritableUtils.writeVInt(out, size);
+    for (int i = 0; i < size; i++) {
+      Text.writeString(out, terms[i]);
+      out.writeFloat(scores[i]);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    int n = WritableUtils.readVInt(in);
+    if (terms.length < n) {
+      terms = new String[n];
+      scores = new float[n];
+    }
+    for (int i = 0; i < n; i++) {
+      terms[i] = Text.readString(in);
+      scores[i] = in.readFloat();
+    }
+    size = n;
+    sorted = true;
+  }
+
+  @Override
+  public String toString() {
+    sort();
+    StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(terms[i]).append('=').append(scores[i]);
+    }
+    return sb.append('}').toString();
+  }
+}
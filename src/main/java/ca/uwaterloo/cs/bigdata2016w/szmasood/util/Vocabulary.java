@@ -0,0 +1,230 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Dense int ids for the frequent terms of a corpus, most frequent first, along with their counts
+ * and the number of lines they were counted over. Lets jobs shuffle ids instead of strings: a pair
+ * of ids packs into a single long ({@link #pair(int, int)}), which {@code LongWritable} sorts on its
+ * raw bytes. It is made of a few primitive arrays, so it is also cheap to broadcast from Spark.
+ *
+ * <p>File format: VInt MAGIC, VInt number of lines, VInt number of terms, then for every id in order
+ * VInt length, UTF-8 bytes, VInt count.</p>
+ */
+public class Vocabulary implements Serializable {
+  private static final int MAGIC = 0x566f63;
+
+  private final int numLines;
+  private final int size;
+  private final byte[] slab;
+  private final int[] offsets;
+  private final int[] counts;
+  // Open-addressing table of id + 1 (0 is empty), probed with ByteCountTable.hash.
+  private final int[] table;
+  private final int mask;
+
+  private Vocabulary(int numLines, int size, byte[] slab, int[] offsets, int[] counts) {
+    this.numLines = numLines;
+    this.size = size;
+    this.slab = slab;
+    this.offsets = offsets;
+    this.counts = counts;
+
+    table = new int[Integer.highestOneBit(Math.max(1, size) * 4)];
+    mask = table.length - 1;
+    for (int id = 0; id < size; id++) {
+      int slot = hash(id) & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = id + 1;
+    }
+  }
+
+  /** Creates a vocabulary of the given terms, whose ids are their indexes. */
+  public static Vocabulary of(int numLines, String[] terms, int[] counts) {
+    int[] offsets = new int[terms.length + 1];
+    byte[][] encoded = new byte[terms.length][];
+    for (int id = 0; id < terms.length; id++) {
+      encoded[id] = terms[id].getBytes(StandardCharsets.UTF_8);
+      offsets[id + 1] = offsets[id] + encoded[id].length;
+    }
+    byte[] slab = new byte[offsets[terms.length]];
+    for (int id = 0; id < terms.length; id++) {
+      System.arraycopy(encoded[id], 0, slab, offsets[id], encoded[id].length);
+    }
+    return new Vocabulary(numLines, terms.length, slab, offsets, Arrays.copyOf(counts, terms.length));
+  }
+
+  public static Vocabulary load(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (WritableUtils.readVInt(in) != MAGIC) {
+        throw new IOException(file + " is not a vocabulary");
+      }
+      int numLines = WritableUtils.readVInt(in);
+      int size = WritableUtils.readVInt(in);
+      int[] offsets = new int[size + 1];
+      int[] counts = new int[size];
+      byte[] slab = new byte[Math.max(16, size * 8)];
+      for (int id = 0; id < size; id++) {
+        int length = WritableUtils.readVInt(in);
+        if (offsets[id] + length > slab.length) {
+          slab = Arrays.copyOf(slab, Math.max(slab.length * 2, offsets[id] + length));
+        }
+        in.readFully(slab, offsets[id], length);
+        offsets[id + 1] = offsets[id] + length;
+        counts[id] = WritableUtils.readVInt(in);
+      }
+      return new Vocabulary(numLines, size, slab, offsets, counts);
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Number of terms, i.e. one more than the largest id. */
+  public int size() {
+    return size;
+  }
+
+  /** Number of lines the counts were computed over. */
+  public int numLines() {
+    return numLines;
+  }
+
+  /** Returns the id of the given term, or -1 if it isn't frequent enough to have one. */
+  public int id(byte[] bytes, int offset, int length) {
+    int h = ByteCountTable.hash(bytes, offset, length);
+    for (int slot = h & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+      int id = table[slot] - 1;
+      if (offsets[id + 1] - offsets[id] == length && equal(id, bytes, offset, length)) {
+        return id;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the id of the given term, or -1. Encodes the term; mappers should use the bytes. */
+  public int id(String term) {
+    byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+    return id(bytes, 0, bytes.length);
+  }
+
+  public int count(int id) {
+    return counts[id];
+  }
+
+  /** Decodes the term with the given id. Allocates; meant for output time only. */
+  public String term(int id) {
+    return new String(slab, offsets[id], offsets[id + 1] - offsets[id], StandardCharsets.UTF_8);
+  }
+
+  public static long pair(int left, int right) {
+    return ((long) left << 32) | (right & 0xFFFFFFFFL);
+  }
+
+  public static int left(long pair) {
+    return (int) (pair >>> 32);
+  }
+
+  public static int right(long pair) {
+    return (int) pair;
+  }
+
+  private int hash(int id) {
+    return ByteCountTable.hash(slab, offsets[id], offsets[id + 1] - offsets[id]);
+  }
+
+  private boolean equal(int id, byte[] bytes, int offset, int length) {
+    int start = offsets[id];
+    for (int i = 0; i < length; i++) {
+      if (slab[start + i] != bytes[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Builds a vocabulary from the text ("term\tcount") part files of a counting job: the terms
+   * counted at least {@code minCount} times, most frequent first. The count of {@code linesKey}, if
+   * present, is the number of lines.
+   */
+  public static void build(FileSystem fs, Path parts, String linesKey, int minCount, Path vocabulary)
+      throws IOException {
+    List<String> terms = new ArrayList<String>();
+    final List<Integer> termCounts = new ArrayList<Integer>();
+    int numLines = 0;
+    for (FileStatus f : fs.listStatus(parts)) {
+      if (!f.getPath().getName().startsWith("part-")) {
+        continue;
+      }
+      BufferedReader reader =
+          new BufferedReader(new InputStreamReader(fs.open(f.getPath()), StandardCharsets.UTF_8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          int tab = line.lastIndexOf('\t');
+          String term = line.substring(0, tab);
+          int count = Integer.parseInt(line.substring(tab + 1));
+          if (term.equals(linesKey)) {
+            numLines = count;
+          } else if (count >= minCount) {
+            terms.add(term);
+            termCounts.add(count);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+
+    // Sort indexes by decreasing count, then by term so that ids are deterministic.
+    final List<String> byIndex = terms;
+    List<Integer> order = new ArrayList<Integer>(terms.size());
+    for (int i = 0; i < terms.size(); i++) {
+      order.add(i);
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        int c = termCounts.get(b).compareTo(termCounts.get(a));
+        return c != 0 ? c : byIndex.get(a).compareTo(byIndex.get(b));
+      }
+    });
+
+    DataOutputStream out = new DataOutputStream(fs.create(vocabulary, true));
+    try {
+      WritableUtils.writeVInt(out, MAGIC);
+      WritableUtils.writeVInt(out, numLines);
+      WritableUtils.writeVInt(out, order.size());
+      for (int i : order) {
+        byte[] bytes = terms.get(i).getBytes(StandardCharsets.UTF_8);
+        WritableUtils.writeVInt(out, bytes.length);
+        out.write(bytes);
+        WritableUtils.writeVInt(out, termCounts.get(i));
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
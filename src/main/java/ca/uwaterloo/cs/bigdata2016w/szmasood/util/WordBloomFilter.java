@@ -0,0 +1,162 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Bloom filter over byte-slice keys. Membership tests hash the slice in place, so the mappers can
+ * test every token without allocating. There are no false negatives: a key that was added always
+ * tests positive, and a key that wasn't tests positive with probability about the false positive
+ * rate the filter was sized for.
+ */
+public class WordBloomFilter implements Writable {
+  private int numBits;
+  private int numHashes;
+  private long[] bits;
+
+  /** For deserialization only. */
+  public WordBloomFilter() {}
+
+  public WordBloomFilter(int numBits, int numHashes) {
+    this.numBits = numBits;
+    this.numHashes = numHashes;
+    this.bits = new long[(numBits + 63) >>> 6];
+  }
+
+  /** Sizes a filter for {@code numKeys} keys: m = -n ln(p) / ln(2)^2 bits and k = m / n ln(2). */
+  public static WordBloomFilter withFalsePositiveRate(int numKeys, double rate) {
+    int n = Math.max(1, numKeys);
+    int m = (int) Math.max(64, Math.ceil(-n * Math.log(rate) / (Math.log(2) * Math.log(2))));
+    int k = (int) Math.max(1, Math.round((double) m / n * Math.log(2)));
+    return new WordBloomFilter(m, k);
+  }
+
+  public void add(byte[] bytes, int offset, int length) {
+    int h1 = ByteCountTable.hash(bytes, offset, length);
+    int h2 = secondHash(h1);
+    for (int i = 0; i < numHashes; i++) {
+      int bit = bit(h1, h2, i);
+      bits[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  /** Returns false if the key was never added, true if it probably was. */
+  public boolean mightContain(byte[] bytes, int offset, int length) {
+    int h1 = ByteCountTable.hash(bytes, offset, length);
+    int h2 = secondHash(h1);
+    for (int i = 0; i < numHashes; i++) {
+      int bit = bit(h1, h2, i);
+      if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public int numBits() {
+    return numBits;
+  }
+
+  public int numHashes() {
+    return numHashes;
+  }
+
+  // Kirsch-Mitzenmacher, as in CountMinSketch: the i-th hash is h1 + i * h2.
+  private int bit(int h1, int h2, int i) {
+    return ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+  }
+
+  private static int secondHash(int h) {
+    h = (h ^ (h >>> 15)) * 0x2C1B3C6D;
+    h = (h ^ (h >>> 12)) * 0x297A2D39;
+    return (h ^ (h >>> 15)) | 1;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, numBits);
+    WritableUtils.writeVInt(out, numHashes);
+    for (long word : bits) {
+      out.writeLong(word);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    numBits = WritableUtils.readVInt(in);
+    numHashes = WritableUtils.readVInt(in);
+    bits = new long[(numBits + 63) >>> 6];
+    for (int i = 0; i < bits.length; i++) {
+      bits[i] = in.readLong();
+    }
+  }
+
+  public static WordBloomFilter load(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      WordBloomFilter filter = new WordBloomFilter();
+      filter.readFields(in);
+      return filter;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Builds a filter of the terms counted at least {@code minCount} times in the text
+   * ("term\tcount") part files of a counting job, leaving out {@code skipKey}, and saves it.
+   * Returns the number of terms added.
+   */
+  public static int build(FileSystem fs, Path parts, String skipKey, int minCount, double rate,
+      Path filter) throws IOException {
+    List<byte[]> terms = new ArrayList<byte[]>();
+    for (FileStatus f : fs.listStatus(parts)) {
+      if (!f.getPath().getName().startsWith("part-")) {
+        continue;
+      }
+      BufferedReader reader =
+          new BufferedReader(new InputStreamReader(fs.open(f.getPath()), StandardCharsets.UTF_8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          int tab = line.lastIndexOf('\t');
+          String term = line.substring(0, tab);
+          if (!term.equals(skipKey) && Integer.parseInt(line.substring(tab + 1)) >= minCount) {
+            terms.add(term.getBytes(StandardCharsets.UTF_8));
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+
+    WordBloomFilter bloom = withFalsePositiveRate(terms.size(), rate);
+    for (byte[] term : terms) {
+      bloom.add(term, 0, term.length);
+    }
+    DataOutputStream out = new DataOutputStream(fs.create(filter, true));
+    try {
+      bloom.write(out);
+    } finally {
+      out.close();
+    }
+    return terms.size();
+  }
+}
@@ -0,0 +1,179 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment1;
+
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.IntStripe
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SparkKryo
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.Vocabulary
+import io.bespin.scala.util.Tokenizer
+
+import org.apache.log4j._
+import org.apache.hadoop.fs._
+import org.apache.spark.SparkContext
+import org.apache.spark.rdd.RDD
+import org.apache.spark.storage.StorageLevel
+import org.rogach.scallop._
+
+class SparkPMIConf(args: Seq[String]) extends ScallopConf(args) {
+  mainOptions = Seq(input, output, reducers, threshold)
+  val input = opt[String](descr = "input path", required = true)
+  val output = opt[String](descr = "output path", required = true)
+  val reducers = opt[Int](descr = "number of reducers", required = false, default = Some(1))
+  val threshold = opt[Int](descr = "minimum co-occurrence count of the pairs to output",
+    required = false, default = Some(10))
+}
+
+// Shared by the Spark versions of PairsPMI -> CooccurrencePairs and StripesPMI ->
+// CooccurrenceStripes. Both jobs become one application: the distinct words of every line are
+// cached once, the marginals are counted from that cache and broadcast as a Vocabulary of the words
+// that reach the threshold (dense ids, most frequent first, in a few primitive arrays), and the
+// co-occurrences are counted over the same cache by id. Only the words of the output are decoded.
+object SparkPMI extends Tokenizer {
+  // The words the MR mappers see: the distinct ones among the first 100 of a line.
+  def distinctWords(line: String): Array[String] = tokenize(line).take(100).distinct.toArray
+
+  def lineSets(sc: SparkContext, input: String): RDD[Array[String]] =
+    sc.textFile(input)
+      .map(distinctWords)
+      .filter(_.nonEmpty)
+      .persist(StorageLevel.MEMORY_ONLY_SER)
+
+  def vocabulary(lines: RDD[Array[String]], threshold: Int, reducers: Int): Vocabulary = {
+    val numLines = lines.count()
+    val frequent = lines
+      .flatMap(words => words.map(w => (w, 1)))
+      .reduceByKey(_ + _, reducers)
+      .filter(_._2 >= threshold)
+      .collect()
+      .sortBy(p => (-p._2, p._1))
+    Vocabulary.of(numLines.toInt, frequent.map(_._1), frequent.map(_._2))
+  }
+
+  // Words without an id can't reach the threshold: they are pruned like in the MR mappers.
+  def ids(words: Array[String], vocabulary: Vocabulary): Array[Int] =
+    words.map(vocabulary.id(_)).filter(_ >= 0)
+
+  // Same expression as the MR reducers, so that the values print the same.
+  def pmi(count: Int, px: Int, py: Int, numLines: Int): Double =
+    Math.log10(((count.toDouble) / (px.toDouble * py)) * numLines)
+
+  def deleteOutput(sc: SparkContext, output: String) {
+    FileSystem.get(sc.hadoopConfiguration).delete(new Path(output), true)
+  }
+}
+
+// Writes the lines of CooccurrencePairs: "(x, y)\tpmi". A pair of ids is packed into a single Long,
+// and reduceByKey combines the counts map-side.
+object PairsPMISpark {
+  val log = Logger.getLogger(getClass().getName())
+
+  def main(argv: Array[String]) {
+    val args = new SparkPMIConf(argv)
+
+    log.info("Input: " + args.input())
+    log.info("Output: " + args.output())
+    log.info("Number of reducers: " + args.reducers())
+    log.info("Threshold: " + args.threshold())
+
+    run(SparkKryo.context(SparkKryo.conf("PairsPMISpark")), args)
+  }
+
+  // Also run by PMIBenchmark, on a context of its own.
+  def run(sc: SparkContext, args: SparkPMIConf) {
+    SparkPMI.deleteOutput(sc, args.output())
+
+    val startTime = System.currentTimeMillis()
+    val threshold = args.threshold()
+    val lines = SparkPMI.lineSets(sc, args.input())
+    val vocabulary = sc.broadcast(SparkPMI.vocabulary(lines, threshold, args.reducers()))
+
+    lines
+      .mapPartitions(part => {
+        val v = vocabulary.value
+        part.flatMap(words => {
+          val ids = SparkPMI.ids(words, v)
+          for (i <- ids.iterator; j <- ids.iterator if i != j) yield (Vocabulary.pair(i, j), 1)
+        })
+      })
+      .reduceByKey(_ + _, args.reducers())
+      .filter(_._2 >= threshold)
+      .mapPartitions(part => {
+        val v = vocabulary.value
+        part.map(p => {
+          val x = Vocabulary.left(p._1)
+          val y = Vocabulary.right(p._1)
+          s"(${v.term(x)}, ${v.term(y)})\t${SparkPMI.pmi(p._2, v.count(x), v.count(y), v.numLines)}"
+        })
+      })
+      .saveAsTextFile(args.output())
+
+    lines.unpersist()
+    println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds")
+  }
+}
+
+// Writes the lines of CooccurrenceStripes: "x\t{y=pmi, ...}", partners by decreasing count of y.
+// Stripes are IntStripes keyed by id; reduceByKey merges them map-side into the first one.
+object StripesPMISpark {
+  val log = Logger.getLogger(getClass().getName())
+
+  def main(argv: Array[String]) {
+    val args = new SparkPMIConf(argv)
+
+    log.info("Input: " + args.input())
+    log.info("Output: " + args.output())
+    log.info("Number of reducers: " + args.reducers())
+    log.info("Threshold: " + args.threshold())
+
+    run(SparkKryo.context(SparkKryo.conf("StripesPMISpark")), args)
+  }
+
+  // Also run by PMIBenchmark, on a context of its own.
+  def run(sc: SparkContext, args: SparkPMIConf) {
+    SparkPMI.deleteOutput(sc, args.output())
+
+    val startTime = System.currentTimeMillis()
+    val threshold = args.threshold()
+    val lines = SparkPMI.lineSets(sc, args.input())
+    val vocabulary = sc.broadcast(SparkPMI.vocabulary(lines, threshold, args.reducers()))
+
+    lines
+      .mapPartitions(part => {
+        val v = vocabulary.value
+        part.flatMap(words => {
+          val ids = SparkPMI.ids(words, v)
+          if (ids.length < 2) {
+            Iterator()
+          } else {
+            ids.iterator.map(i => {
+              val stripe = new IntStripe()
+              for (j <- ids if j != i) stripe.increment(j)
+              (i, stripe)
+            })
+          }
+        })
+      })
+      .reduceByKey((a, b) => { a.plus(b); a }, args.reducers())
+      .mapPartitions(part => {
+        val v = vocabulary.value
+        part.flatMap(p => {
+          val x = p._1
+          val stripe = p._2
+          val partners = (0 until stripe.capacity())
+            .filter(slot =>
+              stripe.keyAt(slot) != IntStripe.EMPTY && stripe.countAt(slot) >= threshold)
+            .map(slot => (stripe.keyAt(slot), stripe.countAt(slot)))
+            .sortBy(_._1)
+          if (partners.isEmpty) {
+            Iterator()
+          } else {
+            val values = partners.map(e =>
+              s"${v.term(e._1)}=${SparkPMI.pmi(e._2, v.count(x), v.count(e._1), v.numLines).toFloat}")
+            Iterator(s"${v.term(x)}\t${values.mkString("{", ", ", "}")}")
+          }
+        })
+      })
+      .saveAsTextFile(args.output())
+
+    lines.unpersist()
+    println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds")
+  }
+}
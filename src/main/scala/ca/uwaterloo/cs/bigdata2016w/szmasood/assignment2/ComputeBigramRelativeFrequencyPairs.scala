@@ -1,14 +1,22 @@
 package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment2;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.ByteCountTable
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.LongCountTable
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SparkKryo
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.Vocabulary
 import io.bespin.scala.util.Tokenizer
 
+import java.nio.charset.StandardCharsets
+import com.esotericsoftware.kryo.Kryo
+import com.esotericsoftware.kryo.Serializer
+import com.esotericsoftware.kryo.io.Input
+import com.esotericsoftware.kryo.io.Output
+
 import org.apache.log4j._
 import org.apache.hadoop.fs._
-import org.apache.spark.SparkContext
-import org.apache.spark.SparkConf
 import org.apache.spark.Partitioner
+import org.apache.spark.serializer.KryoRegistrator
 import org.rogach.scallop._
-import scala.collection.mutable.ListBuffer
 
 class Conf(args: Seq[String]) extends ScallopConf(args) with Tokenizer {
   mainOptions = Seq(input, output, reducers)
@@ -24,6 +32,32 @@ object Bigram {
   }
 }
 
+// A Bigram as its two words, each as a varint length and UTF-8 bytes.
+class BigramSerializer extends Serializer[Bigram] {
+  override def write(kryo: Kryo, output: Output, bigram: Bigram) {
+    writeWord(output, bigram.left)
+    writeWord(output, bigram.right)
+  }
+
+  override def read(kryo: Kryo, input: Input, c: Class[Bigram]): Bigram =
+    Bigram(readWord(input), readWord(input))
+
+  private def writeWord(output: Output, word: String) {
+    val bytes = word.getBytes(StandardCharsets.UTF_8)
+    output.writeVarInt(bytes.length, true)
+    output.writeBytes(bytes)
+  }
+
+  private def readWord(input: Input): String =
+    new String(input.readBytes(input.readVarInt(true)), StandardCharsets.UTF_8)
+}
+
+class BigramRegistrator extends KryoRegistrator {
+  override def registerClasses(kryo: Kryo) {
+    kryo.register(classOf[Bigram], new BigramSerializer())
+  }
+}
+
 // Reference: http://codingjunkie.net/spark-secondary-sort/
 class LeftKeyPartitioner (partitions: Int) extends Partitioner {
 
@@ -35,9 +69,125 @@ class LeftKeyPartitioner (partitions: Int) extends Partitioner {
 }
 
 
-object ComputeBigramRelativeFrequencyPairs extends Tokenizer {
+// Counts the bigrams and the marginals (left, *) of a partition's lines. Words get local ids as
+// they are first seen (0 is "*") and the counts are kept in a LongCountTable keyed by packed pairs
+// of ids, so a repeated bigram costs a probe instead of a record. When the table and the words
+// reach the budget, the partial counts are emitted and the aggregation starts over with the next
+// lines.
+class BigramCounter(lines: Iterator[String], budget: Long)
+    extends Iterator[(Bigram, Int)] with Tokenizer {
+  // Estimated heap cost of a word: the String, its chars and its entry in the id map.
+  private val BytesPerWord = 96
+
+  private val ids = new java.util.HashMap[String, Integer]()
+  private var words = new Array[String](1024)
+  private var numWords = 0
+  private var wordBytes = 0L
+  private val counts = new LongCountTable()
+  private var slot = counts.capacity()
+
+  private def reset() {
+    ids.clear()
+    java.util.Arrays.fill(words.asInstanceOf[Array[AnyRef]], 0, numWords, null)
+    numWords = 0
+    wordBytes = 0L
+    counts.clear()
+    id("*")
+  }
+
+  private def id(word: String): Int = {
+    val existing = ids.get(word)
+    if (existing != null) {
+      existing.intValue()
+    } else {
+      if (numWords == words.length) {
+        words = java.util.Arrays.copyOf(words, numWords * 2)
+      }
+      words(numWords) = word
+      ids.put(word, numWords)
+      wordBytes += BytesPerWord + 2 * word.length
+      numWords += 1
+      numWords - 1
+    }
+  }
+
+  private def fill() {
+    reset()
+    while (lines.hasNext && counts.usedBytes() + wordBytes < budget) {
+      val tokens = tokenize(lines.next()).iterator
+      if (tokens.hasNext) {
+        var prev = id(tokens.next())
+        while (tokens.hasNext) {
+          val curr = id(tokens.next())
+          counts.increment(Vocabulary.pair(prev, curr))
+          counts.increment(Vocabulary.pair(prev, 0))
+          prev = curr
+        }
+      }
+    }
+    slot = 0
+  }
+
+  override def hasNext: Boolean = {
+    while (true) {
+      while (slot < counts.capacity()) {
+        if (counts.keyAt(slot) != LongCountTable.EMPTY) {
+          return true
+        }
+        slot += 1
+      }
+      if (!lines.hasNext) {
+        return false
+      }
+      fill()
+    }
+    false
+  }
+
+  override def next(): (Bigram, Int) = {
+    if (!hasNext) {
+      throw new NoSuchElementException()
+    }
+    val key = counts.keyAt(slot)
+    val count = counts.countAt(slot)
+    slot += 1
+    (Bigram(words(Vocabulary.left(key)), words(Vocabulary.right(key))), count)
+  }
+}
+
+// Turns the sorted partial counts of a partition into output lines, one bigram at a time: equal
+// bigrams are adjacent, so their counts are summed on the fly, and (left, *) comes before the
+// bigrams of left and sets the marginal they are divided by.
+class RelativeFrequencies(sorted: Iterator[(Bigram, Int)]) extends Iterator[String] {
+  private val in = sorted.buffered
+  private var marginal = 0f
+
+  override def hasNext: Boolean = in.hasNext
+
+  override def next(): String = {
+    val (bigram, first) = in.next()
+    var count = first
+    while (in.hasNext && in.head._1 == bigram) {
+      count += in.next()._2
+    }
+    val sum: Float = count
+    if (bigram.right == "*") {
+      marginal = sum
+      s"(${bigram.left}, ${bigram.right})\t${sum}"
+    } else if (marginal != 0f) {
+      s"(${bigram.left}, ${bigram.right})\t${sum / marginal}"
+    } else {
+      s"(${bigram.left}, nullnull)\t0"
+    }
+  }
+}
+
+object ComputeBigramRelativeFrequencyPairs {
   val log = Logger.getLogger(getClass().getName())
 
+  // Spark configuration key of the memory budget of a task's BigramCounter, in bytes.
+  val Budget = "spark.bigram.budget.bytes"
+
   def main(argv: Array[String]) {
     val args = new Conf(argv)
 
@@ -45,54 +195,20 @@ object ComputeBigramRelativeFrequencyPairs extends Tokenizer {
     log.info("Output: " + args.output())
     log.info("Number of reducers: " + args.reducers())
 
-    val conf = new SparkConf().setAppName("Bigram Count")
-    val sc = new SparkContext(conf)
+    val conf = SparkKryo.conf("Bigram Count", classOf[BigramRegistrator])
+    val sc = SparkKryo.context(conf)
+    val budget = conf.getLong(Budget, ByteCountTable.DEFAULT_BUDGET)
 
     val outputDir = new Path(args.output())
     FileSystem.get(sc.hadoopConfiguration).delete(outputDir, true)
 
+    // One shuffle: the partial counts are partitioned by left word and sorted (spilling to disk if
+    // needed), and the output lines are produced lazily while reading the sorted partition.
     val textFile = sc.textFile(args.input())
-    val counts = textFile.flatMap(line => {
-        val tokens = tokenize(line)
-        var bigrams = ListBuffer [(Bigram,Int)]()
-        if (tokens.length > 1) {
-          bigrams = bigrams ++ tokens.sliding(2).map(p => (Bigram(p(0),p(1)),1)).toList
-          for (i <- 0 until tokens.length - 1) {
-            bigrams += ((Bigram(tokens(i),"*"), 1))
-          }
-          bigrams.toList
-        }
-        else {
-          List()
-        }
-      })
-      .reduceByKey(_+_)
+    val counts = textFile
+      .mapPartitions(lines => new BigramCounter(lines, budget))
       .repartitionAndSortWithinPartitions(new LeftKeyPartitioner(args.reducers()))
-      .mapPartitions(bi => {
-        var bigram = new Bigram("","")
-        var res = ListBuffer [(String)]()
-        var curr = (bigram, 1)
-        var sum = 0f
-        var marginal = 0f
-        while (bi.hasNext) {
-          curr = bi.next()
-          sum = curr._2
-          bigram = curr._1
-          if (bigram.right == "*") {
-            res += (s"(${bigram.left}, ${bigram.right})\t${sum}")
-            marginal = sum
-          }
-          else {
-            if (marginal != 0f) {
-              res += (s"(${bigram.left}, ${bigram.right})\t${sum/marginal}")
-            }
-            else {
-              res += (s"(${bigram.left}, nullnull)\t0")
-            }
-          }
-        }
-        res.iterator
-      })
+      .mapPartitions(bigrams => new RelativeFrequencies(bigrams))
 
     counts.saveAsTextFile(args.output())
   }
@@ -1,14 +1,11 @@
 package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment2;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.FloatStripe
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SparkKryo
 import io.bespin.scala.util.Tokenizer
 
 import org.apache.log4j._
 import org.apache.hadoop.fs._
-import org.apache.spark.SparkContext
-import org.apache.spark.SparkConf
-import scala.collection.mutable.HashMap
-import scala.collection.mutable.Map
-import scala.collection.mutable.ListBuffer
 
 
 object ComputeBigramRelativeFrequencyStripes extends Tokenizer {
@@ -22,51 +19,39 @@ object ComputeBigramRelativeFrequencyStripes extends Tokenizer {
     log.info("Output: " + args.output())
     log.info("Number of reducers: " + args.reducers())
 
-    val conf = new SparkConf().setAppName("Bigram Count")
-    val sc = new SparkContext(conf)
+    val conf = SparkKryo.conf("Bigram Count")
+    val sc = SparkKryo.context(conf)
 
     val outputDir = new Path(args.output())
     FileSystem.get(sc.hadoopConfiguration).delete(outputDir, true)
 
+    // Bigrams are combined into FloatStripes on the map side (spilling if needed), so a word's
+    // stripe crosses the shuffle once per partition, as a Kryo-serialized array of entries.
     val textFile = sc.textFile(args.input())
-    val counts = textFile.flatMap(line => {
+    val counts = textFile
+      .flatMap(line => {
         val tokens = tokenize(line)
-        val stripes = new scala.collection.mutable.HashMap[String, scala.collection.mutable.HashMap [String,Float]]()
-        var prev = ""
-        var curr = ""
-        if (tokens.length > 1) {
-          for (i <- 1 until tokens.length) {
-            prev = tokens(i - 1)
-            curr = tokens(i)
-
-            val stripe = stripes.getOrElse(prev, HashMap[String, Float]())
-            stripe.put(curr, stripe.getOrElse(curr, 0f) + 1f)
-            stripes.put(prev, stripe)
-          }
-          stripes.toIterator
-        }
-        else {
-          Iterator()
-        }
+        tokens.iterator.zip(tokens.iterator.drop(1))
       })
-      .reduceByKey((a,b)=> {
-          for (k <- b.keySet){
-            val sum = a.getOrElse(k, 0.0f) + b(k)
-            a.put (k, sum)
-          }
+      .combineByKey(
+        (next: String) => {
+          val stripe = new FloatStripe()
+          stripe.increment(next)
+          stripe
+        },
+        (stripe: FloatStripe, next: String) => {
+          stripe.increment(next)
+          stripe
+        },
+        (a: FloatStripe, b: FloatStripe) => {
+          a.plus(b)
           a
-        })
-        .map (r => {
-          val stripe = scala.collection.mutable.HashMap [String,Float] ()
-          var sum = 0f
-          for (p <- r._2.keySet) {
-            sum += r._2(p)
-          }
-          for (s <- r._2.keySet) {
-            stripe += s -> (r._2(s)/sum)
-          }
-          s"${r._1}\t${stripe}"
-        })
+        },
+        args.reducers())
+      .map(r => {
+        r._2.normalize()
+        s"${r._1}\t${r._2}"
+      })
 
     counts.saveAsTextFile(args.output())
   }
@@ -1,8 +1,8 @@
 package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment5;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SparkKryo
+
 import org.apache.log4j._
-import org.apache.spark.SparkContext
-import org.apache.spark.SparkConf
 import org.rogach.scallop._
 import scala.collection.mutable.ListBuffer
 
@@ -23,8 +23,8 @@ object Q1  {
 
     val dt = args.date()
 
-    val conf = new SparkConf().setAppName("q1")
-    val sc = new SparkContext(conf)
+    val conf = SparkKryo.conf("q1")
+    val sc = SparkKryo.context(conf)
 
     val lineItems = s"${args.input()}/lineitem.tbl"
 
@@ -1,8 +1,8 @@
 package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment5;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SparkKryo
+
 import org.apache.log4j._
-import org.apache.spark.SparkContext
-import org.apache.spark.SparkConf
 import org.rogach.scallop._
 import scala.collection.mutable.ListBuffer
 
@@ -19,8 +19,8 @@ object Q2  {
 
     val dt = args.date()
 
-    val conf = new SparkConf().setAppName("q2")
-    val sc = new SparkContext(conf)
+    val conf = SparkKryo.conf("q2")
+    val sc = SparkKryo.context(conf)
 
     val base = args.input()
     val lineItemUri = s"${base}/lineitem.tbl"
@@ -1,8 +1,8 @@
 package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment5;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SparkKryo
+
 import org.apache.log4j._
-import org.apache.spark.SparkContext
-import org.apache.spark.SparkConf
 import org.rogach.scallop._
 import scala.collection.mutable.ListBuffer
 
@@ -16,8 +16,8 @@ object Q5  {
 
     log.info("Input: " + args.input())
 
-    val conf = new SparkConf().setAppName("q5")
-    val sc = new SparkContext(conf)
+    val conf = SparkKryo.conf("q5")
+    val sc = SparkKryo.context(conf)
 
     val base = args.input()
     val lineItemUri = s"${base}/lineitem.tbl"
@@ -1,9 +1,9 @@
 package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment6;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SparkKryo
+
 import org.apache.hadoop.fs.{FileSystem, Path}
 import org.apache.log4j._
-import org.apache.spark.SparkContext
-import org.apache.spark.SparkConf
 import org.rogach.scallop._
 
 
@@ -34,8 +34,8 @@ object ApplyEnsembleSpamClassifier  {
     val output = args.output()
 
 
-    val conf = new SparkConf().setAppName("ApplySpamClassifier")
-    val sc = new SparkContext(conf)
+    val conf = SparkKryo.conf("ApplySpamClassifier")
+    val sc = SparkKryo.context(conf)
 
     val outputDir = new Path(output)
     FileSystem.get(sc.hadoopConfiguration).delete(outputDir, true)
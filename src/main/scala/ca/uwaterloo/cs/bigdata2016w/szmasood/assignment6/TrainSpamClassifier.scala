@@ -1,9 +1,9 @@
 package ca.uwaterloo.cs.bigdata2016w.szmasood.assignment6;
 
+import ca.uwaterloo.cs.bigdata2016w.szmasood.util.SparkKryo
+
 import org.apache.hadoop.fs.{Path, FileSystem}
 import org.apache.log4j._
-import org.apache.spark.SparkContext
-import org.apache.spark.SparkConf
 import org.apache.spark.rdd.RDD
 import org.rogach.scallop._
 
@@ -31,8 +31,8 @@ object TrainSpamClassifier  {
     val input = args.input()
     val shuffle = args.shuffle()
 
-    val conf = new SparkConf().setAppName("TrainSpamClassifier")
-    val sc = new SparkContext(conf)
+    val conf = SparkKryo.conf("TrainSpamClassifier")
+    val sc = SparkKryo.context(conf)
 
     val outputDir = new Path(model)
     FileSystem.get(sc.hadoopConfiguration).delete(outputDir, true)
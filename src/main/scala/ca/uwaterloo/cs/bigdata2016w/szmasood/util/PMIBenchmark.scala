@@ -0,0 +1,114 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import ca.uwaterloo.cs.bigdata2016w.szmasood.assignment1.CooccurrencePairs
+import ca.uwaterloo.cs.bigdata2016w.szmasood.assignment1.CooccurrenceStripes
+import ca.uwaterloo.cs.bigdata2016w.szmasood.assignment1.PairsPMI
+import ca.uwaterloo.cs.bigdata2016w.szmasood.assignment1.PairsPMISpark
+import ca.uwaterloo.cs.bigdata2016w.szmasood.assignment1.SparkPMIConf
+import ca.uwaterloo.cs.bigdata2016w.szmasood.assignment1.StripesPMI
+import ca.uwaterloo.cs.bigdata2016w.szmasood.assignment1.StripesPMISpark
+
+import java.io.File
+import java.io.PrintWriter
+import java.nio.file.Files
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.FileSystem
+import org.apache.hadoop.fs.Path
+import org.apache.hadoop.util.Tool
+import scala.io.Source
+
+// Times the MapReduce PMI pipelines, run as PairsPMI and StripesPMI run them (the marginals job,
+// then CooccurrencePairs or CooccurrenceStripes), against PairsPMISpark and StripesPMISpark, on
+// prefixes of a local text file that double in size up to the whole file. Everything runs in this
+// JVM: the MR jobs on Hadoop's local job runner, Spark on a local master (unless spark.master is
+// set), with the same threshold and reducers. A first round on the smallest prefix warms up and
+// isn't reported. Prints the time of each side and, as a sanity check, its number of output lines,
+// e.g.
+//
+//   java -cp target/bigdata2016w-0.1.0-SNAPSHOT.jar \
+//     ca.uwaterloo.cs.bigdata2016w.szmasood.util.PMIBenchmark data/Shakespeare.txt [sizes] \
+//     [threshold]
+object PMIBenchmark {
+  private val Reducers = 4
+
+  private def lineCount(fs: FileSystem, dir: Path): Long =
+    fs.listStatus(dir).filter(_.getPath.getName.startsWith("part-")).map(f => {
+      val source = Source.fromInputStream(fs.open(f.getPath), "UTF-8")
+      try source.getLines().size finally source.close()
+    }).sum
+
+  // Runs the marginals stage, then the co-occurrence stage, as in PairsPMI.main.
+  private def mapReduce(conf: Configuration, marginals: Tool, cooccurrences: Tool,
+      args: Array[String]): Double = {
+    val start = System.nanoTime()
+    val pipeline = new Pipeline(conf, "PMIBenchmark")
+    pipeline.stage("marginals", marginals, args: _*)
+    pipeline.stage("cooccurrences", cooccurrences, args: _*).after("marginals")
+    if (pipeline.run() != 0) {
+      throw new IllegalStateException("MapReduce pipeline failed: " + args.mkString(" "))
+    }
+    (System.nanoTime() - start) / 1e9
+  }
+
+  private def spark(run: => Unit): Double = {
+    val start = System.nanoTime()
+    run
+    (System.nanoTime() - start) / 1e9
+  }
+
+  def main(argv: Array[String]) {
+    if (argv.length < 1) {
+      System.err.println("usage: PMIBenchmark [local text file] [sizes] [threshold]")
+      System.exit(-1)
+    }
+    val sizes = if (argv.length > 1) argv(1).toInt else 4
+    val threshold = if (argv.length > 2) argv(2).toInt else 10
+    val lines = Source.fromFile(argv(0), "UTF-8").getLines().toArray
+
+    val conf = new Configuration()
+    conf.set("fs.defaultFS", "file:///")
+    conf.set("mapreduce.framework.name", "local")
+    val fs = FileSystem.getLocal(conf)
+    val sc = SparkKryo.context(
+      SparkKryo.conf("PMIBenchmark").setIfMissing("spark.master", "local[*]"))
+    val dir = Files.createTempDirectory("pmi-benchmark").toFile
+
+    try {
+      val counts = (0 until sizes).map(k => lines.length >> (sizes - 1 - k)).filter(_ > 0)
+      for ((numLines, round) <- (counts.head +: counts).zipWithIndex) {
+        val inputFile = new File(dir, "input-" + numLines)
+        if (!inputFile.exists()) {
+          val writer = new PrintWriter(inputFile, "UTF-8")
+          lines.take(numLines).foreach(writer.println)
+          writer.close()
+        }
+        // Local URIs, whatever the default file system of either side.
+        val input = inputFile.toURI.toString
+        val output = new File(dir, "output").toURI.toString
+        val args = Array("-input", input, "-output", output, "-threshold", threshold.toString,
+          "-reducers", Reducers.toString)
+        val sparkArgs = new SparkPMIConf(Seq("--input", input, "--output", output,
+          "--threshold", threshold.toString, "--reducers", Reducers.toString))
+
+        val mrPairs = mapReduce(conf, new PairsPMI(), new CooccurrencePairs(), args)
+        val mrPairsLines = lineCount(fs, new Path(output))
+        val sparkPairs = spark(PairsPMISpark.run(sc, sparkArgs))
+        val sparkPairsLines = lineCount(fs, new Path(output))
+        val mrStripes = mapReduce(conf, new StripesPMI(), new CooccurrenceStripes(), args)
+        val mrStripesLines = lineCount(fs, new Path(output))
+        val sparkStripes = spark(StripesPMISpark.run(sc, sparkArgs))
+        val sparkStripesLines = lineCount(fs, new Path(output))
+
+        if (round > 0) {
+          println(f"$numLines%9d lines  pairs: MR $mrPairs%7.1f s, Spark $sparkPairs%7.1f s " +
+            f"(${mrPairs / sparkPairs}%.1fx, $mrPairsLines/$sparkPairsLines lines)  " +
+            f"stripes: MR $mrStripes%7.1f s, Spark $sparkStripes%7.1f s " +
+            f"(${mrStripes / sparkStripes}%.1fx, $mrStripesLines/$sparkStripesLines lines)")
+        }
+      }
+    } finally {
+      sc.stop()
+      fs.delete(new Path(dir.getPath), true)
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import ca.uwaterloo.cs.bigdata2016w.szmasood.assignment2.Bigram
+import ca.uwaterloo.cs.bigdata2016w.szmasood.assignment2.BigramRegistrator
+import io.bespin.scala.util.Tokenizer
+
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import org.apache.spark.SparkConf
+import org.apache.spark.serializer.JavaSerializer
+import org.apache.spark.serializer.KryoSerializer
+import org.apache.spark.serializer.Serializer
+import scala.io.Source
+import scala.reflect.ClassTag
+
+// Writes the records each Spark job shuffles, built from a local text file, through a
+// serialization stream as a shuffle does, with Java serialization and with Kryo set up as in
+// SparkKryo. Reports bytes and write/read times per record type, e.g.
+//
+//   java -cp target/bigdata2016w-0.1.0-SNAPSHOT.jar \
+//     ca.uwaterloo.cs.bigdata2016w.szmasood.util.SerializationBenchmark data/Shakespeare.txt
+object SerializationBenchmark extends Tokenizer {
+  private def measure[T: ClassTag](name: String, records: Seq[T],
+      serializers: Seq[(String, Serializer)]) {
+    for ((serializerName, serializer) <- serializers) {
+      val instance = serializer.newInstance()
+      // The first round warms up, the second one is reported.
+      var bytes = 0
+      var writeSecs = 0.0
+      var readSecs = 0.0
+      for (round <- 0 until 2) {
+        val buffer = new ByteArrayOutputStream()
+        var start = System.nanoTime()
+        val out = instance.serializeStream(buffer)
+        records.foreach(out.writeObject(_))
+        out.close()
+        writeSecs = (System.nanoTime() - start) / 1e9
+
+        start = System.nanoTime()
+        val in = instance.deserializeStream(new ByteArrayInputStream(buffer.toByteArray))
+        var n = 0
+        while (n < records.size) {
+          in.readObject[T]()
+          n += 1
+        }
+        in.close()
+        readSecs = (System.nanoTime() - start) / 1e9
+        bytes = buffer.size()
+      }
+      println(f"$name%-36s $serializerName%-5s ${records.size}%9d records ${bytes}%12d B " +
+        f"(${bytes.toDouble / records.size}%6.1f per record) write ${writeSecs}%6.3f s " +
+        f"read ${readSecs}%6.3f s")
+    }
+  }
+
+  def main(argv: Array[String]) {
+    if (argv.length < 1) {
+      System.err.println("usage: SerializationBenchmark [local text file] [max lines]")
+      System.exit(-1)
+    }
+    val maxLines = if (argv.length > 1) argv(1).toInt else Int.MaxValue
+    val lines = Source.fromFile(argv(0), "UTF-8").getLines().take(maxLines).map(tokenize).toArray
+
+    val kryoConf = new SparkConf()
+      .set("spark.kryo.registrator",
+        Seq(classOf[ProjectRegistrator], classOf[BigramRegistrator]).map(_.getName).mkString(","))
+    val serializers = Seq(
+      ("Java", new JavaSerializer(new SparkConf())),
+      ("Kryo", new KryoSerializer(kryoConf)))
+
+    // assignment2 pairs: partial counts of bigrams.
+    val bigrams = lines.flatMap(t => t.zip(t.drop(1)).map(p => (Bigram(p._1, p._2), 1)))
+    measure("(Bigram, Int)", bigrams, serializers)
+
+    // assignment2 stripes: one stripe per line and left word.
+    val floatStripes = lines.flatMap(t => t.zip(t.drop(1)).groupBy(_._1).map(g => {
+      val stripe = new FloatStripe()
+      g._2.foreach(p => stripe.increment(p._2))
+      (g._1, stripe)
+    }))
+    measure("(String, FloatStripe)", floatStripes, serializers)
+
+    // assignment1 Spark PMI: packed pairs of ids, and stripes of ids.
+    val words = lines.flatten.distinct
+    val ids = words.zipWithIndex.toMap
+    val idLines = lines.map(_.take(100).distinct.map(ids))
+    val pairs =
+      idLines.flatMap(l => for (i <- l; j <- l if i != j) yield (Vocabulary.pair(i, j), 1))
+    measure("(Long, Int)", pairs, serializers)
+    val intStripes = idLines.flatMap(l => l.map(i => {
+      val stripe = new IntStripe()
+      l.foreach(j => if (j != i) stripe.increment(j))
+      (i, stripe)
+    }))
+    measure("(Int, IntStripe)", intStripes, serializers)
+
+    // assignment5: keys joined with tuples of fields.
+    val tuples = lines.filter(_.length >= 4).map(t => (t(0), (t(1), t(2), t(3))))
+    measure("(String, (String, String, String))", tuples, serializers)
+
+    // assignment6: documents with the ids of their hashed features.
+    val documents = lines.zipWithIndex.map(p =>
+      (0d, ("doc" + p._2, p._2 % 2, p._1.map(w => w.hashCode() & 0xFFFFF).toArray)))
+    measure("(Double, (String, Int, Array[Int]))", documents, serializers)
+  }
+}
@@ -0,0 +1,132 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+
+import com.esotericsoftware.kryo.Kryo
+import com.esotericsoftware.kryo.Serializer
+import com.esotericsoftware.kryo.io.Input
+import com.esotericsoftware.kryo.io.Output
+import com.esotericsoftware.kryo.serializers.JavaSerializer
+import org.apache.hadoop.io.Writable
+import org.apache.spark.SparkConf
+import org.apache.spark.SparkContext
+import org.apache.spark.scheduler._
+import org.apache.spark.serializer.KryoRegistrator
+import org.apache.spark.serializer.KryoSerializer
+import scala.collection.mutable.HashMap
+
+// Shared setup of the Spark jobs: Kryo for shuffles, broadcasts and serialized caches, with the
+// project's types registered with compact serializers. Jobs with types of their own pass their
+// registrator too. Set spark.bigdata.kryo=false to run a job with Java serialization, and
+// spark.bigdata.stageMetrics=true to print the shuffle bytes, GC and time of every stage as it
+// completes, e.g. to compare the two on the same input:
+//
+//   spark-submit --conf spark.bigdata.stageMetrics=true --conf spark.bigdata.kryo=false ...
+object SparkKryo {
+  val Enabled = "spark.bigdata.kryo"
+  val StageMetrics = "spark.bigdata.stageMetrics"
+
+  def conf(appName: String, registrators: Class[_ <: KryoRegistrator]*): SparkConf = {
+    val conf = new SparkConf().setAppName(appName)
+    if (conf.getBoolean(Enabled, true)) {
+      conf.set("spark.serializer", classOf[KryoSerializer].getName)
+      conf.set("spark.kryo.registrator",
+        (classOf[ProjectRegistrator] +: registrators).map(_.getName).mkString(","))
+    }
+    conf
+  }
+
+  def context(conf: SparkConf): SparkContext = {
+    val sc = new SparkContext(conf)
+    if (conf.getBoolean(StageMetrics, false)) {
+      val serializer = if (conf.getBoolean(Enabled, true)) "Kryo" else "Java"
+      sc.addSparkListener(new StageMetricsListener(serializer))
+    }
+    sc
+  }
+}
+
+class ProjectRegistrator extends KryoRegistrator {
+  override def registerClasses(kryo: Kryo) {
+    kryo.register(classOf[FloatStripe])
+    kryo.register(classOf[IntStripe], new WritableSerializer(() => new IntStripe()))
+    // Broadcast once per job; its arrays are written as they are.
+    kryo.register(classOf[Vocabulary], new JavaSerializer())
+    kryo.register(classOf[Array[Int]], new VarIntArraySerializer())
+  }
+}
+
+// Writes a Writable in its own format, e.g. the delta-coded varints of an IntStripe.
+class WritableSerializer[T <: Writable](create: () => T) extends Serializer[T] {
+  override def write(kryo: Kryo, output: Output, value: T) {
+    value.write(new DataOutputStream(output))
+  }
+
+  override def read(kryo: Kryo, input: Input, c: Class[T]): T = {
+    val value = create()
+    value.readFields(new DataInputStream(input))
+    value
+  }
+}
+
+// Int arrays (e.g. the feature ids of a document) as a varint length then varint elements:
+// non-negative values below 2^21 take at most 3 bytes instead of 4.
+class VarIntArraySerializer extends Serializer[Array[Int]] {
+  override def write(kryo: Kryo, output: Output, array: Array[Int]) {
+    output.writeVarInt(array.length, true)
+    var i = 0
+    while (i < array.length) {
+      output.writeVarInt(array(i), true)
+      i += 1
+    }
+  }
+
+  override def read(kryo: Kryo, input: Input, c: Class[Array[Int]]): Array[Int] = {
+    val array = new Array[Int](input.readVarInt(true))
+    var i = 0
+    while (i < array.length) {
+      array(i) = input.readVarInt(true)
+      i += 1
+    }
+    array
+  }
+}
+
+// Sums the shuffle and GC metrics of the tasks of every stage and prints them with the stage time
+// when the stage completes.
+class StageMetricsListener(serializer: String) extends SparkListener {
+  private class Totals {
+    var shuffleWritten = 0L
+    var shuffleRead = 0L
+    var gcMillis = 0L
+  }
+
+  private val stages = HashMap[Int, Totals]()
+
+  override def onTaskEnd(taskEnd: SparkListenerTaskEnd) {
+    val metrics = taskEnd.taskMetrics
+    if (metrics != null) {
+      synchronized {
+        val totals = stages.getOrElseUpdate(taskEnd.stageId, new Totals())
+        metrics.shuffleWriteMetrics.foreach(m => totals.shuffleWritten += m.shuffleBytesWritten)
+        metrics.shuffleReadMetrics.foreach(m =>
+          totals.shuffleRead += m.remoteBytesRead + m.localBytesRead)
+        totals.gcMillis += metrics.jvmGCTime
+      }
+    }
+  }
+
+  override def onStageCompleted(stageCompleted: SparkListenerStageCompleted) {
+    val info = stageCompleted.stageInfo
+    val totals = synchronized {
+      stages.remove(info.stageId).getOrElse(new Totals())
+    }
+    val millis = (for (start <- info.submissionTime; end <- info.completionTime)
+      yield end - start).getOrElse(0L)
+    val line = f"[$serializer] stage ${info.stageId}%3d ${millis / 1000.0}%8.2f s " +
+      f"shuffle write ${totals.shuffleWritten}%12d B read ${totals.shuffleRead}%12d B " +
+      f"GC ${totals.gcMillis / 1000.0}%6.2f s  ${info.name}"
+    println(line)
+  }
+}
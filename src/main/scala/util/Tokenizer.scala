@@ -1,13 +1,52 @@
 package io.bespin.scala.util
 
-import java.util.StringTokenizer
-
-import scala.collection.JavaConverters._
+import scala.collection.mutable.ListBuffer
 
 trait Tokenizer {
+  // Same tokens as splitting with a StringTokenizer, lowercasing and stripping non [a-z] characters
+  // from both ends, but scans the line once instead of building intermediate lists and running a
+  // regex per token. Tokens with non-ASCII characters take the original String path so the results
+  // stay identical (ca.uwaterloo.cs.bigdata2016w.szmasood.util.TextTokenizer is the Text version).
   def tokenize(s: String): List[String] = {
-    new StringTokenizer(s).asScala.toList
-      .map(_.asInstanceOf[String].toLowerCase().replaceAll("(^[^a-z]+|[^a-z]+$)", ""))
-      .filter(_.length != 0)
+    val tokens = ListBuffer[String]()
+    val n = s.length
+    var pos = 0
+    while (pos < n) {
+      while (pos < n && isDelimiter(s.charAt(pos))) pos += 1
+      val start = pos
+      var ascii = true
+      while (pos < n && !isDelimiter(s.charAt(pos))) {
+        if (s.charAt(pos) >= 128) ascii = false
+        pos += 1
+      }
+      if (pos > start) {
+        val w = if (ascii) trimAscii(s, start, pos) else trimUnicode(s.substring(start, pos))
+        if (w.length != 0) tokens += w
+      }
+    }
+    tokens.toList
+  }
+
+  private def isDelimiter(c: Char): Boolean =
+    c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f'
+
+  private def isLetter(c: Char): Boolean =
+    (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+
+  private def trimAscii(s: String, from: Int, until: Int): String = {
+    var start = from
+    var end = until
+    while (start < end && !isLetter(s.charAt(start))) start += 1
+    while (end > start && !isLetter(s.charAt(end - 1))) end -= 1
+    if (start == end) "" else s.substring(start, end).toLowerCase()
+  }
+
+  private def trimUnicode(token: String): String = {
+    val w = token.toLowerCase()
+    var start = 0
+    var end = w.length
+    while (start < end && (w.charAt(start) < 'a' || w.charAt(start) > 'z')) start += 1
+    while (end > start && (w.charAt(end - 1) < 'a' || w.charAt(end - 1) > 'z')) end -= 1
+    w.substring(start, end)
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,119 @@
+package ca.uwaterloo.cs.bigdata2016w.szmasood.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PipelineTest {
+  // Copies the first line of -input to -output, the way a job leaves its output directory.
+  private static class Copy extends Configured implements Tool {
+    private int runs = 0;
+
+    @Override
+    public int run(String[] argv) throws Exception {
+      runs++;
+      Path input = new Path(argv[1]);
+      Path output = new Path(argv[3]);
+      FileSystem fs = FileSystem.getLocal(getConf());
+      fs.delete(output, true);
+      write(fs, new Path(output, "part-r-00000"), read(fs, input));
+      write(fs, new Path(output, "_SUCCESS"), "");
+      return 0;
+    }
+  }
+
+  private File dir;
+  private Configuration conf;
+  private String input;
+  private String middle;
+  private String output;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("pipeline-test").toFile();
+    conf = new Configuration();
+    conf.set("fs.defaultFS", "file:///");
+    conf.set(Pipeline.ROOT, new File(dir, "scratch").toURI().toString());
+    // Named before they exist: the URI of an existing directory ends with a slash.
+    input = new File(dir, "input").toURI().toString();
+    middle = new File(dir, "middle").toURI().toString();
+    output = new File(dir, "output").toURI().toString();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileSystem.getLocal(conf).delete(new Path(dir.toURI()), true);
+  }
+
+  private static String read(FileSystem fs, Path path) throws IOException {
+    if (fs.getFileStatus(path).isDirectory()) {
+      path = new Path(path, "part-r-00000");
+    }
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(fs.open(path), StandardCharsets.UTF_8));
+    try {
+      String line = reader.readLine();
+      return line == null ? "" : line;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static void write(FileSystem fs, Path path, String line) throws IOException {
+    Writer writer = new OutputStreamWriter(fs.create(path, true), StandardCharsets.UTF_8);
+    try {
+      writer.write(line);
+    } finally {
+      writer.close();
+    }
+  }
+
+  private int run(Copy first, Copy second) throws Exception {
+    Pipeline pipeline = new Pipeline(conf, "PipelineTest");
+    pipeline.stage("first", first, "-input", input, "-output", middle)
+        .inputs(input).output(middle);
+    pipeline.stage("second", second, "-input", middle, "-output", output)
+        .inputs(middle).output(output).after("first");
+    return pipeline.run();
+  }
+
+  @Test
+  public void changedInputRerunsDownstreamStages() throws Exception {
+    FileSystem fs = FileSystem.getLocal(conf);
+    Copy first = new Copy();
+    Copy second = new Copy();
+
+    write(fs, new Path(input), "one");
+    assertEquals(0, run(first, second));
+    assertEquals(1, first.runs);
+    assertEquals(1, second.runs);
+
+    // Nothing changed: both outputs are reused.
+    assertEquals(0, run(first, second));
+    assertEquals(1, first.runs);
+    assertEquals(1, second.runs);
+
+    // The second stage must see what the first one wrote this time, not the output it had kept.
+    write(fs, new Path(input), "two, longer");
+    assertEquals(0, run(first, second));
+    assertEquals(2, first.runs);
+    assertEquals(2, second.runs);
+    assertEquals("two, longer", read(fs, new Path(output)));
+  }
+}